@@ -8,6 +8,7 @@ import com.rk.libcommons.application
 import com.rk.settings.SettingsManager
 import com.rk.resources.Res
 import com.rk.update.UpdateManager
+import com.termux.terminal.TerminalRowPool
 import kotlinx.coroutines.DelicateCoroutinesApi
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
@@ -74,6 +75,7 @@ class App : Application() {
 
     override fun onTrimMemory(level: Int) {
         super.onTrimMemory(level)
+        TerminalRowPool.onTrimMemory(level)
     }
 
 }
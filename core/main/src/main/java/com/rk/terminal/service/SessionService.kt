@@ -32,7 +32,7 @@ class SessionService : Service() {
         }
         fun terminateAllSessions(){
             sessions.values.forEach{
-                it.finishIfRunning()
+                it.release()
             }
             sessions.clear()
             sessionList.clear()
@@ -53,7 +53,7 @@ class SessionService : Service() {
                 //crash is here
                 sessions[id]?.apply {
                     if (emulator != null){
-                        sessions[id]?.finishIfRunning()
+                        sessions[id]?.release()
                     }
                 }
 
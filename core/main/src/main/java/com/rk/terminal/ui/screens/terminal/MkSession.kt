@@ -179,7 +179,9 @@ object MkSession {
                 env.toTypedArray(),
                 TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS,
                 sessionClient,
-            )
+            ).apply {
+                setTranscriptArchiveDirectory(cacheDir.child("transcripts"))
+            }
         }
 
     }
@@ -12,6 +12,8 @@ import com.blankj.utilcode.util.KeyboardUtils
 import com.rk.libcommons.child
 import com.rk.libcommons.createFileIfNot
 import com.rk.libcommons.dpToPx
+import com.rk.libcommons.toast
+import com.rk.resources.strings
 import com.rk.settings.SettingsManager
 import com.rk.terminal.ui.activities.terminal.MainActivity
 import com.rk.terminal.ui.screens.terminal.virtualkeys.SpecialButton
@@ -28,6 +30,9 @@ import java.io.File
 import java.io.FileOutputStream
 
 class TerminalBackEnd(val terminal: TerminalView,val activity: MainActivity) : TerminalViewClient, TerminalSessionClient {
+    /** The sessions with more input waiting than they should, to which nothing more is pasted meanwhile. */
+    private val backpressuredSessions = mutableSetOf<TerminalSession>()
+
     override fun onTextChanged(changedSession: TerminalSession) {
         terminal.onScreenUpdated()
     }
@@ -37,7 +42,7 @@ class TerminalBackEnd(val terminal: TerminalView,val activity: MainActivity) : T
     }
     
     override fun onSessionFinished(finishedSession: TerminalSession) {
-
+        backpressuredSessions.remove(finishedSession)
     }
     
     override fun onCopyTextToClipboard(session: TerminalSession, text: String) {
@@ -47,10 +52,18 @@ class TerminalBackEnd(val terminal: TerminalView,val activity: MainActivity) : T
     override fun onPasteTextFromClipboard(session: TerminalSession?) {
         val clip = ClipboardUtils.getText().toString()
         if (clip.trim { it <= ' ' }.isNotEmpty() && terminal.mEmulator != null) {
-            terminal.mEmulator.paste(clip)
+            if (backpressuredSessions.contains(terminal.currentSession)) {
+                toast(strings.input_backpressure)
+                return
+            }
+            terminal.paste(clip)
         }
     }
 
+    override fun onPasteRejected(session: TerminalSession) {
+        toast(strings.paste_rejected)
+    }
+
     override fun setTerminalShellPid(
         session: TerminalSession,
         pid: Int
@@ -88,6 +101,15 @@ class TerminalBackEnd(val terminal: TerminalView,val activity: MainActivity) : T
     
     override fun onTerminalCursorStateChange(state: Boolean) {}
     
+    override fun onInputBackpressure(session: TerminalSession, backpressure: Boolean) {
+        if (backpressure) {
+            backpressuredSessions.add(session)
+            if (session == terminal.currentSession) toast(strings.input_backpressure)
+        } else {
+            backpressuredSessions.remove(session)
+        }
+    }
+    
     override fun getTerminalCursorStyle(): Int {
         return TerminalEmulator.DEFAULT_TERMINAL_CURSOR_STYLE
     }
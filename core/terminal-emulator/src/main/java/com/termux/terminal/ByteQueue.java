@@ -1,54 +1,163 @@
 package com.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p>
+ * The producer only ever advances the tail and the consumer only ever advances the head, so no lock is needed to
+ * access the buffer. A thread is only parked when the queue is empty (for the consumer) or full (for the producer),
+ * and is unparked by the other side after it has made progress.
+ * <p>
+ * A queue created with {@link #allocateDirect(int)} is backed by a direct {@link ByteBuffer}, which the producer can
+ * fill straight from a file descriptor with {@link #readFrom(int)} and the consumer can process in place with
+ * {@link #peek(int, boolean)} and {@link #consume(int)}, without copying the bytes in between.
+ */
 final class ByteQueue {
 
+    /**
+     * Distance in longs between the head and tail in {@link #mIndices}, 128 bytes, so that they end up on different
+     * cache lines and the producer and consumer do not invalidate each other's line on every update.
+     */
+    private static final int INDEX_PADDING = 16;
+    private static final int HEAD_INDEX = INDEX_PADDING;
+    private static final int TAIL_INDEX = 2 * INDEX_PADDING;
+
+    /** The storage of a heap queue, or null if direct. */
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
-    private boolean mOpen = true;
+    /** The storage of a direct queue, or null if heap. */
+    private final ByteBuffer mDirectBuffer;
+    /** Views of {@link #mDirectBuffer} with positions owned by the producer and the consumer respectively. */
+    private final ByteBuffer mProducerView;
+    private final ByteBuffer mConsumerView;
+    private final int mCapacity;
+    /**
+     * Holds the total number of bytes ever read (the head) and written (the tail), with padding around them. The
+     * number of stored bytes is tail - head, and the positions in the storage are the values modulo {@link #mCapacity}.
+     */
+    private final AtomicLongArray mIndices = new AtomicLongArray(3 * INDEX_PADDING);
+    private volatile boolean mOpen = true;
+    /** If nothing more is going to be written, see {@link #finish()}. */
+    private volatile boolean mFinished;
+    /** The consumer thread if parked waiting for the queue to become non-empty. */
+    private volatile Thread mWaitingReader;
+    /** The producer thread if parked waiting for the queue to become non-full. */
+    private volatile Thread mWaitingWriter;
 
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        this(size, false);
     }
 
-    public synchronized void close() {
-        mOpen = false;
-        notify();
-    }
-
-    public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
-            if (block) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            } else {
-                return 0;
-            }
+    private ByteQueue(int size, boolean direct) {
+        if (size <= 0) throw new IllegalArgumentException("size <= 0");
+        mCapacity = size;
+        if (direct) {
+            mBuffer = null;
+            mDirectBuffer = ByteBuffer.allocateDirect(size);
+            mProducerView = mDirectBuffer.duplicate();
+            mConsumerView = mDirectBuffer.duplicate();
+        } else {
+            mBuffer = new byte[size];
+            mDirectBuffer = mProducerView = mConsumerView = null;
         }
-        if (!mOpen) return -1;
-
-        int totalRead = 0;
-        int bufferLength = mBuffer.length;
-        boolean wasFull = bufferLength == mStoredBytes;
-        int length = buffer.length;
-        int offset = 0;
-        while (length > 0 && mStoredBytes > 0) {
-            int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-            int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-            mHead += bytesToCopy;
-            if (mHead >= bufferLength) mHead = 0;
-            mStoredBytes -= bytesToCopy;
-            length -= bytesToCopy;
-            offset += bytesToCopy;
-            totalRead += bytesToCopy;
+    }
+
+    /** Create a queue backed by a direct {@link ByteBuffer}, see {@link #readFrom(int)} and {@link #peek(int, boolean)}. */
+    public static ByteQueue allocateDirect(int size) {
+        return new ByteQueue(size, true);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * The number of bytes that can be written without blocking. As only the consumer frees space this is exact for the
+     * producer thread, for which it may only grow until it writes.
+     */
+    public int getFreeSpace() {
+        return mCapacity - (int) (mIndices.get(TAIL_INDEX) - mIndices.get(HEAD_INDEX));
+    }
+
+    public void close() {
+        mOpen = false;
+        wakeUpReader();
+        wakeUpWriter();
+    }
+
+    /**
+     * Tell the consumer that nothing more is going to be written, so that it gets the bytes which are still stored and
+     * then -1 or null as if the queue was closed, instead of waiting for more.
+     */
+    public void finish() {
+        mFinished = true;
+        wakeUpReader();
+    }
+
+    public int read(byte[] buffer, boolean block) {
+        final long head = mIndices.get(HEAD_INDEX);
+        final long tail = awaitTail(head, block);
+        if (tail < 0) return -1;
+
+        final int storedBytes = (int) (tail - head);
+        final int bytesToRead = Math.min(buffer.length, storedBytes);
+        final int position = (int) (head % mCapacity);
+        final int firstRun = Math.min(bytesToRead, mCapacity - position);
+        copyOut(position, buffer, 0, firstRun);
+        if (firstRun < bytesToRead) copyOut(0, buffer, firstRun, bytesToRead - firstRun);
+
+        mIndices.set(HEAD_INDEX, head + bytesToRead);
+        wakeUpWriter();
+        return bytesToRead;
+    }
+
+    /**
+     * Get a view of the stored bytes at the head of a direct queue, between its position and limit, without removing
+     * them. Only bytes stored contiguously are included, so the view may hold less than what is stored when wrapping
+     * around. The view is reused by each call and is only valid until {@link #consume(int)} is called.
+     *
+     * @param maxLength The maximum number of bytes to include.
+     * @param block     If the call should wait for bytes to become available, instead of returning an empty view.
+     * @return the view, or null if the queue has been closed, or finished and all bytes have been consumed.
+     */
+    public ByteBuffer peek(int maxLength, boolean block) {
+        final long head = mIndices.get(HEAD_INDEX);
+        final long tail = awaitTail(head, block);
+        if (tail < 0) return null;
+
+        final int position = (int) (head % mCapacity);
+        final int length = Math.min(maxLength, Math.min((int) (tail - head), mCapacity - position));
+        mConsumerView.limit(position + length).position(position);
+        return mConsumerView;
+    }
+
+    /** Remove bytes obtained through {@link #peek(int, boolean)} from the queue. */
+    public void consume(int length) {
+        mIndices.set(HEAD_INDEX, mIndices.get(HEAD_INDEX) + length);
+        wakeUpWriter();
+    }
+
+    /**
+     * Wait until the queue is non-empty, or just check if not blocking.
+     *
+     * @return the tail, which equals the head if not blocking and the queue is empty, or -1 if closed or if finished
+     * and empty.
+     */
+    private long awaitTail(long head, boolean block) {
+        long tail = mIndices.get(TAIL_INDEX);
+        while (tail == head && mOpen && !mFinished) {
+            if (!block) return tail;
+            // Announce that we are about to park before checking again, so that a concurrent write either sees us
+            // waiting and unparks us, or has published its tail which we see below.
+            mWaitingReader = Thread.currentThread();
+            tail = mIndices.get(TAIL_INDEX);
+            if (tail == head && mOpen && !mFinished) LockSupport.park(this);
+            mWaitingReader = null;
+            tail = mIndices.get(TAIL_INDEX);
         }
-        if (wasFull) notify();
-        return totalRead;
+        return (mOpen && (tail != head || !mFinished)) ? tail : -1;
     }
 
     /**
@@ -63,46 +172,111 @@ final class ByteQueue {
             throw new IllegalArgumentException("length <= 0");
         }
 
-        final int bufferLength = mBuffer.length;
-
-        synchronized (this) {
-            while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
-                }
-                if (wasEmpty) notify();
+        final int bufferLength = mCapacity;
+        long tail = mIndices.get(TAIL_INDEX);
+
+        while (lengthToWrite > 0) {
+            long head = mIndices.get(HEAD_INDEX);
+            while (tail - head == bufferLength && mOpen) {
+                // See awaitTail() for why the waiting thread is set before checking again.
+                mWaitingWriter = Thread.currentThread();
+                head = mIndices.get(HEAD_INDEX);
+                if (tail - head == bufferLength && mOpen) LockSupport.park(this);
+                mWaitingWriter = null;
+                head = mIndices.get(HEAD_INDEX);
             }
+            if (!mOpen) return false;
+
+            final int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - (int) (tail - head));
+            final int position = (int) (tail % bufferLength);
+            final int firstRun = Math.min(bytesToWriteBeforeWaiting, bufferLength - position);
+            copyIn(buffer, offset, position, firstRun);
+            if (firstRun < bytesToWriteBeforeWaiting)
+                copyIn(buffer, offset + firstRun, 0, bytesToWriteBeforeWaiting - firstRun);
+            offset += bytesToWriteBeforeWaiting;
+            lengthToWrite -= bytesToWriteBeforeWaiting;
+
+            tail += bytesToWriteBeforeWaiting;
+            mIndices.set(TAIL_INDEX, tail);
+            wakeUpReader();
         }
         return true;
     }
+
+    /**
+     * Write as much of the specified portion of the provided buffer as fits, without waiting for the consumer to make
+     * room for the rest.
+     *
+     * @return the number of bytes written, which is 0 if the queue is full or closed.
+     */
+    public int offer(byte[] buffer, int offset, int lengthToWrite) {
+        if (!mOpen) return 0;
+        final long tail = mIndices.get(TAIL_INDEX);
+        final int bytesToWrite = Math.min(lengthToWrite, mCapacity - (int) (tail - mIndices.get(HEAD_INDEX)));
+        if (bytesToWrite <= 0) return 0;
+
+        final int position = (int) (tail % mCapacity);
+        final int firstRun = Math.min(bytesToWrite, mCapacity - position);
+        copyIn(buffer, offset, position, firstRun);
+        if (firstRun < bytesToWrite) copyIn(buffer, offset + firstRun, 0, bytesToWrite - firstRun);
+        mIndices.set(TAIL_INDEX, tail + bytesToWrite);
+        wakeUpReader();
+        return bytesToWrite;
+    }
+
+    /**
+     * Read from a non-blocking file descriptor straight into the free space of a direct queue, as much as is available
+     * and fits contiguously. Must only be called from the producer thread.
+     *
+     * @return the number of bytes read, 0 if none were available or the queue is full, or -1 on end of file or error.
+     */
+    public int readFrom(int fileDescriptor) {
+        final long tail = mIndices.get(TAIL_INDEX);
+        final int freeSpace = mCapacity - (int) (tail - mIndices.get(HEAD_INDEX));
+        if (freeSpace == 0) return 0;
+
+        final int position = (int) (tail % mCapacity);
+        final int bytesRead = JNI.read(fileDescriptor, mDirectBuffer, position, Math.min(freeSpace, mCapacity - position));
+        if (bytesRead > 0) {
+            mIndices.set(TAIL_INDEX, tail + bytesRead);
+            wakeUpReader();
+        }
+        return bytesRead;
+    }
+
+    private void copyOut(int position, byte[] destination, int offset, int length) {
+        if (mBuffer != null) {
+            System.arraycopy(mBuffer, position, destination, offset, length);
+        } else {
+            mConsumerView.limit(position + length).position(position);
+            mConsumerView.get(destination, offset, length);
+        }
+    }
+
+    private void copyIn(byte[] source, int offset, int position, int length) {
+        if (mBuffer != null) {
+            System.arraycopy(source, offset, mBuffer, position, length);
+        } else {
+            mProducerView.limit(position + length).position(position);
+            mProducerView.put(source, offset, length);
+        }
+    }
+
+    private void wakeUpReader() {
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            // Clear it so that further writes do not unpark again before the reader has had a chance to run.
+            mWaitingReader = null;
+            LockSupport.unpark(reader);
+        }
+    }
+
+    private void wakeUpWriter() {
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            mWaitingWriter = null;
+            LockSupport.unpark(writer);
+        }
+    }
+
 }
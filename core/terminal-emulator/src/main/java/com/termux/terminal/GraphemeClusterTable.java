@@ -0,0 +1,142 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interns grapheme clusters made of several code points with a positive width, such as emoji ZWJ sequences, flags
+ * and emoji with skin tone modifiers, so that each can be stored in a single cell of a {@link TerminalRow}.
+ * <p>
+ * A cluster is stored in the text of a row as a code point of Supplementary Private Use Area-B, U+100000 to U+10FFFD,
+ * referring to the cluster in this table. Clusters of width 1 use the code points from {@link #FIRST_NARROW} and
+ * clusters of width 2 those from {@link #FIRST_WIDE}, which {@link WcWidth#width(int)} gives width 2, so the rows and
+ * everything measuring them with {@link WcWidth} need no knowledge of clusters. Code points of the area written by
+ * programs are interned as clusters of one code point, so that all code points in the area refer to this table.
+ * <p>
+ * Clusters are never removed, as rows in the transcript may still refer to them. Clusters are interned by the thread
+ * parsing output, while the clusters already interned may be read concurrently, such as when rendering a
+ * {@link TerminalSnapshot}.
+ */
+public final class GraphemeClusterTable {
+
+    public static final int FIRST_NARROW = 0x100000;
+    public static final int FIRST_WIDE = 0x108000;
+    /** The code point after the last one which may refer to a cluster. */
+    static final int END = 0x10FFFE;
+
+    /** The maximum number of code points in a cluster. */
+    static final int MAX_CODE_POINTS = 16;
+
+    private static final int ZERO_WIDTH_JOINER = 0x200D;
+
+    /** The chars of the clusters of each width by index, replaced when growing. */
+    private volatile char[][] mNarrowClusters = new char[16][], mWideClusters = new char[16][];
+    private int mNarrowCount, mWideCount;
+    /** The clusters interned so far, by their code points, with the code point referring to them. */
+    private final HashMap<String, Integer> mCodePoints = new HashMap<>();
+
+    /** If a code point refers to a cluster. */
+    public static boolean isCluster(int codePoint) {
+        return codePoint >= FIRST_NARROW && codePoint < END;
+    }
+
+    /**
+     * Get the chars of the cluster a code point refers to, which must not be modified, or null if there is no such
+     * cluster.
+     */
+    public char[] getChars(int codePoint) {
+        if (codePoint >= FIRST_WIDE) {
+            final char[][] clusters = mWideClusters;
+            final int index = codePoint - FIRST_WIDE;
+            return (index < clusters.length) ? clusters[index] : null;
+        } else {
+            final char[][] clusters = mNarrowClusters;
+            final int index = codePoint - FIRST_NARROW;
+            return (index < clusters.length) ? clusters[index] : null;
+        }
+    }
+
+    /**
+     * Append the chars of a row to a string builder, replacing the code points referring to clusters with their
+     * chars. A cluster is encoded as a surrogate pair with a high surrogate from U+DBC0.
+     */
+    public void appendText(StringBuilder builder, char[] text, int start, int length) {
+        final int end = start + length;
+        int appended = start;
+        for (int i = start; i < end; i++) {
+            final char c = text[i];
+            if (c >= 0xDBC0 && c <= 0xDBFF && i + 1 < end) {
+                final char[] chars = getChars(Character.toCodePoint(c, text[i + 1]));
+                if (chars != null) {
+                    builder.append(text, appended, i - appended).append(chars);
+                    appended = i + 2;
+                }
+                i++;
+            }
+        }
+        builder.append(text, appended, end - appended);
+    }
+
+    /**
+     * Get the code point referring to a cluster, interning it if needed, or -1 if it is not interned and there is no
+     * room left for clusters of its width.
+     */
+    int intern(int[] codePoints, int count, int width) {
+        final String key = new String(codePoints, 0, count);
+        final Integer existing = mCodePoints.get(key);
+        if (existing != null) return existing;
+
+        final int codePoint;
+        if (width == 2) {
+            if (FIRST_WIDE + mWideCount == END) return -1;
+            mWideClusters = add(mWideClusters, mWideCount, key);
+            codePoint = FIRST_WIDE + mWideCount++;
+        } else {
+            if (FIRST_NARROW + mNarrowCount == FIRST_WIDE) return -1;
+            mNarrowClusters = add(mNarrowClusters, mNarrowCount, key);
+            codePoint = FIRST_NARROW + mNarrowCount++;
+        }
+        mCodePoints.put(key, codePoint);
+        return codePoint;
+    }
+
+    /** Add a cluster to an array, returning the array grown if needed, to be written back to publish the cluster. */
+    private static char[][] add(char[][] clusters, int count, String cluster) {
+        if (count == clusters.length) clusters = Arrays.copyOf(clusters, 2 * count);
+        clusters[count] = cluster.toCharArray();
+        return clusters;
+    }
+
+    /**
+     * If a code point with a positive width continues a grapheme cluster instead of starting a new one. This covers
+     * the rules of Unicode Standard Annex #29 for emoji: emoji modifiers, emoji joined by a zero width joiner, and pairs
+     * of regional indicators forming flags.
+     *
+     * @param cluster the code points of the cluster so far, starting with one with a positive width
+     * @param length  the number of code points in the cluster
+     */
+    static boolean extendsCluster(int[] cluster, int length, int codePoint) {
+        if (isEmojiModifier(codePoint)) return isPictographic(cluster[0]);
+        if (isRegionalIndicator(codePoint)) return length == 1 && isRegionalIndicator(cluster[0]);
+        return length > 1 && cluster[length - 1] == ZERO_WIDTH_JOINER && isPictographic(cluster[0])
+            && isPictographic(codePoint);
+    }
+
+    private static boolean isEmojiModifier(int codePoint) {
+        return codePoint >= 0x1F3FB && codePoint <= 0x1F3FF;
+    }
+
+    private static boolean isRegionalIndicator(int codePoint) {
+        return codePoint >= 0x1F1E6 && codePoint <= 0x1F1FF;
+    }
+
+    /** An approximation of the Extended_Pictographic property by the blocks where such code points are. */
+    private static boolean isPictographic(int codePoint) {
+        return (codePoint >= 0x1F000 && codePoint <= 0x1FAFF) || (codePoint >= 0x2300 && codePoint <= 0x23FF)
+            || (codePoint >= 0x2600 && codePoint <= 0x27BF) || (codePoint >= 0x2B00 && codePoint <= 0x2BFF)
+            || codePoint == 0x00A9 || codePoint == 0x00AE || codePoint == 0x203C || codePoint == 0x2049
+            || codePoint == 0x2122 || codePoint == 0x2139 || (codePoint >= 0x2194 && codePoint <= 0x21AA)
+            || codePoint == 0x3030 || codePoint == 0x303D || codePoint == 0x3297 || codePoint == 0x3299;
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
+
 /**
  * Native methods for creating and managing pseudoterminal subprocesses. C code is in jni/termux.c.
  */
@@ -20,8 +22,8 @@ final class JNI {
      * @param args      An array of arguments to the command
      * @param envVars   An array of strings of the form "VAR=value" to be added to the environment of the process
      * @param processId A one-element array to which the process ID of the started process will be written.
-     * @return the file descriptor resulting from opening /dev/ptmx master device. The sub process will have opened the
-     * slave device counterpart (/dev/pts/$N) and have it as stdint, stdout and stderr.
+     * @return the file descriptor resulting from opening /dev/ptmx master device in non-blocking mode. The sub process
+     * will have opened the slave device counterpart (/dev/pts/$N) and have it as stdint, stdout and stderr.
      */
     public static native int createSubprocess(String cmd, String cwd, String[] args, String[] envVars, int[] processId, int rows, int columns, int cellWidth, int cellHeight);
 
@@ -38,4 +40,54 @@ final class JNI {
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
+    /** The operations and events of epoll(7), which are the same on all Linux architectures. */
+    public static final int EPOLL_CTL_ADD = 1;
+    public static final int EPOLL_CTL_DEL = 2;
+    public static final int EPOLL_CTL_MOD = 3;
+    public static final int EPOLLIN = 0x001;
+    public static final int EPOLLOUT = 0x004;
+    public static final int EPOLLERR = 0x008;
+    public static final int EPOLLHUP = 0x010;
+
+    /** Create an epoll instance through the epoll_create1(2) system call. */
+    public static native int createEpoll();
+
+    /**
+     * Add, modify or remove the events of interest for a file descriptor through the epoll_ctl(2) system call.
+     *
+     * @return 0 on success, or the negated errno.
+     */
+    public static native int epollControl(int epollFileDescriptor, int operation, int fileDescriptor, int events);
+
+    /**
+     * Wait for events through the epoll_wait(2) system call.
+     *
+     * @param events Filled with pairs of file descriptor and ready events, returning at most half its length.
+     * @return the number of ready file descriptors, which is 0 if interrupted or on timeout.
+     */
+    public static native int epollWait(int epollFileDescriptor, int[] events, int timeoutMillis);
+
+    /**
+     * Obtain a file descriptor referring to a process through the pidfd_open(2) system call, which becomes readable
+     * when the process exits. Must only be called from Android 12, as the system call is not allowed by the seccomp
+     * filter of earlier versions, which kills the calling process.
+     *
+     * @return the file descriptor, or -1 if not supported by the kernel.
+     */
+    public static native int openPidFileDescriptor(int processId);
+
+    /**
+     * Read from a non-blocking file descriptor straight into a direct buffer, ignoring its position and limit.
+     *
+     * @return the number of bytes read, 0 if no data is available right now, or -1 on end of file or error.
+     */
+    public static native int read(int fileDescriptor, ByteBuffer directBuffer, int offset, int length);
+
+    /**
+     * Write at most 4096 bytes to a non-blocking file descriptor.
+     *
+     * @return the number of bytes written, 0 if the file descriptor is not writable right now, or -1 on error.
+     */
+    public static native int write(int fileDescriptor, byte[] buffer, int offset, int length);
+
 }
@@ -0,0 +1,144 @@
+package com.termux.terminal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pasted text, see {@link TerminalEmulator#paste(String)}, filtered and encoded to UTF-8 a chunk of
+ * {@link #CHUNK_BYTES} at a time as the process reads it, so that a paste in progress takes no more memory than a
+ * chunk besides the text itself.
+ * <p>
+ * Escape and C1 control characters are removed, newlines and CRLF are replaced with carriage returns, unpaired
+ * surrogates are encoded as '?' as {@link String#getBytes(java.nio.charset.Charset)} does, and the paste is wrapped in
+ * the bracketed paste markers if requested.
+ */
+final class PasteEncoder {
+
+    static final int CHUNK_BYTES = 4096;
+
+    private static final byte[] BRACKETED_PASTE_START = {27, '[', '2', '0', '0', '~'};
+    private static final byte[] BRACKETED_PASTE_END = {27, '[', '2', '0', '1', '~'};
+
+    private final String mText;
+    private final boolean mBracketed;
+    /** The number of bytes of the whole encoded paste. */
+    private final long mLength;
+    /** The last encoded chunk, between the position and limit of which are the bytes not written yet. */
+    private final ByteBuffer mChunk = ByteBuffer.allocate(CHUNK_BYTES);
+
+    /** Where encoding continues in {@link #mText}, and the state of the filtering there. */
+    private int mTextOffset;
+    private boolean mAfterCarriageReturn;
+    private char mHighSurrogate;
+    private boolean mStartEncoded, mEndEncoded;
+
+    PasteEncoder(String text, boolean bracketed) {
+        mText = text;
+        mBracketed = bracketed;
+        // Encode it all once to get the exact length, so that the paste can be rejected as a whole up front.
+        long length = 0;
+        while (encodeChunk()) length += mChunk.remaining();
+        mLength = length;
+        mTextOffset = 0;
+        mAfterCarriageReturn = mStartEncoded = mEndEncoded = false;
+        mHighSurrogate = 0;
+        mChunk.limit(0);
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Get the encoded bytes which have not been written yet, between the position and limit of the returned buffer,
+     * which the caller advances the position of as it writes them. The next chunk is encoded once all of the last one
+     * has been written.
+     *
+     * @return the bytes, or null once all of the paste has been written.
+     */
+    ByteBuffer getBytes() {
+        if (!mChunk.hasRemaining() && !encodeChunk()) return null;
+        return mChunk;
+    }
+
+    /** Encode the next chunk into {@link #mChunk}, returning false if all of the paste had already been encoded. */
+    private boolean encodeChunk() {
+        final byte[] chunk = mChunk.array();
+        int length = 0;
+        if (!mStartEncoded) {
+            if (mBracketed) length = copy(BRACKETED_PASTE_START, chunk, length);
+            mStartEncoded = true;
+        }
+        // A surrogate pair takes up to 4 bytes, after a '?' for an unpaired high surrogate before it.
+        while (mTextOffset < mText.length() && length <= chunk.length - 5) {
+            char c = mText.charAt(mTextOffset++);
+            // Always remove escape key and C1 control characters [0x80,0x9F]:
+            if (c == 27 || (c >= 0x80 && c <= 0x9F)) continue;
+            // Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r), also when only removed characters
+            // were between the \r and \n:
+            if (c == '\n') {
+                if (mAfterCarriageReturn) {
+                    mAfterCarriageReturn = false;
+                    continue;
+                }
+                c = '\r';
+            } else {
+                mAfterCarriageReturn = (c == '\r');
+            }
+
+            // Unpaired surrogates are encoded as '?', as String.getBytes() does:
+            if (Character.isHighSurrogate(c)) {
+                if (mHighSurrogate != 0) chunk[length++] = '?';
+                mHighSurrogate = c;
+                continue;
+            }
+            int codePoint = c;
+            if (mHighSurrogate != 0) {
+                if (Character.isLowSurrogate(c)) {
+                    codePoint = Character.toCodePoint(mHighSurrogate, c);
+                } else {
+                    chunk[length++] = '?';
+                }
+                mHighSurrogate = 0;
+            } else if (Character.isLowSurrogate(c)) {
+                codePoint = '?';
+            }
+            length = encodeUtf8(codePoint, chunk, length);
+        }
+        // The end takes a '?' for a high surrogate at the end of the text and the end marker:
+        if (mTextOffset == mText.length() && !mEndEncoded && length <= chunk.length - 1 - BRACKETED_PASTE_END.length) {
+            if (mHighSurrogate != 0) chunk[length++] = '?';
+            mHighSurrogate = 0;
+            if (mBracketed) length = copy(BRACKETED_PASTE_END, chunk, length);
+            mEndEncoded = true;
+        }
+        mChunk.clear();
+        mChunk.limit(length);
+        return length > 0;
+    }
+
+    private static int copy(byte[] bytes, byte[] buffer, int offset) {
+        System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /** Encode a code point to UTF-8 into a buffer at an offset, returning the offset after it. */
+    private static int encodeUtf8(int codePoint, byte[] buffer, int offset) {
+        if (codePoint < 0x80) {
+            buffer[offset++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[offset++] = (byte) (0b11000000 | (codePoint >> 6));
+            buffer[offset++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        } else if (codePoint < 0x10000) {
+            buffer[offset++] = (byte) (0b11100000 | (codePoint >> 12));
+            buffer[offset++] = (byte) (0b10000000 | ((codePoint >> 6) & 0b111111));
+            buffer[offset++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        } else {
+            buffer[offset++] = (byte) (0b11110000 | (codePoint >> 18));
+            buffer[offset++] = (byte) (0b10000000 | ((codePoint >> 12) & 0b111111));
+            buffer[offset++] = (byte) (0b10000000 | ((codePoint >> 6) & 0b111111));
+            buffer[offset++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        }
+        return offset;
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 /**
@@ -7,6 +9,12 @@ import java.util.Arrays;
  * history.
  * <p>
  * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * <p>
+ * Rows which scroll off the screen into the transcript are made compact, see {@link TerminalRow#compact()}, and are
+ * expanded again by {@link #allocateFullLineIfNecessary(int)} when read. Screen rows are never compact.
+ * <p>
+ * Rows which are dropped from the transcript to make room are appended to a {@link TranscriptArchive}, if one has
+ * been set with {@link #setArchive(TranscriptArchive)}, and remain part of the transcript from there.
  */
 public final class TerminalBuffer {
 
@@ -15,10 +23,37 @@ public final class TerminalBuffer {
     int mTotalRows;
     /** The number of rows and columns visible on the screen. */
     int mScreenRows, mColumns;
-    /** The number of rows kept in history. */
+    /** The number of rows kept in history in {@link #mLines}, not including those in {@link #mArchive}. */
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /**
+     * One bit per screen row, set if the row has changed since the last call to {@link #clearDamage()}. Used by the
+     * view to only redraw the rows that changed. Rows in the transcript are not tracked.
+     */
+    private long[] mDamagedRows;
+    /**
+     * The transcript rows which have been expanded to be read, oldest first. At most {@link #mScreenRows} times
+     * {@link #MAX_EXPANDED_TRANSCRIPT_SCREENS} are kept expanded, so that scrolling back through the transcript does
+     * not inflate all of it again, while the rows shown in a view do not need to be expanded on every frame.
+     */
+    private final ArrayDeque<TerminalRow> mExpandedTranscriptRows = new ArrayDeque<>();
+    private static final int MAX_EXPANDED_TRANSCRIPT_SCREENS = 2;
+    /** Where rows dropped from the transcript are kept, or null if they are lost. */
+    private TranscriptArchive mArchive;
+    /**
+     * Rows from before a resize which have not been reflowed to the new number of columns yet, oldest first, which
+     * come before the transcript. Only the first {@link #mUnreflowedRowCount} are used, and they are not part of
+     * {@link #getActiveTranscriptRows()} until reflowed by {@link #reflowTranscript(long)}.
+     */
+    private TerminalRow[] mUnreflowedRows;
+    private int mUnreflowedRowCount;
+    /** The style of the blank cells of rows reflowed by {@link #reflowTranscript(long)}, as of the resize. */
+    private long mUnreflowedStyle;
+    /** The table of the styles used by the rows of this buffer. */
+    final TextStyleTable mStyleTable;
+    /** The table of the grapheme clusters stored in the rows of this buffer. */
+    final GraphemeClusterTable mGraphemeClusters;
 
     /**
      * Create a transcript screen.
@@ -29,10 +64,22 @@ public final class TerminalBuffer {
      *                   the top of the screen.
      */
     public TerminalBuffer(int columns, int totalRows, int screenRows) {
+        this(columns, totalRows, screenRows, new TextStyleTable(), new GraphemeClusterTable());
+    }
+
+    /**
+     * Create a transcript screen whose rows intern their styles and grapheme clusters in tables, which may be shared
+     * with other buffers.
+     */
+    public TerminalBuffer(int columns, int totalRows, int screenRows, TextStyleTable styleTable,
+                          GraphemeClusterTable graphemeClusters) {
         mColumns = columns;
+        mStyleTable = styleTable;
+        mGraphemeClusters = graphemeClusters;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new TerminalRow[totalRows];
+        mDamagedRows = new long[(screenRows + 63) / 64];
 
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
     }
@@ -73,7 +120,7 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            TerminalRow lineObject = allocateFullLineIfNecessary(externalToInternalRow(row));
             int x1Index = lineObject.findStartOfColumn(x1);
             int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
@@ -96,7 +143,7 @@ public final class TerminalBuffer {
 
             int len = lastPrintingCharIndex - x1Index + 1;
             if (lastPrintingCharIndex != -1 && len > 0)
-                builder.append(line, x1Index, len);
+                mGraphemeClusters.appendText(builder, line, x1Index, len);
 
             boolean lineFillsWidth = lastPrintingCharIndex == x2Index - 1;
             if ((!joinBackLines || !rowLineWrap) && (!joinFullLines || !lineFillsWidth)
@@ -144,12 +191,34 @@ public final class TerminalBuffer {
         return text.substring(x1 + 1, x2);
     }
 
+    /** Keep the rows that are dropped from the transcript in an archive, instead of losing them. */
+    void setArchive(TranscriptArchive archive) {
+        mArchive = archive;
+    }
+
+    /** Drop the rows in the archive, if any, and stop archiving rows. */
+    void releaseArchive() {
+        if (mArchive == null) return;
+        mArchive.clear();
+        mArchive = null;
+    }
+
+    /** The number of rows in history, including those in the archive. */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + getArchivedRows();
+    }
+
+    private int getArchivedRows() {
+        return (mArchive == null) ? 0 : mArchive.getRowCount();
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /** The table of the grapheme clusters which code points in the text of the rows may refer to. */
+    public GraphemeClusterTable getGraphemeClusters() {
+        return mGraphemeClusters;
     }
 
     /**
@@ -168,14 +237,20 @@ public final class TerminalBuffer {
      * [ 0 (visible screen starts here) ]  ↔  [ mScreenFirstRow                         ]
      * [ ...                            ]     [ ...                                     ]
      * [ mScreenRows-1                  ]     [ mScreenFirstRow + mScreenRows-1         ]
+     *
+     * - Rows in the archive come before the transcript in the external coordinate system, from
+     *   -getActiveTranscriptRows(), and map to the internal rows from mTotalRows, the oldest row first. These may only
+     *   be passed to allocateFullLineIfNecessary(), which reads them back from the archive.
      * </pre>
      *
      * @param externalRow a row in the external coordinate system.
      * @return The row corresponding to the input argument in the private coordinate system.
      */
     public int externalToInternalRow(int externalRow) {
-        if (externalRow < -mActiveTranscriptRows || externalRow > mScreenRows)
-            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + mActiveTranscriptRows);
+        if (externalRow < -getActiveTranscriptRows() || externalRow > mScreenRows)
+            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + mActiveTranscriptRows + ", archivedRows=" + getArchivedRows());
+        if (externalRow < -mActiveTranscriptRows)
+            return mTotalRows + getArchivedRows() + mActiveTranscriptRows + externalRow;
         final int internalRow = mScreenFirstRow + externalRow;
         return (internalRow < 0) ? (mTotalRows + internalRow) : (internalRow % mTotalRows);
     }
@@ -185,7 +260,7 @@ public final class TerminalBuffer {
     }
 
     public boolean getLineWrap(int row) {
-        return mLines[externalToInternalRow(row)].mLineWrap;
+        return allocateFullLineIfNecessary(externalToInternalRow(row)).mLineWrap;
     }
 
     public void clearLineWrap(int row) {
@@ -201,6 +276,18 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        resize(newColumns, newRows, newTotalRows, cursor, currentStyle, altScreen, false);
+    }
+
+    /**
+     * Resize like {@link #resize(int, int, int, int[], long, boolean)}, optionally only reflowing the rows needed for
+     * what is shown on the screen when the number of columns changes, so that the time taken does not grow with the
+     * transcript. The older rows are then left to {@link #reflowTranscript(long)}, until which the transcript only has
+     * the rows reflowed so far.
+     */
+    public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen,
+                       boolean deferTranscriptReflow) {
+        mDamagedRows = new long[(newRows + 63) / 64];
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -215,6 +302,8 @@ public final class TerminalBuffer {
                     }
                 }
             } else if (shiftDownOfTopRow < 0) {
+                // Rows left to be reflowed may be needed to fill the screen:
+                if (mUnreflowedRowCount > 0 && -shiftDownOfTopRow > mActiveTranscriptRows) reflowTranscript(Long.MAX_VALUE);
                 // Negative shift down = expanding. Only move screen up if there is transcript to show:
                 int actualShift = Math.max(shiftDownOfTopRow, -mActiveTranscriptRows);
                 if (shiftDownOfTopRow != actualShift) {
@@ -230,111 +319,141 @@ public final class TerminalBuffer {
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
-        } else {
-            // Copy away old state and update new:
-            TerminalRow[] oldLines = mLines;
-            mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
 
+            // Keep screen rows expanded and transcript rows compact as rows move between them.
+            for (int i = 0; i < mScreenRows; i++) {
+                TerminalRow line = mLines[externalToInternalRow(i)];
+                if (line != null) line.expand();
+            }
+            for (int i = 1; i <= Math.min(shiftDownOfTopRow, mActiveTranscriptRows); i++) {
+                TerminalRow line = mLines[externalToInternalRow(-i)];
+                if (line != null) line.compact();
+            }
+        } else {
+            // Copy away old state, with the rows left to reflow by an earlier resize coming before the transcript:
             final int oldActiveTranscriptRows = mActiveTranscriptRows;
-            final int oldScreenFirstRow = mScreenFirstRow;
             final int oldScreenRows = mScreenRows;
-            final int oldTotalRows = mTotalRows;
+            final int firstOldScreenRow = mUnreflowedRowCount + oldActiveTranscriptRows;
+            final TerminalRow[] oldRows = (mUnreflowedRows == null) ? new TerminalRow[firstOldScreenRow + oldScreenRows]
+                : Arrays.copyOf(mUnreflowedRows, firstOldScreenRow + oldScreenRows);
+            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++)
+                oldRows[firstOldScreenRow + externalOldRow] = mLines[externalToInternalRow(externalOldRow)];
+            // The unused rows of the circular buffer can be used again right away:
+            for (int i = oldScreenRows + oldActiveTranscriptRows; i < mTotalRows; i++)
+                TerminalRowPool.recycle(mLines[(mScreenFirstRow + i) % mTotalRows]);
+
+            final int oldCursorRow = firstOldScreenRow + cursor[1];
+            final int oldCursorColumn = cursor[0];
             mTotalRows = newTotalRows;
             mScreenRows = newRows;
-            mActiveTranscriptRows = mScreenFirstRow = 0;
             mColumns = newColumns;
+            mUnreflowedRows = oldRows;
+            mUnreflowedStyle = currentStyle;
+
+            // When deferring, start with the line shown at the top of the screen, and take in earlier lines until the
+            // screen has been filled, after which the rows before do not change what is shown on the screen.
+            int firstRow = deferTranscriptReflow ? firstOldScreenRow : 0;
+            while (true) {
+                firstRow = findLineStart(oldRows, firstRow);
+                mUnreflowedRowCount = firstRow;
+                mLines = new TerminalRow[newTotalRows];
+                // Only the screen rows, the transcript rows are created as lines are scrolled into it.
+                for (int i = 0; i < newRows; i++)
+                    mLines[i] = TerminalRowPool.obtain(newColumns, currentStyle, mStyleTable);
+                mActiveTranscriptRows = mScreenFirstRow = 0;
+
+                final int lastRow = reflowRows(oldRows, firstRow, oldRows.length, oldCursorRow, oldCursorColumn, cursor, currentStyle);
+                // The rows before may have been dropped to make room, see scrollDownLines().
+                if (mUnreflowedRowCount == 0 || mActiveTranscriptRows > 0 || lastRow == mScreenRows - 1) break;
+                for (TerminalRow line : mLines)
+                    TerminalRowPool.recycle(line);
+                firstRow = Math.max(0, firstRow - newRows);
+            }
 
-            int newCursorRow = -1;
-            int newCursorColumn = -1;
-            int oldCursorRow = cursor[1];
-            int oldCursorColumn = cursor[0];
-            boolean newCursorPlaced = false;
-
-            int currentOutputExternalRow = 0;
-            int currentOutputExternalColumn = 0;
-
-            // Loop over every character in the initial state.
-            // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
-            // keep track how many blank lines we have skipped if we later on find a non-blank line.
-            int skippedBlankLines = 0;
-            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-                // Do what externalToInternalRow() does but for the old state:
-                int internalOldRow = oldScreenFirstRow + externalOldRow;
-                internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-                TerminalRow oldLine = oldLines[internalOldRow];
-                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
-                // The cursor may only be on a non-null line, which we should not skip:
-                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
-                    skippedBlankLines++;
-                    continue;
-                } else if (skippedBlankLines > 0) {
-                    // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
-                    for (int i = 0; i < skippedBlankLines; i++) {
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
-                    skippedBlankLines = 0;
-                }
+            // The old rows which have been reflowed can be used again:
+            for (int i = firstRow; i < oldRows.length; i++) {
+                TerminalRowPool.recycle(oldRows[i]);
+                oldRows[i] = null;
+            }
+            if (mUnreflowedRowCount == 0) mUnreflowedRows = null;
+        }
 
-                int lastNonSpaceIndex = 0;
-                boolean justToCursor = false;
-                if (cursorAtThisRow || oldLine.mLineWrap) {
-                    // Take the whole line, either because of cursor on it, or if line wrapping.
-                    lastNonSpaceIndex = oldLine.getSpaceUsed();
-                    if (cursorAtThisRow) justToCursor = true;
-                } else {
-                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
-                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
-                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
-                            lastNonSpaceIndex = i + 1;
-                }
+        // Handle cursor scrolling off screen:
+        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
 
-                int currentOldCol = 0;
-                long styleAtCol = 0;
-                for (int i = 0; i < lastNonSpaceIndex; i++) {
-                    // Note that looping over java character, not cells.
-                    char c = oldLine.mText[i];
-                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
-                    int displayWidth = WcWidth.width(codePoint);
-                    // Use the last style if this is a zero-width character:
-                    if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
-
-                    // Line wrap as necessary:
-                    if (currentOutputExternalColumn + displayWidth > mColumns) {
-                        setLineWrap(currentOutputExternalRow);
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            if (newCursorPlaced) newCursorRow--;
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
+        // Rows may have moved in or out of the transcript, or been dropped.
+        mExpandedTranscriptRows.clear();
+        markAllDamaged();
+    }
 
-                    int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
-                    int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
-                    setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
-
-                    if (displayWidth > 0) {
-                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
-                            newCursorColumn = currentOutputExternalColumn;
-                            newCursorRow = currentOutputExternalRow;
-                            newCursorPlaced = true;
-                        }
-                        currentOldCol += displayWidth;
-                        currentOutputExternalColumn += displayWidth;
-                        if (justToCursor && newCursorPlaced) break;
+    /**
+     * Write the text of rows, which may have any number of columns, into this buffer from the top left of a blank screen,
+     * wrapping lines to the number of columns of this buffer and scrolling rows into the transcript as needed.
+     *
+     * @param rows      the rows, of which those from start to end (exclusive) are written.
+     * @param cursorRow the index in rows of the row with the cursor, or -1 if none.
+     * @param cursor    set to the new (column, row) cursor location, or -1 if the cursor has not been placed.
+     * @return the screen row which was last written to.
+     */
+    private int reflowRows(TerminalRow[] rows, int start, int end, int cursorRow, int cursorColumn, int[] cursor, long currentStyle) {
+        int newCursorRow = -1;
+        int newCursorColumn = -1;
+        boolean newCursorPlaced = false;
+
+        int currentOutputExternalRow = 0;
+        int currentOutputExternalColumn = 0;
+
+        // Loop over every character in the initial state.
+        // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
+        // keep track how many blank lines we have skipped if we later on find a non-blank line.
+        int skippedBlankLines = 0;
+        for (int oldRow = start; oldRow < end; oldRow++) {
+            TerminalRow oldLine = rows[oldRow];
+            if (oldLine != null) oldLine.expand();
+            boolean cursorAtThisRow = oldRow == cursorRow;
+            // The cursor may only be on a non-null line, which we should not skip:
+            if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                skippedBlankLines++;
+                continue;
+            } else if (skippedBlankLines > 0) {
+                // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
+                for (int i = 0; i < skippedBlankLines; i++) {
+                    if (currentOutputExternalRow == mScreenRows - 1) {
+                        scrollDownOneLine(0, mScreenRows, currentStyle);
+                    } else {
+                        currentOutputExternalRow++;
                     }
+                    currentOutputExternalColumn = 0;
                 }
-                // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
-                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
+                skippedBlankLines = 0;
+            }
+
+            int lastNonSpaceIndex = 0;
+            boolean justToCursor = false;
+            if (cursorAtThisRow || oldLine.mLineWrap) {
+                // Take the whole line, either because of cursor on it, or if line wrapping.
+                lastNonSpaceIndex = oldLine.getSpaceUsed();
+                if (cursorAtThisRow) justToCursor = true;
+            } else {
+                for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                    // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+                    if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                        lastNonSpaceIndex = i + 1;
+            }
+
+            int currentOldCol = 0;
+            long styleAtCol = 0;
+            for (int i = 0; i < lastNonSpaceIndex; i++) {
+                // Note that looping over java character, not cells.
+                char c = oldLine.mText[i];
+                int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                int displayWidth = WcWidth.width(codePoint);
+                // Use the last style if this is a zero-width character:
+                if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                // Line wrap as necessary:
+                if (currentOutputExternalColumn + displayWidth > mColumns) {
+                    setLineWrap(currentOutputExternalRow);
                     if (currentOutputExternalRow == mScreenRows - 1) {
                         if (newCursorPlaced) newCursorRow--;
                         scrollDownOneLine(0, mScreenRows, currentStyle);
@@ -343,14 +462,140 @@ public final class TerminalBuffer {
                     }
                     currentOutputExternalColumn = 0;
                 }
+
+                int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
+                int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
+                setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
+
+                if (displayWidth > 0) {
+                    if (cursorRow == oldRow && cursorColumn == currentOldCol) {
+                        newCursorColumn = currentOutputExternalColumn;
+                        newCursorRow = currentOutputExternalRow;
+                        newCursorPlaced = true;
+                    }
+                    currentOldCol += displayWidth;
+                    currentOutputExternalColumn += displayWidth;
+                    if (justToCursor && newCursorPlaced) break;
+                }
             }
+            // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
+            if (oldRow != (end - 1) && !oldLine.mLineWrap) {
+                if (currentOutputExternalRow == mScreenRows - 1) {
+                    if (newCursorPlaced) newCursorRow--;
+                    scrollDownOneLine(0, mScreenRows, currentStyle);
+                } else {
+                    currentOutputExternalRow++;
+                }
+                currentOutputExternalColumn = 0;
+            }
+        }
+
+        cursor[0] = newCursorColumn;
+        cursor[1] = newCursorRow;
+        return currentOutputExternalRow;
+    }
+
+    /**
+     * Find the first of the rows making up the lines which the specified row is part of, after which the rows are
+     * reflowed the same regardless of the rows before. That is the row after a non-blank row ending a line, as blank
+     * rows and the ends of wrapped lines depend on the rows after them, see {@link #reflowRows}.
+     */
+    private static int findLineStart(TerminalRow[] rows, int row) {
+        while (row > 0 && !endsLine(rows[row - 1])) row--;
+        return row;
+    }
+
+    private static boolean endsLine(TerminalRow row) {
+        // The text of a compact row has no trailing spaces.
+        return row != null && !row.mLineWrap && (row.isCompact() ? row.mText.length > 0 : !row.isBlank());
+    }
+
+    /** If rows are left to be reflowed by {@link #reflowTranscript(long)} after a resize. */
+    public boolean hasUnreflowedRows() {
+        return mUnreflowedRowCount > 0;
+    }
 
-            cursor[0] = newCursorColumn;
-            cursor[1] = newCursorRow;
+    /**
+     * Reflow rows left by a resize deferring the reflow of the transcript, newest first, adding them to the top of the
+     * transcript, until all have been reflowed or the budget has been used.
+     *
+     * @return if rows are still left to be reflowed.
+     */
+    public boolean reflowTranscript(long budgetNanos) {
+        final long startNanos = System.nanoTime();
+        while (mUnreflowedRowCount > 0) {
+            final int start = findLineStart(mUnreflowedRows, mUnreflowedRowCount - 1);
+            final TerminalRow[] lines = reflowUnreflowedRows(start, mUnreflowedRowCount);
+            mUnreflowedRowCount = start;
+
+            int row = lines.length - 1;
+            for (; row >= 0 && mActiveTranscriptRows < mTotalRows - mScreenRows; row--) {
+                int internalRow = mScreenFirstRow - mActiveTranscriptRows - 1;
+                if (internalRow < 0) internalRow += mTotalRows;
+                TerminalRowPool.recycle(mLines[internalRow]);
+                lines[row].compact();
+                mLines[internalRow] = lines[row];
+                mActiveTranscriptRows++;
+            }
+            if (row >= 0) {
+                // The transcript is full, so the rest is older than all rows in it.
+                dropUnreflowedRows();
+                for (int i = 0; i <= row; i++) {
+                    if (mArchive != null) {
+                        mArchive.append(lines[i]);
+                    } else {
+                        TerminalRowPool.recycle(lines[i]);
+                    }
+                }
+            }
+
+            if (System.nanoTime() - startNanos >= budgetNanos) break;
         }
+        if (mUnreflowedRowCount == 0) mUnreflowedRows = null;
+        return mUnreflowedRowCount > 0;
+    }
 
-        // Handle cursor scrolling off screen:
-        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+    /**
+     * Reflow the unreflowed rows from start to end (exclusive), which must make up whole lines, see
+     * {@link #findLineStart(TerminalRow[], int)}, into new rows as resize() would have, and release the old rows.
+     */
+    private TerminalRow[] reflowUnreflowedRows(int start, int end) {
+        // Reflow into the screen of a buffer tall enough to not scroll.
+        int maxRows = 1;
+        for (int i = start; i < end; i++)
+            maxRows += (mUnreflowedRows[i] == null) ? 1 : 2 + 2 * mUnreflowedRows[i].getSpaceUsed() / mColumns;
+        final TerminalBuffer buffer = new TerminalBuffer(mColumns, maxRows, maxRows, mStyleTable, mGraphemeClusters);
+        if (mUnreflowedStyle != TextStyle.NORMAL) buffer.blockSet(0, 0, mColumns, maxRows, ' ', mUnreflowedStyle);
+        final int lastRow = buffer.reflowRows(mUnreflowedRows, start, end, -1, -1, new int[2], mUnreflowedStyle);
+
+        for (int i = start; i < end; i++) {
+            TerminalRowPool.recycle(mUnreflowedRows[i]);
+            mUnreflowedRows[i] = null;
+        }
+        for (int i = lastRow + 1; i < maxRows; i++)
+            TerminalRowPool.recycle(buffer.mLines[i]);
+        return Arrays.copyOf(buffer.mLines, lastRow + 1);
+    }
+
+    /**
+     * Drop the rows left to be reflowed, as they would have been dropped from the transcript by now, or reflow them into
+     * the archive if there is one.
+     */
+    private void dropUnreflowedRows() {
+        final int count = mUnreflowedRowCount;
+        mUnreflowedRowCount = 0;
+        for (int start = 0; start < count; ) {
+            int end = start + 1;
+            if (mArchive != null) {
+                while (end < count && !endsLine(mUnreflowedRows[end - 1])) end++;
+                for (TerminalRow line : reflowUnreflowedRows(start, end))
+                    mArchive.append(line);
+            } else {
+                TerminalRowPool.recycle(mUnreflowedRows[start]);
+            }
+            start = end;
+        }
+        mUnreflowedRows = null;
     }
 
     /**
@@ -360,18 +605,21 @@ public final class TerminalBuffer {
      * @param srcInternal The first line to be copied.
      * @param len         The number of lines to be copied.
      */
-    private void blockCopyLinesDown(int srcInternal, int len) {
+    /** Move the len rows starting at srcInternal down by lines rows, and the lines rows below them to above them. */
+    private void blockCopyLinesDown(int srcInternal, int len, int lines) {
         if (len == 0) return;
         int totalRows = mTotalRows;
 
-        int start = len - 1;
-        // Save away line to be overwritten:
-        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
+        // Save away lines to be overwritten:
+        TerminalRow[] linesToBeOverWritten = new TerminalRow[lines];
+        for (int i = 0; i < lines; i++)
+            linesToBeOverWritten[i] = mLines[(srcInternal + len + i) % totalRows];
         // Do the copy from bottom to top.
-        for (int i = start; i >= 0; --i)
-            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
-        // Put back overwritten line, now above the block:
-        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+        for (int i = len - 1; i >= 0; --i)
+            mLines[(srcInternal + i + lines) % totalRows] = mLines[(srcInternal + i) % totalRows];
+        // Put back overwritten lines, now above the block:
+        for (int i = 0; i < lines; i++)
+            mLines[(srcInternal + i) % totalRows] = linesToBeOverWritten[i];
     }
 
     /**
@@ -382,27 +630,113 @@ public final class TerminalBuffer {
      * @param style        the style for the newly exposed line.
      */
     public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
+        scrollDownLines(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down several lines at once, with the same result as calling
+     * {@link #scrollDownOneLine(int, int, long)} that many times, but moving the rows in the circular buffer once.
+     *
+     * @param lines the number of lines to scroll, at most bottomMargin - topMargin, and if more than one at most the
+     *              number of rows the transcript can hold.
+     */
+    public void scrollDownLines(int topMargin, int bottomMargin, int lines, long style) {
         if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
             throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
+        final int maxTranscriptRows = mTotalRows - mScreenRows;
+        if (lines < 1 || lines > bottomMargin - topMargin || (lines > 1 && lines > maxTranscriptRows))
+            throw new IllegalArgumentException("lines=" + lines + ", topMargin=" + topMargin + ", bottomMargin=" + bottomMargin);
+
+        // Rows left to be reflowed are older than the transcript, so they go before any transcript row:
+        if (mUnreflowedRowCount > 0 && mActiveTranscriptRows + lines > maxTranscriptRows) dropUnreflowedRows();
+        // Archive the oldest transcript rows if they are about to be reused for the blank rows below:
+        if (mArchive != null) {
+            final int reusedRows = Math.min(mActiveTranscriptRows, mActiveTranscriptRows + lines - maxTranscriptRows);
+            for (int i = 0; i < reusedRows; i++) {
+                TerminalRow oldestRow = mLines[externalToInternalRow(i - mActiveTranscriptRows)];
+                if (oldestRow != null) mArchive.append(oldestRow);
+            }
+        }
 
-        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
-        blockCopyLinesDown(mScreenFirstRow, topMargin);
-        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
+        // Copy the fixed topMargin lines down so that they remain on screen in same position:
+        blockCopyLinesDown(mScreenFirstRow, topMargin, lines);
+        // Copy the fixed mScreenRows-bottomMargin lines down so that they remain on screen in same
         // position:
-        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
+        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin, lines);
 
         // Update the screen location in the ring buffer:
-        mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScreenFirstRow = (mScreenFirstRow + lines) % mTotalRows;
         // Note that the history has grown if not already full:
-        if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
+        mActiveTranscriptRows = Math.min(mActiveTranscriptRows + lines, maxTranscriptRows);
+
+        // Blank the newly revealed lines above the bottom margin:
+        for (int i = 0; i < lines; i++) {
+            int blankRow = externalToInternalRow(bottomMargin - lines + i);
+            if (mActiveTranscriptRows > 0 && mLines[externalToInternalRow(i - lines)] != null) {
+                // Replace the row scrolled into the transcript with a compact copy and reuse it for the blank row.
+                // What was there is either unused or the oldest transcript row that has just been scrolled out, which
+                // is reused for the compact copy if compact, or else has been expanded and goes to the pool.
+                int scrolledOutRow = externalToInternalRow(i - lines);
+                TerminalRow line = mLines[scrolledOutRow];
+                TerminalRow evictedRow = mLines[blankRow];
+                if (evictedRow != null && (!evictedRow.isCompact() || evictedRow.getColumns() != mColumns)) {
+                    if (mExpandedTranscriptRows.removeFirstOccurrence(evictedRow)) TerminalRowPool.recycle(evictedRow);
+                    evictedRow = null;
+                }
+                mLines[scrolledOutRow] = line.compactCopy(evictedRow);
+                mLines[blankRow] = line;
+                line.clear(style);
+                line.mLineWrap = false;
+            } else if (mLines[blankRow] == null) {
+                mLines[blankRow] = TerminalRowPool.obtain(mColumns, style, mStyleTable);
+            } else {
+                mLines[blankRow].clear(style);
+            }
+        }
+
+        // Every row between the margins now shows the content of a row below it:
+        markRowsDamaged(topMargin, bottomMargin);
+    }
 
-        // Blank the newly revealed line above the bottom margin:
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
+    /**
+     * Scroll the screen rows from topRow to bottomRow (exclusive) up by lines rows, or down by -lines rows if negative,
+     * by moving the rows in the circular buffer instead of copying their cells. The rows revealed at the bottom, or top
+     * if scrolling down, are blanked with the specified style. Unlike {@link #scrollDownLines(int, int, int, long)},
+     * nothing is moved into the transcript.
+     */
+    public void scrollRegion(int topRow, int bottomRow, int lines, long style) {
+        if (topRow < 0 || bottomRow > mScreenRows)
+            throw new IllegalArgumentException("topRow=" + topRow + ", bottomRow=" + bottomRow + ", mScreenRows=" + mScreenRows);
+        final int distance = Math.min(Math.abs(lines), bottomRow - topRow);
+        if (distance <= 0) return;
+
+        // The rows scrolled out of the region are reused for the revealed rows:
+        final TerminalRow[] revealedRows = new TerminalRow[distance];
+        if (lines > 0) {
+            for (int i = 0; i < distance; i++)
+                revealedRows[i] = mLines[externalToInternalRow(topRow + i)];
+            for (int row = topRow; row < bottomRow - distance; row++)
+                mLines[externalToInternalRow(row)] = mLines[externalToInternalRow(row + distance)];
+            for (int i = 0; i < distance; i++)
+                mLines[externalToInternalRow(bottomRow - distance + i)] = revealedRows[i];
         } else {
-            mLines[blankRow].clear(style);
+            for (int i = 0; i < distance; i++)
+                revealedRows[i] = mLines[externalToInternalRow(bottomRow - distance + i)];
+            for (int row = bottomRow - 1; row >= topRow + distance; row--)
+                mLines[externalToInternalRow(row)] = mLines[externalToInternalRow(row - distance)];
+            for (int i = 0; i < distance; i++)
+                mLines[externalToInternalRow(topRow + i)] = revealedRows[i];
+        }
+        for (int i = 0; i < distance; i++) {
+            final int row = externalToInternalRow((lines > 0) ? bottomRow - distance + i : topRow + i);
+            if (mLines[row] == null) {
+                mLines[row] = TerminalRowPool.obtain(mColumns, style, mStyleTable);
+            } else {
+                mLines[row].clear(style);
+                mLines[row].mLineWrap = false;
+            }
         }
+        markRowsDamaged(topRow, bottomRow);
     }
 
     /**
@@ -427,6 +761,7 @@ public final class TerminalBuffer {
             TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
             allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
         }
+        markRowsDamaged(dy, dy + h);
     }
 
     /**
@@ -444,17 +779,58 @@ public final class TerminalBuffer {
                 setChar(sx + x, sy + y, val, style);
     }
 
+    /**
+     * Get the row at the specified internal row, creating it if it does not exist and expanding it if compact. Rows in
+     * the archive are read back from it, see {@link #externalToInternalRow(int)}, and must not be modified.
+     */
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        if (row >= mTotalRows) return mArchive.getRow(row - mTotalRows, mColumns, mStyleTable);
+        TerminalRow line = mLines[row];
+        if (line == null) return mLines[row] = TerminalRowPool.obtain(mColumns, 0, mStyleTable);
+        if (line.isCompact()) {
+            line.expand();
+            // Compact rows are only in the transcript, so this is one that is being shown, selected or searched.
+            mExpandedTranscriptRows.addLast(line);
+            if (mExpandedTranscriptRows.size() > MAX_EXPANDED_TRANSCRIPT_SCREENS * mScreenRows)
+                mExpandedTranscriptRows.removeFirst().compact();
+        }
+        return line;
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
         if (row  < 0 || row >= mScreenRows || column < 0 || column >= mColumns)
             throw new IllegalArgumentException("TerminalBuffer.setChar(): row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowDamaged(row);
         row = externalToInternalRow(row);
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /**
+     * Write a run of printable ASCII characters, all of display width 1, on a single row.
+     *
+     * @param column the column of the first character
+     * @param row    the external row to write to
+     * @param chars  the characters to write, all in the range [32, 126]
+     * @param start  the index in chars of the first character
+     * @param end    the index in chars after the last character
+     */
+    public void setAsciiChars(int column, int row, byte[] chars, int start, int end, long style) {
+        if (row < 0 || row >= mScreenRows || column < 0 || column + end - start > mColumns)
+            throw new IllegalArgumentException("TerminalBuffer.setAsciiChars(): row=" + row + ", column=" + column + ", count=" + (end - start) + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowDamaged(row);
+        row = externalToInternalRow(row);
+        allocateFullLineIfNecessary(row).setAsciiChars(column, chars, start, end, style);
+    }
+
+    /** Like {@link #setAsciiChars(int, int, byte[], int, int, long)}, but with absolute indices in a buffer. */
+    public void setAsciiChars(int column, int row, ByteBuffer chars, int start, int end, long style) {
+        if (row < 0 || row >= mScreenRows || column < 0 || column + end - start > mColumns)
+            throw new IllegalArgumentException("TerminalBuffer.setAsciiChars(): row=" + row + ", column=" + column + ", count=" + (end - start) + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowDamaged(row);
+        row = externalToInternalRow(row);
+        allocateFullLineIfNecessary(row).setAsciiChars(column, chars, start, end, style);
+    }
+
     public long getStyleAt(int externalRow, int column) {
         return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
     }
@@ -479,12 +855,77 @@ public final class TerminalBuffer {
                 } else {
                     effect &= ~bits;
                 }
-                line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
+                line.setStyle(x, TextStyle.encode(foreColor, backColor, effect));
             }
         }
+        markRowsDamaged(top, bottom);
+    }
+
+    /** Mark a screen row as changed. */
+    void markRowDamaged(int row) {
+        mDamagedRows[row >> 6] |= 1L << row;
+    }
+
+    /** Mark the screen rows from fromRow (inclusive) to toRow (exclusive) as changed. */
+    void markRowsDamaged(int fromRow, int toRow) {
+        fromRow = Math.max(fromRow, 0);
+        toRow = Math.min(toRow, mScreenRows);
+        for (int row = fromRow; row < toRow; row++)
+            mDamagedRows[row >> 6] |= 1L << row;
+    }
+
+    /** Mark the whole screen as changed, for changes which are not tied to the content of specific rows. */
+    public void markAllDamaged() {
+        markRowsDamaged(0, mScreenRows);
+    }
+
+    /** If any screen row has changed since the last call to {@link #clearDamage()}. */
+    public boolean hasDamage() {
+        for (long word : mDamagedRows)
+            if (word != 0) return true;
+        return false;
+    }
+
+    /** If the specified screen row has changed since the last call to {@link #clearDamage()}. */
+    public boolean isRowDamaged(int row) {
+        return row >= 0 && row < mScreenRows && (mDamagedRows[row >> 6] & (1L << row)) != 0;
+    }
+
+    /** The first changed screen row, or -1 if there is no damage. */
+    public int getFirstDamagedRow() {
+        for (int i = 0; i < mDamagedRows.length; i++)
+            if (mDamagedRows[i] != 0) return (i << 6) + Long.numberOfTrailingZeros(mDamagedRows[i]);
+        return -1;
+    }
+
+    /** The last changed screen row, or -1 if there is no damage. */
+    public int getLastDamagedRow() {
+        for (int i = mDamagedRows.length - 1; i >= 0; i--)
+            if (mDamagedRows[i] != 0) return (i << 6) + 63 - Long.numberOfLeadingZeros(mDamagedRows[i]);
+        return -1;
+    }
+
+    /** Forget about changed rows, typically after they have been redrawn. */
+    public void clearDamage() {
+        Arrays.fill(mDamagedRows, 0);
+    }
+
+    /** Put the rows of this buffer, which must no longer be used, into the {@link TerminalRowPool}. */
+    void recycleRows() {
+        for (TerminalRow line : mLines)
+            TerminalRowPool.recycle(line);
+        Arrays.fill(mLines, null);
+        mExpandedTranscriptRows.clear();
+        for (int i = 0; i < mUnreflowedRowCount; i++)
+            TerminalRowPool.recycle(mUnreflowedRows[i]);
+        mUnreflowedRows = null;
+        mUnreflowedRowCount = 0;
     }
 
     public void clearTranscript() {
+        // Rows which have been expanded are not compact and can be used again:
+        for (TerminalRow line : mExpandedTranscriptRows)
+            TerminalRowPool.recycle(line);
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
             Arrays.fill(mLines, 0, mScreenFirstRow, null);
@@ -492,6 +933,10 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        mExpandedTranscriptRows.clear();
+        mUnreflowedRows = null;
+        mUnreflowedRowCount = 0;
+        if (mArchive != null) mArchive.clear();
     }
 
 }
@@ -2,11 +2,13 @@ package com.termux.terminal;
 
 import android.util.Base64;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Stack;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Renders text into a screen. Contains all the terminal-specific knowledge and state. Emulates a subset of the X Window
@@ -87,6 +89,86 @@ public final class TerminalEmulator {
     private static final int ESC_CSI_UNSUPPORTED_PARAMETER_BYTE = 22;
     /** Escape processing: ESC [ <parameter bytes> <intermediate bytes> */
     private static final int ESC_CSI_UNSUPPORTED_INTERMEDIATE_BYTE = 23;
+    /** The number of escape states, one more than the largest ESC_* constant. */
+    private static final int ESC_STATE_COUNT = 24;
+
+    /** Parser action: Do nothing. */
+    private static final byte ACTION_IGNORE = 0;
+    /** Parser action: Output a graphic character with {@link #emitCodePoint(int)}. */
+    private static final byte ACTION_PRINT = 1;
+    /** Parser action: Execute a C0 control character with {@link #executeControl(int)}. */
+    private static final byte ACTION_EXECUTE = 2;
+    /** Parser action: Collect a parameter digit or separator with {@link #parseArg(int)}. */
+    private static final byte ACTION_PARAM = 3;
+    /** Parser action: Start a new escape sequence on ESC. */
+    private static final byte ACTION_ESCAPE = 4;
+    /** Parser action: Abort the escape sequence on CAN or SUB. */
+    private static final byte ACTION_CANCEL = 5;
+    /** Parser action: Pass BEL or ESC to {@link #doOsc(int)}, which may end the OSC string. */
+    private static final byte ACTION_OSC = 6;
+    /** Parser action: Consume a code point with {@link #doApc(int)}. */
+    private static final byte ACTION_APC = 7;
+    /** Parser action: Consume a code point with {@link #doApcEscape(int)}. */
+    private static final byte ACTION_APC_ESCAPE = 8;
+    /** Parser action: Let the handler of the current escape state deal with it in {@link #doEscapeState(int)}. */
+    private static final byte ACTION_DISPATCH = 9;
+
+    /** The column in {@link #PARSER_ACTIONS} used for all code points outside of 7-bit ASCII. */
+    private static final int PARSER_ACTION_COLUMN_NON_ASCII = 128;
+    /** The number of columns per escape state in {@link #PARSER_ACTIONS}. */
+    private static final int PARSER_ACTION_COLUMNS = PARSER_ACTION_COLUMN_NON_ASCII + 1;
+
+    /**
+     * The parser transition table, in the spirit of https://vt100.net/emu/dec_ansi_parser, holding the ACTION_* to
+     * take for a code point in a given escape state at index {@code state * PARSER_ACTION_COLUMNS + column}, where
+     * column is the code point itself if it is 7-bit and {@link #PARSER_ACTION_COLUMN_NON_ASCII} otherwise. This way
+     * {@link #processCodePoint(int)} only needs a single array lookup to decide what to do.
+     */
+    private static final byte[] PARSER_ACTIONS = createParserActions();
+
+    private static byte[] createParserActions() {
+        byte[] actions = new byte[ESC_STATE_COUNT * PARSER_ACTION_COLUMNS];
+        for (int state = 0; state < ESC_STATE_COUNT; state++)
+            for (int column = 0; column < PARSER_ACTION_COLUMNS; column++)
+                actions[state * PARSER_ACTION_COLUMNS + column] = getParserAction(state, column);
+        return actions;
+    }
+
+    private static byte getParserAction(int state, int b) {
+        // The Application Program-Control (APC) string might be arbitrary non-printable characters, so handle that early.
+        if (state == ESC_APC) return ACTION_APC;
+        if (state == ESC_APC_ESCAPE) return ACTION_APC_ESCAPE;
+
+        switch (b) {
+            case 0: // Null character (NUL, ^@). Do nothing.
+                return ACTION_IGNORE;
+            case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
+                return (state == ESC_OSC) ? ACTION_OSC : ACTION_EXECUTE;
+            case 8: // Backspace (BS, ^H).
+            case 9: // Horizontal tab (HT, \t).
+            case 10: // Line feed (LF, \n).
+            case 11: // Vertical tab (VT, \v).
+            case 12: // Form feed (FF, \f).
+            case 13: // Carriage return (CR, \r).
+            case 14: // Shift Out (Ctrl-N, SO).
+            case 15: // Shift In (Ctrl-O, SI).
+                return ACTION_EXECUTE;
+            case 24: // CAN.
+            case 26: // SUB.
+                return (state == ESC_NONE) ? ACTION_IGNORE : ACTION_CANCEL;
+            case 27: // ESC
+                // Starts an escape sequence unless we're parsing a string.
+                // XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
+                if (state == ESC_P) return ACTION_IGNORE;
+                return (state == ESC_OSC) ? ACTION_OSC : ACTION_ESCAPE;
+            default:
+                if (state == ESC_NONE) return (b >= 32) ? ACTION_PRINT : ACTION_IGNORE;
+                // Parameter bytes are handled the same way by doCsi(), doCsiQuestionMark() and doCsiBiggerThan().
+                boolean csiArgs = state == ESC_CSI || state == ESC_CSI_QUESTIONMARK || state == ESC_CSI_BIGGERTHAN;
+                if (csiArgs && ((b >= '0' && b <= '9') || b == ';' || b == ':')) return ACTION_PARAM;
+                return ACTION_DISPATCH;
+        }
+    }
 
     /** The number of parameter arguments including colon separated sub-parameters. */
     private static final int MAX_ESCAPE_PARAMETERS = 32;
@@ -129,6 +211,24 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /**
+     * DECSET 2027 - grapheme cluster mode, https://github.com/contour-terminal/terminal-unicode-core: emoji sequences
+     * forming one grapheme cluster, such as ZWJ sequences and flags, take a single cell. Off by default, as programs
+     * laying out text with wcwidth(3) expect each of their code points to take its own width.
+     */
+    private static final int DECSET_BIT_GRAPHEME_CLUSTERING = 1 << 13;
+    /**
+     * DECSET 2026 - synchronized output, https://gist.github.com/christianparpart/d8a62cc1ab659194337d73e399004036:
+     * set by programs while redrawing the screen so that half finished frames are not shown, see
+     * {@link #isSynchronizedOutput()}.
+     */
+    private static final int DECSET_BIT_SYNCHRONIZED_OUTPUT = 1 << 14;
+
+    /**
+     * The longest time in milliseconds synchronized output holds back screen updates, so that the screen is still
+     * updated if a program never ends it, such as after being killed in the middle of a frame.
+     */
+    public static final int SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS = 150;
 
 
     private String mTitle;
@@ -162,17 +262,27 @@ public final class TerminalEmulator {
 
 
     /** The normal screen buffer. Stores the characters that appear on the screen of the emulated terminal. */
-    private final TerminalBuffer mMainBuffer;
+    final TerminalBuffer mMainBuffer;
     /**
      * The alternate screen buffer, exactly as large as the display and contains no additional saved lines (so that when
      * the alternate screen buffer is active, you cannot scroll back to view saved lines).
      * <p>
      * See http://www.xfree86.org/current/ctlseqs.html#The%20Alternate%20Screen%20Buffer
+     * <p>
+     * Null until a program first switches to it, as most sessions never run a full screen program, and released again
+     * once the main buffer has been used for a while, see {@link #releaseIdleAlternateBuffer()}.
      */
-    final TerminalBuffer mAltBuffer;
+    TerminalBuffer mAltBuffer;
     /** The current screen buffer, pointing at either {@link #mMainBuffer} or {@link #mAltBuffer}. */
     private TerminalBuffer mScreen;
 
+    /** How long the main buffer must have been used before {@link #releaseIdleAlternateBuffer()}, changed by tests. */
+    long mAltBufferReleaseDelayMillis = 60_000;
+    /** When the main buffer was switched back to from the alternate buffer. */
+    private long mMainBufferActiveSinceNanos;
+    /** If resizing leaves most of the transcript to {@link #reflowTranscript(long)}. */
+    private boolean mIncrementalReflow;
+
     /** The terminal session this emulator is bound to. */
     private final TerminalOutput mSession;
 
@@ -268,6 +378,28 @@ public final class TerminalEmulator {
     private byte mUtf8ToFollow, mUtf8Index;
     private final byte[] mUtf8InputBuffer = new byte[4];
     private int mLastEmittedCodePoint = -1;
+    /**
+     * The code points of the grapheme cluster last written in {@link #DECSET_BIT_GRAPHEME_CLUSTERING} mode, which
+     * following code points may extend, and the cell where it is. The length is 0 if there is no cluster to extend,
+     * such as after a control or escape sequence.
+     */
+    private final int[] mClusterCodePoints = new int[GraphemeClusterTable.MAX_CODE_POINTS];
+    private int mClusterLength, mClusterColumn, mClusterRow;
+    /** The {@link System#nanoTime()} when {@link #DECSET_BIT_SYNCHRONIZED_OUTPUT} was last set. */
+    private long mSynchronizedOutputStartNanos;
+
+    /**
+     * The output being processed by {@link #append(ByteBuffer)} or {@link #append(byte[], int)}, in an array or a direct
+     * buffer, and the index of the byte after the one being processed, so that {@link #doLinefeed()} can look ahead
+     * for line feeds to jump scroll, see {@link #countPendingLinefeeds(int)}. Both are null outside of appending.
+     */
+    private byte[] mInputArray;
+    private ByteBuffer mInputBuffer;
+    private int mInputIndex, mInputEnd;
+
+    /** The lines scrolled since the start of the second being measured by {@link #updateScrollRate()}. */
+    private int mLinesScrolledSinceRateStart;
+    private long mScrollRateStartNanos;
 
     public final TerminalColors mColors = new TerminalColors();
 
@@ -319,6 +451,10 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2026:
+                return DECSET_BIT_SYNCHRONIZED_OUTPUT;
+            case 2027:
+                return DECSET_BIT_GRAPHEME_CLUSTERING;
             default:
                 return -1;
             // throw new IllegalArgumentException("Unsupported decset: " + decsetBit);
@@ -328,7 +464,6 @@ public final class TerminalEmulator {
     public TerminalEmulator(TerminalOutput session, int columns, int rows, int cellWidthPixels, int cellHeightPixels, Integer transcriptRows, TerminalSessionClient client) {
         mSession = session;
         mScreen = mMainBuffer = new TerminalBuffer(columns, getTerminalTranscriptRows(transcriptRows), rows);
-        mAltBuffer = new TerminalBuffer(columns, rows, rows);
         mClient = client;
         mRows = rows;
         mColumns = columns;
@@ -386,6 +521,7 @@ public final class TerminalEmulator {
     public void resize(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         this.mCellWidthPixels = cellWidthPixels;
         this.mCellHeightPixels = cellHeightPixels;
+        mClusterLength = 0;
 
         if (mRows == rows && mColumns == columns) {
             return;
@@ -416,7 +552,8 @@ public final class TerminalEmulator {
     private void resizeScreen() {
         final int[] cursor = {mCursorCol, mCursorRow};
         int newTotalRows = (mScreen == mAltBuffer) ? mRows : mMainBuffer.mTotalRows;
-        mScreen.resize(mColumns, mRows, newTotalRows, cursor, getStyle(), isAlternateBufferActive());
+        mScreen.resize(mColumns, mRows, newTotalRows, cursor, getStyle(), isAlternateBufferActive(),
+            mIncrementalReflow && mScreen == mMainBuffer);
         mCursorCol = cursor[0];
         mCursorRow = cursor[1];
     }
@@ -486,6 +623,16 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE) || isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT);
     }
 
+    /**
+     * If a program is in the middle of updating the screen in synchronized output mode (DECSET 2026), so that the
+     * screen should not be shown until it is done. False once the mode has been set for longer than
+     * {@link #SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS}, even if it has not been reset.
+     */
+    public boolean isSynchronizedOutput() {
+        return isDecsetInternalBitSet(DECSET_BIT_SYNCHRONIZED_OUTPUT)
+            && System.nanoTime() - mSynchronizedOutputStartNanos < TimeUnit.MILLISECONDS.toNanos(SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS);
+    }
+
     private void setDefaultTabStops() {
         for (int i = 0; i < mColumns; i++)
             mTabStop[i] = (i & 7) == 0 && i != 0;
@@ -498,8 +645,126 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        append(buffer, 0, length);
+    }
+
+    /**
+     * Accept bytes (typically from the pseudo-teletype) and process them, parsing them in place from the buffer between
+     * its position and limit. The position of the buffer is advanced to its limit.
+     */
+    public void append(ByteBuffer buffer) {
+        final int start = buffer.position();
+        final int end = buffer.limit();
+        if (buffer.hasArray()) {
+            append(buffer.array(), buffer.arrayOffset() + start, buffer.arrayOffset() + end);
+        } else {
+            mInputBuffer = buffer;
+            mInputEnd = end;
+            int i = start;
+            while (i < end) {
+                if (canEmitAsciiRun()) {
+                    int runEnd = i;
+                    while (runEnd < end && isPrintableAscii(buffer.get(runEnd))) runEnd++;
+                    if (runEnd > i) {
+                        emitAsciiRun(null, buffer, i, runEnd);
+                        i = runEnd;
+                        continue;
+                    }
+                }
+                mInputIndex = i + 1;
+                processByte(buffer.get(i++));
+            }
+            mInputBuffer = null;
+            updateScrollRate();
+        }
+        buffer.position(end);
+    }
+
+    private void append(byte[] buffer, int start, int end) {
+        mInputArray = buffer;
+        mInputEnd = end;
+        int i = start;
+        while (i < end) {
+            if (canEmitAsciiRun()) {
+                // Fast path for runs of printable 7-bit characters, which is what most output consists of.
+                int runEnd = i;
+                while (runEnd < end && isPrintableAscii(buffer[runEnd])) runEnd++;
+                if (runEnd > i) {
+                    emitAsciiRun(buffer, null, i, runEnd);
+                    i = runEnd;
+                    continue;
+                }
+            }
+            mInputIndex = i + 1;
+            processByte(buffer[i++]);
+        }
+        mInputArray = null;
+        updateScrollRate();
+    }
+
+    private static boolean isPrintableAscii(byte b) {
+        return b >= 32 && b < 127;
+    }
+
+    /**
+     * If printable ASCII would be emitted as-is, one cell per byte, so that {@link #emitAsciiRun(byte[], ByteBuffer, int, int)}
+     * may be used instead of going through {@link #processByte(byte)} for each byte.
+     */
+    private boolean canEmitAsciiRun() {
+        return mUtf8ToFollow == 0 && mEscapeState == ESC_NONE && !mInsertMode
+            && !(mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1);
+    }
+
+    /**
+     * Emit a run of printable ASCII characters, with the same result as calling {@link #emitCodePoint(int)} for each
+     * of them, but writing directly into the row a line at a time.
+     *
+     * @param array        the bytes to emit, all in the range [32, 126], or null if in directBuffer
+     * @param directBuffer the bytes to emit if not in an array, read without changing its position
+     * @param start        the index of the first byte to emit
+     * @param end          the index after the last byte to emit
+     */
+    private void emitAsciiRun(byte[] array, ByteBuffer directBuffer, int start, int end) {
+        mLastEmittedCodePoint = (array != null) ? array[end - 1] : directBuffer.get(end - 1);
+        // No printable ASCII character extends a grapheme cluster.
+        mClusterLength = 0;
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+
+        while (start < end) {
+            final boolean cursorInLastColumn = mCursorCol == mRightMargin - 1;
+            if (autoWrap && cursorInLastColumn && mAboutToAutoWrap) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            } else if (!autoWrap && cursorInLastColumn) {
+                // Without autowrap every remaining character overwrites the last column, so only the final one matters.
+                start = end - 1;
+            }
+
+            if (mCursorCol >= mRightMargin) {
+                // Cursor outside of the right margin, let the general path handle it.
+                emitCodePoint((array != null) ? array[start] : directBuffer.get(start));
+                start++;
+                continue;
+            }
+
+            final int count = Math.min(end - start, mRightMargin - mCursorCol);
+            if (array != null) {
+                mScreen.setAsciiChars(mCursorCol, mCursorRow, array, start, start + count, style);
+            } else {
+                mScreen.setAsciiChars(mCursorCol, mCursorRow, directBuffer, start, start + count, style);
+            }
+            start += count;
+
+            final int lastColumnWritten = mCursorCol + count - 1;
+            if (autoWrap) mAboutToAutoWrap = (lastColumnWritten == mRightMargin - 1);
+            mCursorCol = Math.min(lastColumnWritten + 1, mRightMargin - 1);
+        }
     }
 
     private void processByte(byte byteToProcess) {
@@ -568,23 +833,47 @@ public final class TerminalEmulator {
     }
 
     public void processCodePoint(int b) {
-        // The Application Program-Control (APC) string might be arbitrary non-printable characters, so handle that early.
-        if (mEscapeState == ESC_APC) {
-            doApc(b);
-            return;
-        } else if (mEscapeState == ESC_APC_ESCAPE) {
-            doApcEscape(b);
-            return;
+        switch (PARSER_ACTIONS[mEscapeState * PARSER_ACTION_COLUMNS + ((b >>> 7) == 0 ? b : PARSER_ACTION_COLUMN_NON_ASCII)]) {
+            case ACTION_IGNORE:
+                break;
+            case ACTION_PRINT:
+                emitCodePoint(b);
+                break;
+            case ACTION_EXECUTE:
+                executeControl(b);
+                break;
+            case ACTION_PARAM:
+                parseArg(b);
+                break;
+            case ACTION_ESCAPE:
+                startEscapeSequence();
+                break;
+            case ACTION_CANCEL:
+                // FIXME: What is this??
+                mEscapeState = ESC_NONE;
+                emitCodePoint(127);
+                break;
+            case ACTION_OSC:
+                doOsc(b);
+                break;
+            case ACTION_APC:
+                doApc(b);
+                break;
+            case ACTION_APC_ESCAPE:
+                doApcEscape(b);
+                break;
+            case ACTION_DISPATCH:
+                doEscapeState(b);
+                break;
         }
+    }
 
+    /** Execute a C0 control character which has an effect outside of escape sequences. */
+    private void executeControl(int b) {
+        mClusterLength = 0;
         switch (b) {
-            case 0: // Null character (NUL, ^@). Do nothing.
-                break;
-            case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
-                if (mEscapeState == ESC_OSC)
-                    doOsc(b);
-                else
-                    mSession.onBell();
+            case 7: // Bell (BEL, ^G, \a).
+                mSession.onBell();
                 break;
             case 8: // Backspace (BS, ^H).
                 if (mLeftMargin == mCursorCol) {
@@ -622,296 +911,276 @@ public final class TerminalEmulator {
             case 15: // Shift In (Ctrl-O, SI) → Switch to Standard Character Set. This invokes the G0 character set.
                 mUseLineDrawingUsesG0 = true;
                 break;
-            case 24: // CAN.
-            case 26: // SUB.
-                if (mEscapeState != ESC_NONE) {
-                    // FIXME: What is this??
-                    mEscapeState = ESC_NONE;
-                    emitCodePoint(127);
-                }
+        }
+    }
+
+    /** Process a code point continuing the escape sequence in {@link #mEscapeState}. */
+    private void doEscapeState(int b) {
+        mContinueSequence = false;
+        switch (mEscapeState) {
+            case ESC:
+                doEsc(b);
                 break;
-            case 27: // ESC
-                // Starts an escape sequence unless we're parsing a string
-                if (mEscapeState == ESC_P) {
-                    // XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
-                    return;
-                } else if (mEscapeState != ESC_OSC) {
-                    startEscapeSequence();
+            case ESC_POUND:
+                doEscPound(b);
+                break;
+            case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG0 = (b == '0');
+                break;
+            case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG1 = (b == '0');
+                break;
+            case ESC_CSI:
+                doCsi(b);
+                break;
+            case ESC_CSI_UNSUPPORTED_PARAMETER_BYTE:
+            case ESC_CSI_UNSUPPORTED_INTERMEDIATE_BYTE:
+                doCsiUnsupportedParameterOrIntermediateByte(b);
+                break;
+            case ESC_CSI_EXCLAMATION:
+                if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
+                    reset();
                 } else {
-                    doOsc(b);
+                    unknownSequence(b);
                 }
                 break;
-            default:
-                mContinueSequence = false;
-                switch (mEscapeState) {
-                    case ESC_NONE:
-                        if (b >= 32) emitCodePoint(b);
-                        break;
-                    case ESC:
-                        doEsc(b);
-                        break;
-                    case ESC_POUND:
-                        doEscPound(b);
+            case ESC_CSI_QUESTIONMARK:
+                doCsiQuestionMark(b);
+                break;
+            case ESC_CSI_BIGGERTHAN:
+                doCsiBiggerThan(b);
+                break;
+            case ESC_CSI_DOLLAR:
+                boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
+                int effectiveTopMargin = originMode ? mTopMargin : 0;
+                int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
+                int effectiveLeftMargin = originMode ? mLeftMargin : 0;
+                int effectiveRightMargin = originMode ? mRightMargin : mColumns;
+                switch (b) {
+                    case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
+                        // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
+                        // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
+                        // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
+                        // DECCRA is not affected by the page margins.
+                        // The copied text takes on the line attributes of the destination area.
+                        // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
+                        // is treated as the width or height of that page.
+                        // If the destination area is partially off the page, then DECCRA clips the off-page data.
+                        // DECCRA does not change the active cursor position."
+                        int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // Inclusive, so do not subtract one:
+                        int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
+                        int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
+                        // int sourcePage = getArg(4, 1, true);
+                        int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // int destinationPage = getArg(7, 1, true);
+                        int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
+                        int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
+                        mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
                         break;
-                    case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG0 = (b == '0');
-                        break;
-                    case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG1 = (b == '0');
-                        break;
-                    case ESC_CSI:
-                        doCsi(b);
-                        break;
-                    case ESC_CSI_UNSUPPORTED_PARAMETER_BYTE:
-                    case ESC_CSI_UNSUPPORTED_INTERMEDIATE_BYTE:
-                        doCsiUnsupportedParameterOrIntermediateByte(b);
-                        break;
-                    case ESC_CSI_EXCLAMATION:
-                        if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
-                            reset();
-                        } else {
-                            unknownSequence(b);
+                    case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
+                        // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
+                    case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
+                        // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
+                    case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
+                        // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
+                        boolean erase = b != 'x';
+                        boolean selective = b == '{';
+                        // Only DECSERA keeps visual attributes, DECERA does not:
+                        boolean keepVisualAttributes = erase && selective;
+                        int argIndex = 0;
+                        int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
+                        // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
+                        // terminal ignores the DECFRA command":
+                        if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
+                            // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
+                            // is treated as the width or height of that page."
+                            int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
+                            int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
+                            int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
+                            int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
+                            long style = getStyle();
+                            for (int row = top - 1; row < bottom; row++)
+                                for (int col = left - 1; col < right; col++)
+                                    if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+                                        mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
                         }
                         break;
-                    case ESC_CSI_QUESTIONMARK:
-                        doCsiQuestionMark(b);
-                        break;
-                    case ESC_CSI_BIGGERTHAN:
-                        doCsiBiggerThan(b);
-                        break;
-                    case ESC_CSI_DOLLAR:
-                        boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
-                        int effectiveTopMargin = originMode ? mTopMargin : 0;
-                        int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
-                        int effectiveLeftMargin = originMode ? mLeftMargin : 0;
-                        int effectiveRightMargin = originMode ? mRightMargin : mColumns;
-                        switch (b) {
-                            case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
-                                // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
-                                // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
-                                // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
-                                // DECCRA is not affected by the page margins.
-                                // The copied text takes on the line attributes of the destination area.
-                                // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
-                                // is treated as the width or height of that page.
-                                // If the destination area is partially off the page, then DECCRA clips the off-page data.
-                                // DECCRA does not change the active cursor position."
-                                int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // Inclusive, so do not subtract one:
-                                int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
-                                int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
-                                // int sourcePage = getArg(4, 1, true);
-                                int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // int destinationPage = getArg(7, 1, true);
-                                int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
-                                int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
-                                mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
-                                break;
-                            case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
-                                // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
-                            case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
-                                // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
-                            case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
-                                // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
-                                boolean erase = b != 'x';
-                                boolean selective = b == '{';
-                                // Only DECSERA keeps visual attributes, DECERA does not:
-                                boolean keepVisualAttributes = erase && selective;
-                                int argIndex = 0;
-                                int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
-                                // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
-                                // terminal ignores the DECFRA command":
-                                if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
-                                    // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
-                                    // is treated as the width or height of that page."
-                                    int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
-                                    int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
-                                    int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
-                                    int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
-                                    long style = getStyle();
-                                    for (int row = top - 1; row < bottom; row++)
-                                        for (int col = left - 1; col < right; col++)
-                                            if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                                                mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                    case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
+                        // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
+                    case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
+                        // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
+                        boolean reverse = b == 't';
+                        // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
+                        int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
+                        int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
+                        int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
+                        int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
+                        if (mArgIndex >= 4) {
+                            if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
+                            for (int i = 4; i <= mArgIndex; i++) {
+                                int bits = 0;
+                                boolean setOrClear = true; // True if setting, false if clearing.
+                                switch (getArg(i, 0, false)) {
+                                    case 0: // Attributes off (no bold, no underline, no blink, positive image).
+                                        bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
+                                            | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
+                                        if (!reverse) setOrClear = false;
+                                        break;
+                                    case 1: // Bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        break;
+                                    case 4: // Underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        break;
+                                    case 5: // Blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        break;
+                                    case 7: // Negative image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        break;
+                                    case 22: // No bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        setOrClear = false;
+                                        break;
+                                    case 24: // No underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        setOrClear = false;
+                                        break;
+                                    case 25: // No blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        setOrClear = false;
+                                        break;
+                                    case 27: // Positive image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        setOrClear = false;
+                                        break;
                                 }
-                                break;
-                            case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
-                                // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
-                            case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
-                                // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
-                                boolean reverse = b == 't';
-                                // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
-                                int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
-                                int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
-                                int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
-                                int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
-                                if (mArgIndex >= 4) {
-                                    if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
-                                    for (int i = 4; i <= mArgIndex; i++) {
-                                        int bits = 0;
-                                        boolean setOrClear = true; // True if setting, false if clearing.
-                                        switch (getArg(i, 0, false)) {
-                                            case 0: // Attributes off (no bold, no underline, no blink, positive image).
-                                                bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
-                                                    | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
-                                                if (!reverse) setOrClear = false;
-                                                break;
-                                            case 1: // Bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                break;
-                                            case 4: // Underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                break;
-                                            case 5: // Blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                break;
-                                            case 7: // Negative image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                break;
-                                            case 22: // No bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                setOrClear = false;
-                                                break;
-                                            case 24: // No underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                setOrClear = false;
-                                                break;
-                                            case 25: // No blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                setOrClear = false;
-                                                break;
-                                            case 27: // Positive image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                setOrClear = false;
-                                                break;
-                                        }
-                                        if (reverse && !setOrClear) {
-                                            // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
-                                        } else {
-                                            mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
-                                                effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
-                                        }
-                                    }
+                                if (reverse && !setOrClear) {
+                                    // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
                                 } else {
-                                    // Do nothing.
+                                    mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
+                                        effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
                                 }
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_DOUBLE_QUOTE:
-                        if (b == 'q') {
-                            // http://www.vt100.net/docs/vt510-rm/DECSCA
-                            int arg = getArg0(0);
-                            if (arg == 0 || arg == 2) {
-                                // DECSED and DECSEL can erase characters.
-                                mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else if (arg == 1) {
-                                // DECSED and DECSEL cannot erase characters.
-                                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else {
-                                unknownSequence(b);
                             }
                         } else {
-                            unknownSequence(b);
+                            // Do nothing.
                         }
                         break;
-                    case ESC_CSI_SINGLE_QUOTE:
-                        if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToInsert;
-                            mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
-                            blockClear(mCursorCol, 0, columnsToInsert, mRows);
-                        } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToDelete;
-                            mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
-                        } else {
-                            unknownSequence(b);
-                        }
-                        break;
-                    case ESC_PERCENT:
-                        break;
-                    case ESC_OSC:
-                        doOsc(b);
-                        break;
-                    case ESC_OSC_ESC:
-                        doOscEsc(b);
-                        break;
-                    case ESC_P:
-                        doDeviceControl(b);
-                        break;
-                    case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
-                        if (b == 'p') {
-                            // Request DEC private mode (DECRQM).
-                            int mode = getArg0(0);
-                            int value;
-                            if (mode == 47 || mode == 1047 || mode == 1049) {
-                                // This state is carried by mScreen pointer.
-                                value = (mScreen == mAltBuffer) ? 1 : 2;
-                            } else {
-                                int internalBit = mapDecSetBitToInternalBit(mode);
-                                if (internalBit != -1) {
-                                    value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
-                                } else {
-                                    Logger.logError(mClient, LOG_TAG, "Got DECRQM for unrecognized private DEC mode=" + mode);
-                                    value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
-                                }
-                            }
-                            mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+                    default:
+                        unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_DOUBLE_QUOTE:
+                if (b == 'q') {
+                    // http://www.vt100.net/docs/vt510-rm/DECSCA
+                    int arg = getArg0(0);
+                    if (arg == 0 || arg == 2) {
+                        // DECSED and DECSEL can erase characters.
+                        mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                    } else if (arg == 1) {
+                        // DECSED and DECSEL cannot erase characters.
+                        mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                    } else {
+                        unknownSequence(b);
+                    }
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_SINGLE_QUOTE:
+                if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToInsert;
+                    mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
+                    blockClear(mCursorCol, 0, columnsToInsert, mRows);
+                } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToDelete;
+                    mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_PERCENT:
+                break;
+            case ESC_OSC:
+                doOsc(b);
+                break;
+            case ESC_OSC_ESC:
+                doOscEsc(b);
+                break;
+            case ESC_P:
+                doDeviceControl(b);
+                break;
+            case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
+                if (b == 'p') {
+                    // Request DEC private mode (DECRQM).
+                    int mode = getArg0(0);
+                    int value;
+                    if (mode == 47 || mode == 1047 || mode == 1049) {
+                        // This state is carried by mScreen pointer.
+                        value = (mScreen == mAltBuffer) ? 1 : 2;
+                    } else {
+                        int internalBit = mapDecSetBitToInternalBit(mode);
+                        if (internalBit != -1) {
+                            value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
                         } else {
-                            unknownSequence(b);
+                            Logger.logError(mClient, LOG_TAG, "Got DECRQM for unrecognized private DEC mode=" + mode);
+                            value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
                         }
-                        break;
-                    case ESC_CSI_ARGS_SPACE:
-                        int arg = getArg0(0);
-                        switch (b) {
-                            case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
-                                switch (arg) {
-                                    case 0: // Blinking block.
-                                    case 1: // Blinking block.
-                                    case 2: // Steady block.
-                                        mCursorStyle = TERMINAL_CURSOR_STYLE_BLOCK;
-                                        break;
-                                    case 3: // Blinking underline.
-                                    case 4: // Steady underline.
-                                        mCursorStyle = TERMINAL_CURSOR_STYLE_UNDERLINE;
-                                        break;
-                                    case 5: // Blinking bar (xterm addition).
-                                    case 6: // Steady bar (xterm addition).
-                                        mCursorStyle = TERMINAL_CURSOR_STYLE_BAR;
-                                        break;
-                                }
+                    }
+                    mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_ARGS_SPACE:
+                int arg = getArg0(0);
+                switch (b) {
+                    case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
+                        switch (arg) {
+                            case 0: // Blinking block.
+                            case 1: // Blinking block.
+                            case 2: // Steady block.
+                                mCursorStyle = TERMINAL_CURSOR_STYLE_BLOCK;
                                 break;
-                            case 't':
-                            case 'u':
-                                // Set margin-bell volume - ignore.
+                            case 3: // Blinking underline.
+                            case 4: // Steady underline.
+                                mCursorStyle = TERMINAL_CURSOR_STYLE_UNDERLINE;
+                                break;
+                            case 5: // Blinking bar (xterm addition).
+                            case 6: // Steady bar (xterm addition).
+                                mCursorStyle = TERMINAL_CURSOR_STYLE_BAR;
                                 break;
-                            default:
-                                unknownSequence(b);
                         }
                         break;
-                    case ESC_CSI_ARGS_ASTERIX:
-                        int attributeChangeExtent = getArg0(0);
-                        if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
-                            // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
-                            setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
-                        } else {
-                            unknownSequence(b);
-                        }
+                    case 't':
+                    case 'u':
+                        // Set margin-bell volume - ignore.
                         break;
                     default:
                         unknownSequence(b);
-                        break;
                 }
-                if (!mContinueSequence) mEscapeState = ESC_NONE;
+                break;
+            case ESC_CSI_ARGS_ASTERIX:
+                int attributeChangeExtent = getArg0(0);
+                if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
+                    // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
+                    setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            default:
+                unknownSequence(b);
                 break;
         }
+        if (!mContinueSequence) mEscapeState = ESC_NONE;
     }
 
     /** When in {@link #ESC_P} ("device control") sequence. */
@@ -1207,7 +1476,8 @@ public final class TerminalEmulator {
                 break;
             case 4: // DECSCLM-Scrolling Mode. Ignore.
                 break;
-            case 5: // Reverse video. No action.
+            case 5: // Reverse video. No action except redrawing everything.
+                mScreen.markAllDamaged();
                 break;
             case 6: // Set: Origin Mode. Reset: Normal Cursor Mode. Ansi name: DECOM.
                 if (setting) setCursorPosition(0, 0);
@@ -1251,11 +1521,17 @@ public final class TerminalEmulator {
             case 1049: {
                 // Set: Save cursor as in DECSC and use Alternate Screen Buffer, clearing it first.
                 // Reset: Use Normal Screen Buffer and restore cursor as in DECRC.
+                // The alternate buffer shares the tables of the main buffer, so that rows can be copied between them
+                // without interning styles or clusters again.
+                if (setting && mAltBuffer == null)
+                    mAltBuffer = new TerminalBuffer(mColumns, mRows, mRows, mMainBuffer.mStyleTable, mMainBuffer.mGraphemeClusters);
                 TerminalBuffer newScreen = setting ? mAltBuffer : mMainBuffer;
                 if (newScreen != mScreen) {
+                    if (!setting) mMainBufferActiveSinceNanos = System.nanoTime();
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
                     if (setting) saveCursor();
                     mScreen = newScreen;
+                    mScreen.markAllDamaged();
                     if (!setting) {
                         int col = mSavedStateMain.mSavedCursorCol;
                         int row = mSavedStateMain.mSavedCursorRow;
@@ -1277,6 +1553,13 @@ public final class TerminalEmulator {
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2026:
+                // Synchronized output - the timeout starts over each time it is set, even if already set.
+                if (setting) mSynchronizedOutputStartNanos = System.nanoTime();
+                break;
+            case 2027:
+                // Grapheme cluster mode - setting bit is enough, a cluster being written is ended by any control.
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -1364,6 +1647,7 @@ public final class TerminalEmulator {
     }
 
     private void startEscapeSequence() {
+        mClusterLength = 0;
         mEscapeState = ESC;
         mArgIndex = 0;
         Arrays.fill(mArgs, -1);
@@ -1380,13 +1664,105 @@ public final class TerminalEmulator {
             }
         } else {
             if (newCursorRow == mBottomMargin) {
-                scrollDownOneLine();
-                newCursorRow = mBottomMargin - 1;
+                // Jump scroll: when more lines are already waiting to be output, scroll for all of them at once, so
+                // that the following line feeds only move the cursor down, to the same result.
+                final int maxLines = getMaxScrollLines();
+                final int lines = (maxLines > 1 && mEscapeState == ESC_NONE && mLeftMargin == 0 && mRightMargin == mColumns)
+                    ? 1 + countPendingLinefeeds(maxLines - 1) : 1;
+                scrollDownLines(lines);
+                newCursorRow = mBottomMargin - lines;
             }
             setCursorRow(newCursorRow);
         }
     }
 
+    /**
+     * Count the line feeds following the one being processed in the output being appended, stopping at the first
+     * byte which may do anything else than writing text, moving to the start of the line or wrapping, such as the start
+     * of an escape sequence which could change the style of blanked rows or move the cursor.
+     *
+     * @param max the number of line feeds to stop counting at
+     */
+    private int countPendingLinefeeds(int max) {
+        int count = 0;
+        for (int i = mInputIndex; i < mInputEnd && count < max; i++) {
+            final byte b = (mInputArray != null) ? mInputArray[i] : (mInputBuffer != null) ? mInputBuffer.get(i) : 27;
+            if (b == '\n') {
+                count++;
+            } else if (b != '\r' && (b >= 0 && b < 32 || b == 127)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Set if a resize changing the number of columns only reflows the rows needed for the screen, leaving the older
+     * transcript rows to be reflowed by calling {@link #reflowTranscript(long)} until it returns false. Off by default.
+     */
+    public void setIncrementalReflow(boolean incrementalReflow) {
+        mIncrementalReflow = incrementalReflow;
+    }
+
+    /** If transcript rows are left to be reflowed after a resize, see {@link #setIncrementalReflow(boolean)}. */
+    public boolean isReflowingTranscript() {
+        return mMainBuffer.hasUnreflowedRows();
+    }
+
+    /**
+     * Reflow transcript rows left by a resize, newest first, until all have been reflowed or the budget has been used.
+     *
+     * @return if rows are still left to be reflowed.
+     */
+    public boolean reflowTranscript(long budgetNanos) {
+        return mMainBuffer.reflowTranscript(budgetNanos);
+    }
+
+    /**
+     * Drop the archived transcript rows and put the rows of the buffers into the {@link TerminalRowPool} once the
+     * emulator is no longer shown, see {@link TerminalSession#release()}.
+     */
+    void release() {
+        mMainBuffer.releaseArchive();
+        mMainBuffer.recycleRows();
+        if (mAltBuffer != null) mAltBuffer.recycleRows();
+    }
+
+    /**
+     * Release the alternate buffer if the main buffer has been used for {@link #mAltBufferReleaseDelayMillis} since
+     * switching back from it. It is created again when a program switches to it. Called by the session when output
+     * has been processed and again once the delay has passed, so that it is also released when the session is idle.
+     *
+     * @return the milliseconds until the alternate buffer can be released, or -1 if there is none to release later,
+     * as it has just been released, has not been created or is in use.
+     */
+    long releaseIdleAlternateBuffer() {
+        if (mAltBuffer == null || mScreen != mMainBuffer) return -1;
+        final long remainingNanos = TimeUnit.MILLISECONDS.toNanos(mAltBufferReleaseDelayMillis)
+            - (System.nanoTime() - mMainBufferActiveSinceNanos);
+        if (remainingNanos > 0) return (remainingNanos + 999_999) / 1_000_000;
+        mAltBuffer.recycleRows();
+        mAltBuffer = null;
+        return -1;
+    }
+
+    /**
+     * Log the lines scrolled per second at the verbose level once per second of appending output which scrolls, so that
+     * jump scrolling can be seen keeping up with heavy output such as cat of a large file.
+     */
+    private void updateScrollRate() {
+        final long elapsedNanos = System.nanoTime() - mScrollRateStartNanos;
+        if (elapsedNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            // Not after a pause in the output, which the rate would be averaged over:
+            if (mLinesScrolledSinceRateStart > 0 && elapsedNanos < TimeUnit.SECONDS.toNanos(2)) {
+                final long linesPerSecond = mLinesScrolledSinceRateStart * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+                Logger.logVerbose(mClient, LOG_TAG, "Scrolled " + linesPerSecond + " lines per second");
+            }
+            mLinesScrolledSinceRateStart = 0;
+            mScrollRateStartNanos += elapsedNanos;
+        }
+    }
+
     private void continueSequence(int state) {
         mEscapeState = state;
         mContinueSequence = true;
@@ -1462,8 +1838,7 @@ public final class TerminalEmulator {
                 // http://www.vt100.net/docs/vt100-ug/chapter3.html: "Move the active position to the same horizontal
                 // position on the preceding line. If the active position is at the top margin, a scroll down is performed".
                 if (mCursorRow <= mTopMargin) {
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, mBottomMargin - (mTopMargin + 1), mLeftMargin, mTopMargin + 1);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin);
+                    scrollRegion(mTopMargin, mBottomMargin, -1);
                 } else {
                     mCursorRow--;
                 }
@@ -1628,8 +2003,7 @@ public final class TerminalEmulator {
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
                 int linesToMove = linesAfterCursor - linesToInsert;
-                mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0, mCursorRow + linesToInsert);
-                blockClear(0, mCursorRow, mColumns, linesToInsert);
+                mScreen.scrollRegion(mCursorRow, mCursorRow + linesToMove + linesToInsert, -linesToInsert, getStyle());
             }
             break;
             case 'M': // "${CSI}${N}M" - delete N lines (DL).
@@ -1638,8 +2012,7 @@ public final class TerminalEmulator {
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
                 int linesToMove = linesAfterCursor - linesToDelete;
-                mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns, linesToMove, 0, mCursorRow);
-                blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+                mScreen.scrollRegion(mCursorRow, mCursorRow + linesToMove + linesToDelete, linesToDelete, getStyle());
             }
             break;
             case 'P': // "${CSI}{N}P" - delete ${N} characters (DCH).
@@ -1658,9 +2031,12 @@ public final class TerminalEmulator {
             }
             break;
             case 'S': { // "${CSI}${N}S" - scroll up ${N} lines (default = 1) (SU).
-                final int linesToScroll = getArg0(1);
-                for (int i = 0; i < linesToScroll; i++)
-                    scrollDownOneLine();
+                int linesToScroll = getArg0(1);
+                while (linesToScroll > 0) {
+                    final int lines = Math.min(linesToScroll, getMaxScrollLines());
+                    scrollDownLines(lines);
+                    linesToScroll -= lines;
+                }
                 break;
             }
             case 'T':
@@ -1672,8 +2048,7 @@ public final class TerminalEmulator {
                     final int linesToScrollArg = getArg0(1);
                     final int linesBetweenTopAndBottomMargins = mBottomMargin - mTopMargin;
                     final int linesToScroll = Math.min(linesBetweenTopAndBottomMargins, linesToScrollArg);
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesBetweenTopAndBottomMargins - linesToScroll, mLeftMargin, mTopMargin + linesToScroll);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesToScroll);
+                    scrollRegion(mTopMargin, mBottomMargin, -linesToScroll);
                 } else {
                     // "${CSI}${func};${startx};${starty};${firstrow};${lastrow}T" - initiate highlight mouse tracking.
                     unimplementedSequence(b);
@@ -2056,7 +2431,7 @@ public final class TerminalEmulator {
                                 return;
                             } else {
                                 mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -2092,7 +2467,7 @@ public final class TerminalEmulator {
                                     + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
                             } else {
                                 mColors.tryParseColor(specialIndex, colorSpec);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                             }
                             specialIndex++;
                             if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
@@ -2120,7 +2495,7 @@ public final class TerminalEmulator {
                 // parameters are given, the entire table will be reset.
                 if (textParameter.isEmpty()) {
                     mColors.reset();
-                    mSession.onColorsChanged();
+                    onColorsChanged();
                 } else {
                     int lastIndex = 0;
                     for (int charIndex = 0; ; charIndex++) {
@@ -2129,7 +2504,7 @@ public final class TerminalEmulator {
                             try {
                                 int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
                                 mColors.reset(colorToReset);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 if (endOfInput) break;
                                 charIndex++;
                                 lastIndex = charIndex;
@@ -2144,7 +2519,7 @@ public final class TerminalEmulator {
             case 111: // Reset background color.
             case 112: // Reset cursor color.
                 mColors.reset(TextStyle.COLOR_INDEX_FOREGROUND + (value - 110));
-                mSession.onColorsChanged();
+                onColorsChanged();
                 break;
             case 119: // Reset highlight color.
                 break;
@@ -2204,15 +2579,48 @@ public final class TerminalEmulator {
     }
 
     private void scrollDownOneLine() {
-        mScrollCounter++;
-        long currentStyle = getStyle();
+        scrollDownLines(1);
+    }
+
+    /**
+     * Scroll the scrolling region up by the specified number of lines, which if more than one must be at most
+     * {@link #getMaxScrollLines()}, moving the rows at its top into the transcript.
+     */
+    private void scrollDownLines(int lines) {
+        mScrollCounter += lines;
+        mLinesScrolledSinceRateStart += lines;
         if (mLeftMargin != 0 || mRightMargin != mColumns) {
             // Horizontal margin: Do not put anything into scroll history, just non-margin part of screen up.
-            mScreen.blockCopy(mLeftMargin, mTopMargin + 1, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - 1, mLeftMargin, mTopMargin);
-            // .. and blank bottom row between margins:
-            mScreen.blockSet(mLeftMargin, mBottomMargin - 1, mRightMargin - mLeftMargin, 1, ' ', currentStyle);
+            scrollRegion(mTopMargin, mBottomMargin, lines);
+        } else {
+            mScreen.scrollDownLines(mTopMargin, mBottomMargin, lines, getStyle());
+        }
+    }
+
+    /** The most lines {@link #scrollDownLines(int)} can scroll at once, at least 1. */
+    private int getMaxScrollLines() {
+        return Math.max(1, Math.min(mBottomMargin - mTopMargin, mScreen.mTotalRows - mScreen.mScreenRows));
+    }
+
+    /**
+     * Scroll the rows from top to bottom (exclusive) between the left and right margins up by lines rows, or down by
+     * -lines rows if negative, blanking the revealed cells. Without left and right margins whole rows are moved, see
+     * {@link TerminalBuffer#scrollRegion(int, int, int, long)}, otherwise the cells within the margins are copied.
+     */
+    private void scrollRegion(int top, int bottom, int lines) {
+        final long style = getStyle();
+        if (mLeftMargin == 0 && mRightMargin == mColumns) {
+            mScreen.scrollRegion(top, bottom, lines, style);
+            return;
+        }
+        final int width = mRightMargin - mLeftMargin;
+        final int distance = Math.min(Math.abs(lines), bottom - top);
+        if (lines > 0) {
+            mScreen.blockCopy(mLeftMargin, top + distance, width, bottom - top - distance, mLeftMargin, top);
+            mScreen.blockSet(mLeftMargin, bottom - distance, width, distance, ' ', style);
         } else {
-            mScreen.scrollDownOneLine(mTopMargin, mBottomMargin, currentStyle);
+            mScreen.blockCopy(mLeftMargin, top, width, bottom - top - distance, mLeftMargin, top + distance);
+            mScreen.blockSet(mLeftMargin, top, width, distance, ' ', style);
         }
     }
 
@@ -2452,10 +2860,27 @@ public final class TerminalEmulator {
             }
         }
 
+        if (GraphemeClusterTable.isCluster(codePoint)) {
+            // Code points of the area used for clusters are stored as clusters of their own.
+            mClusterCodePoints[0] = codePoint;
+            codePoint = mScreen.mGraphemeClusters.intern(mClusterCodePoints, 1, 1);
+            if (codePoint < 0) codePoint = UNICODE_REPLACEMENT_CHAR;
+        }
+
         final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
         final int displayWidth = WcWidth.width(codePoint);
         final boolean cursorInLastColumn = mCursorCol == mRightMargin - 1;
 
+        if (mClusterLength > 0) {
+            if (displayWidth <= 0) {
+                // Combining chars are added to the cell below, but are also part of the cluster if it is extended.
+                if (mClusterLength < mClusterCodePoints.length) mClusterCodePoints[mClusterLength++] = codePoint;
+            } else if (GraphemeClusterTable.extendsCluster(mClusterCodePoints, mClusterLength, codePoint)
+                && extendCluster(codePoint, autoWrap)) {
+                return;
+            }
+        }
+
         if (autoWrap) {
             if (cursorInLastColumn && ((mAboutToAutoWrap && displayWidth == 1) || displayWidth == 2)) {
                 mScreen.setLineWrap(mCursorRow);
@@ -2489,12 +2914,46 @@ public final class TerminalEmulator {
         if (column < 0) column = 0;
         mScreen.setChar(column, mCursorRow, codePoint, getStyle());
 
+        if (displayWidth > 0 && isDecsetInternalBitSet(DECSET_BIT_GRAPHEME_CLUSTERING)) {
+            mClusterCodePoints[0] = codePoint;
+            mClusterLength = 1;
+            mClusterColumn = column;
+            mClusterRow = mCursorRow;
+        }
+
         if (autoWrap && displayWidth > 0)
             mAboutToAutoWrap = (mCursorCol == mRightMargin - displayWidth);
 
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Extend the grapheme cluster last written with a code point, replacing its cell with a wide one holding the whole
+     * cluster, see {@link GraphemeClusterTable}.
+     *
+     * @return false if the cluster can not be extended, in which case the code point should start a new cell
+     */
+    private boolean extendCluster(int codePoint, boolean autoWrap) {
+        final int column = mClusterColumn;
+        if (mClusterLength == mClusterCodePoints.length || column + 2 > mRightMargin || mInsertMode) return false;
+
+        mClusterCodePoints[mClusterLength] = codePoint;
+        final int clusterCodePoint = mScreen.mGraphemeClusters.intern(mClusterCodePoints, mClusterLength + 1, 2);
+        if (clusterCodePoint < 0) return false;
+        mClusterLength++;
+
+        mScreen.setChar(column, mClusterRow, clusterCodePoint, getStyle());
+        if (autoWrap) mAboutToAutoWrap = (column == mRightMargin - 2);
+        mCursorCol = Math.min(column + 2, mRightMargin - 1);
+        return true;
+    }
+
+    /** Notify about a palette change, which also means that the whole screen needs to be redrawn. */
+    private void onColorsChanged() {
+        mScreen.markAllDamaged();
+        mSession.onColorsChanged();
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2564,7 +3023,7 @@ public final class TerminalEmulator {
         mUtf8Index = mUtf8ToFollow = 0;
 
         mColors.reset();
-        mSession.onColorsChanged();
+        onColorsChanged();
     }
 
     public String getSelectedText(int x1, int y1, int x2, int y2) {
@@ -2585,18 +3044,19 @@ public final class TerminalEmulator {
         }
     }
 
-    /** If DECSET 2004 is set, prefix paste with "\033[200~" and suffix with "\033[201~". */
-    public void paste(String text) {
-        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
-        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
-        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
-        text = text.replaceAll("\r?\n", "\r");
-
-        // Then: Implement bracketed paste mode if enabled:
-        boolean bracketed = isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
-        if (bracketed) mSession.write("\033[200~");
-        mSession.write(text);
-        if (bracketed) mSession.write("\033[201~");
+    /**
+     * Paste text, which is filtered and encoded to UTF-8 a chunk at a time as the process reads it, see
+     * {@link PasteEncoder}, so that a large paste is neither copied nor written all at once. If DECSET 2004 is set,
+     * the paste is prefixed with "\033[200~" and suffixed with "\033[201~".
+     * <p>
+     * Nothing is written if the session would not accept all of the paste, see {@link TerminalOutput#canWrite(int)},
+     * so that the process never gets a part of it or a bracketed paste which is not ended.
+     *
+     * @return false if the paste was rejected.
+     */
+    public boolean paste(String text) {
+        // Implement bracketed paste mode if enabled:
+        return mSession.writePaste(new PasteEncoder(text, isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE)));
     }
 
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
@@ -0,0 +1,263 @@
+package com.termux.terminal;
+
+import android.os.Build;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Performs the I/O of all {@link TerminalSession}s on a single thread, so that the number of threads stays constant
+ * as sessions are added.
+ * <p>
+ * The non-blocking pty master of each session is polled with epoll. Output of the process is read straight into the
+ * direct buffer of {@link TerminalSession#mProcessToTerminalIOQueue} and input from {@link TerminalSession#mTerminalToProcessIOQueue}
+ * is written when the pty is writable, refilling the queue with input that did not fit in it, see
+ * {@link TerminalSession#movePendingInput()}. The exit of the process is noticed through a pidfd, or on kernels without
+ * pidfd_open(2) (before Linux 5.3) and before Android 12 by a waiter thread per session started by the session, and
+ * is only reported to the session once all output of the process has been read from the pty into its queue.
+ * <p>
+ * Reading from a pty stops while the queue of its session is full and is resumed by
+ * {@link Channel#resumeReading()} when the session has consumed output, so that a flooding session does not block the
+ * others.
+ */
+final class TerminalIOReactor {
+
+    private static final int MAX_EVENTS = 64;
+
+    private static TerminalIOReactor sInstance;
+
+    private final int mEpollFileDescriptor;
+    /** The channels by both the pty and the pidfd file descriptors, which are unique as long as they are open. */
+    private final ConcurrentHashMap<Integer, Channel> mChannels = new ConcurrentHashMap<>();
+    private final int[] mEvents = new int[2 * MAX_EVENTS];
+
+    static synchronized TerminalIOReactor getInstance() {
+        if (sInstance == null) sInstance = new TerminalIOReactor();
+        return sInstance;
+    }
+
+    private TerminalIOReactor() {
+        mEpollFileDescriptor = JNI.createEpoll();
+        Thread thread = new Thread(this::run, "TermSessionIOReactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start polling the pty of a session, and the process if supported.
+     *
+     * @return the channel, for which {@link Channel#isWatchingProcess()} tells if the session needs to wait for the
+     * process itself.
+     */
+    Channel register(TerminalSession session, int terminalFileDescriptor, int processId) {
+        // The seccomp filter of app processes before Android 12 does not allow pidfd_open(2), and kills the process
+        // with SIGSYS instead of failing with ENOSYS, so it is only tried where it is known to be allowed.
+        int pidFileDescriptor = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) ? JNI.openPidFileDescriptor(processId) : -1;
+        Channel channel = new Channel(session, terminalFileDescriptor, processId, pidFileDescriptor);
+        synchronized (channel) {
+            mChannels.put(terminalFileDescriptor, channel);
+            channel.updateEvents();
+            if (channel.mPidFileDescriptor != -1) {
+                mChannels.put(channel.mPidFileDescriptor, channel);
+                JNI.epollControl(mEpollFileDescriptor, JNI.EPOLL_CTL_ADD, channel.mPidFileDescriptor, JNI.EPOLLIN);
+            }
+        }
+        return channel;
+    }
+
+    private void run() {
+        while (true) {
+            int count = JNI.epollWait(mEpollFileDescriptor, mEvents, -1);
+            for (int i = 0; i < count; i++) {
+                int fileDescriptor = mEvents[2 * i];
+                int events = mEvents[2 * i + 1];
+                Channel channel = mChannels.get(fileDescriptor);
+                if (channel == null) continue;
+
+                if (fileDescriptor == channel.mPidFileDescriptor) {
+                    channel.onProcessExited(JNI.waitFor(channel.mProcessId));
+                } else {
+                    if ((events & (JNI.EPOLLIN | JNI.EPOLLHUP | JNI.EPOLLERR)) != 0) channel.onReadable();
+                    if ((events & (JNI.EPOLLOUT | JNI.EPOLLHUP | JNI.EPOLLERR)) != 0) channel.onWritable();
+                }
+            }
+        }
+    }
+
+    /** The state of a session in the reactor. Modified with the channel locked, as both threads change the events. */
+    final class Channel {
+
+        final TerminalSession mSession;
+        final int mTerminalFileDescriptor;
+        final int mProcessId;
+        final int mPidFileDescriptor;
+
+        /** The events the pty is currently registered for, or 0 if not registered. */
+        private int mRegisteredEvents;
+        private boolean mClosed;
+        /** If the pty has reached end of file or failed, so that no more output will be read. */
+        private boolean mInputEnded;
+        /** If reading has been stopped since the queue of the session is full. */
+        private volatile boolean mInputPaused;
+        /** If the process has exited, with the exit code, which is reported once its output has been read. */
+        private boolean mProcessExited;
+        private int mExitCode;
+        private boolean mExitReported;
+        /** If there is input from the session to write to the pty. */
+        private boolean mWriting;
+
+        /** Input read from the session queue which the pty has not accepted yet. */
+        private final byte[] mWriteBuffer = new byte[4096];
+        private int mWriteOffset;
+        private int mWriteLength;
+
+        Channel(TerminalSession session, int terminalFileDescriptor, int processId, int pidFileDescriptor) {
+            mSession = session;
+            mTerminalFileDescriptor = terminalFileDescriptor;
+            mProcessId = processId;
+            mPidFileDescriptor = pidFileDescriptor;
+        }
+
+        boolean isWatchingProcess() {
+            return mPidFileDescriptor != -1;
+        }
+
+        /** Called by the session after writing to {@link TerminalSession#mTerminalToProcessIOQueue}. */
+        synchronized void requestWrite() {
+            if (mClosed || mWriting) return;
+            mWriting = true;
+            updateEvents();
+        }
+
+        /** Called by the session after consuming from {@link TerminalSession#mProcessToTerminalIOQueue}. */
+        void resumeReading() {
+            if (!mInputPaused) return;
+            final boolean processExited;
+            synchronized (this) {
+                if (mClosed) return;
+                mInputPaused = false;
+                updateEvents();
+                processExited = mProcessExited;
+            }
+            // A child which inherited the pty may keep it open after the process has exited, so that there may be no
+            // event for the pty when the rest of the output has already been read. Reads are done with the channel
+            // locked, so the queue still has a single producer at a time.
+            if (processExited) onReadable();
+        }
+
+        /** Stop polling and close the pidfd. The session closes the pty itself after this. */
+        synchronized void close() {
+            if (mClosed) return;
+            mClosed = true;
+            mChannels.remove(mTerminalFileDescriptor);
+            if (mRegisteredEvents != 0)
+                JNI.epollControl(mEpollFileDescriptor, JNI.EPOLL_CTL_DEL, mTerminalFileDescriptor, 0);
+            mRegisteredEvents = 0;
+            if (mPidFileDescriptor != -1) {
+                mChannels.remove(mPidFileDescriptor);
+                JNI.epollControl(mEpollFileDescriptor, JNI.EPOLL_CTL_DEL, mPidFileDescriptor, 0);
+                JNI.close(mPidFileDescriptor);
+            }
+        }
+
+        private void updateEvents() {
+            int events = 0;
+            if (!mInputEnded && !mInputPaused) events |= JNI.EPOLLIN;
+            if (mWriting) events |= JNI.EPOLLOUT;
+            if (events == mRegisteredEvents) return;
+
+            // Unregister instead of registering for no events, as hang ups would still be reported.
+            if (events == 0) {
+                JNI.epollControl(mEpollFileDescriptor, JNI.EPOLL_CTL_DEL, mTerminalFileDescriptor, 0);
+            } else {
+                int operation = (mRegisteredEvents == 0) ? JNI.EPOLL_CTL_ADD : JNI.EPOLL_CTL_MOD;
+                JNI.epollControl(mEpollFileDescriptor, operation, mTerminalFileDescriptor, events);
+            }
+            mRegisteredEvents = events;
+        }
+
+        /**
+         * Read output from the pty into the queue of the session, and report the exit of the process once all of its
+         * output has been read.
+         *
+         * @return the number of bytes read.
+         */
+        private int onReadable() {
+            int bytesRead = 0;
+            final boolean reportExit;
+            synchronized (this) {
+                if (mClosed || mExitReported) return 0;
+                if (!mInputEnded && !mInputPaused) {
+                    if (mSession.mProcessToTerminalIOQueue.getFreeSpace() == 0) {
+                        // Reading continues from resumeReading() when the session has consumed output.
+                        mInputPaused = true;
+                        updateEvents();
+                    } else {
+                        bytesRead = mSession.mProcessToTerminalIOQueue.readFrom(mTerminalFileDescriptor);
+                        if (bytesRead < 0) {
+                            mInputEnded = true;
+                            updateEvents();
+                            bytesRead = 0;
+                        }
+                    }
+                }
+                // After the exit everything the process wrote is in the pty, so all of it has been read once the pty
+                // is at its end or has nothing more. The end is not waited for, as a child which inherited the pty
+                // may keep it open.
+                reportExit = mExitReported = mProcessExited && !mInputPaused && bytesRead == 0;
+            }
+            // The session is notified without the channel locked, as it may lock the emulator.
+            if (bytesRead > 0) mSession.onProcessOutput();
+            if (reportExit) mSession.onProcessExited(mExitCode);
+            return bytesRead;
+        }
+
+        private synchronized void onWritable() {
+            while (!mClosed && mWriting) {
+                if (mWriteLength == 0) {
+                    // Make up for what is read below with input that did not fit in the queue before.
+                    mSession.movePendingInput();
+                    mWriteOffset = 0;
+                    mWriteLength = Math.max(0, mSession.mTerminalToProcessIOQueue.read(mWriteBuffer, false));
+                    if (mWriteLength == 0) {
+                        // Nothing more to write, requestWrite() is called after anything is queued again.
+                        mWriting = false;
+                        updateEvents();
+                        return;
+                    }
+                }
+                int bytesWritten = JNI.write(mTerminalFileDescriptor, mWriteBuffer, mWriteOffset, mWriteLength);
+                if (bytesWritten == 0) return;
+                if (bytesWritten < 0) {
+                    // The process is gone, drop what could not be written.
+                    mWriteLength = 0;
+                    continue;
+                }
+                mWriteOffset += bytesWritten;
+                mWriteLength -= bytesWritten;
+            }
+        }
+
+        /**
+         * Called by the reactor thread when the pidfd reports the exit, or by the waiter thread of the session. The
+         * exit is reported to the session by {@link #onReadable()} after the rest of the output has been read, which
+         * continues from {@link #resumeReading()} if the queue of the session fills up first.
+         */
+        void onProcessExited(int exitCode) {
+            synchronized (this) {
+                if (mClosed || mProcessExited) return;
+                mProcessExited = true;
+                mExitCode = exitCode;
+                // Only notify once, the session closes the channel when handling the exit.
+                if (mPidFileDescriptor != -1)
+                    JNI.epollControl(mEpollFileDescriptor, JNI.EPOLL_CTL_DEL, mPidFileDescriptor, 0);
+            }
+            // Read what the process wrote before exiting and is still in the pty.
+            int bytesRead;
+            do {
+                bytesRead = onReadable();
+            } while (bytesRead > 0);
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /** A client which receives callbacks from events triggered by feeding input to a {@link TerminalEmulator}. */
@@ -15,6 +16,30 @@ public abstract class TerminalOutput {
     /** Write bytes to the terminal client. */
     public abstract void write(byte[] data, int offset, int count);
 
+    /**
+     * If the terminal client would accept all of the specified number of bytes if written now, so that a caller can
+     * avoid starting a sequence of writes which would not all be accepted.
+     */
+    public boolean canWrite(int count) {
+        return true;
+    }
+
+    /**
+     * Write a paste unless all of it would not be accepted, see {@link #canWrite(int)}. The paste is written a chunk
+     * at a time here, a client may instead keep it and only encode the chunks as they are read.
+     *
+     * @return false if the paste was rejected.
+     */
+    boolean writePaste(PasteEncoder paste) {
+        if (!canWrite((int) Math.min(Integer.MAX_VALUE, paste.getLength()))) return false;
+        ByteBuffer bytes;
+        while ((bytes = paste.getBytes()) != null) {
+            write(bytes.array(), bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        }
+        return true;
+    }
+
     /** Notify the terminal client that the terminal title has changed. */
     public abstract void titleChanged(String oldTitle, String newTitle);
 
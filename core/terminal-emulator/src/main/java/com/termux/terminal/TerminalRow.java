@@ -1,5 +1,6 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -45,19 +46,74 @@ public final class TerminalRow {
     private short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
-    /** The style bits of each cell in the row. See {@link TextStyle}. */
-    final long[] mStyle;
+    /**
+     * The table of the styles used by the row, typically shared by all rows of a {@link TerminalBuffer}. Only changed
+     * when a row is taken from the {@link TerminalRowPool}.
+     */
+    TextStyleTable mStyleTable;
+    /**
+     * The style of each cell in the row as an index in {@link #mStyleTable}. Null if the table was full when a style
+     * was set, in which case {@link #mStyle} is used instead, or if the row is compact, see {@link #compact()}.
+     */
+    char[] mStyleIndices;
+    /** The style bits of each cell in the row, see {@link TextStyle}, if not using {@link #mStyleIndices}. */
+    long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * For rows with {@link #mHasNonOneWidthOrSurrogateChars}, the index in {@link #mText} of each column as returned
+     * by {@link #findStartOfColumn(int)}, and one bit per column set if a wide character starts at it. Only the first
+     * {@link #mIndexedColumns} columns are up to date, the rest is scanned when needed from
+     * {@link #mIndexedCharIndex}, which is where the code point at the first column not up to date starts. Changing a
+     * column only makes the following columns out of date, so writing a row from left to right scans each char once.
+     */
+    private short[] mColumnStarts;
+    private long[] mWideColumns;
+    private int mIndexedColumns, mIndexedCharIndex;
+    /**
+     * The styles of a compact row, run-length encoded as the column after the end of each run and the style of the
+     * run. Both are null if every cell has the style {@link TextStyle#NORMAL}.
+     */
+    private int[] mStyleRunEnds;
+    private long[] mStyleRuns;
+    /** Incremented when the text or styles of the row change, see {@link #getVersion()}. */
+    private int mVersion;
+
+    private static final char[] EMPTY_TEXT = new char[0];
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
+        this(columns, style, new TextStyleTable());
+    }
+
+    /** Construct a blank row (containing only whitespace, ' ') with a specified style, interned in a table. */
+    public TerminalRow(int columns, long style, TextStyleTable styleTable) {
         mColumns = columns;
+        mStyleTable = styleTable;
         mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
-        mStyle = new long[columns];
+        mStyleIndices = new char[columns];
         clear(style);
     }
 
+    /** Construct a row sharing the arrays of another row, for {@link #compactCopy(TerminalRow)}. */
+    private TerminalRow(TerminalRow row) {
+        mColumns = row.mColumns;
+        share(row);
+    }
+
+    /** Share the arrays of another row with as many columns. */
+    private void share(TerminalRow row) {
+        mStyleTable = row.mStyleTable;
+        mText = row.mText;
+        mStyleIndices = row.mStyleIndices;
+        mStyle = row.mStyle;
+        mSpaceUsed = row.mSpaceUsed;
+        mLineWrap = row.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = row.mHasNonOneWidthOrSurrogateChars;
+        mStyleRunEnds = row.mStyleRunEnds;
+        mStyleRuns = row.mStyleRuns;
+    }
+
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
         mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
@@ -88,72 +144,290 @@ public final class TerminalRow {
         return mSpaceUsed;
     }
 
+    /**
+     * A number which changes each time the text or styles of this row change, so that what has been drawn from the
+     * row can be reused as long as it is the same.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
     /** Note that the column may end of second half of wide character. */
     public int findStartOfColumn(int column) {
         if (column == mColumns) return getSpaceUsed();
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (column >= mIndexedColumns) indexColumns(column);
+        return mColumnStarts[column];
+    }
+
+    private boolean wideDisplayCharacterStartingAt(int column) {
+        if (!mHasNonOneWidthOrSurrogateChars || column >= mColumns) return false;
+        if (column >= mIndexedColumns) indexColumns(column);
+        return (mWideColumns[column >> 6] & (1L << column)) != 0;
+    }
 
-        int currentColumn = 0;
-        int currentCharIndex = 0;
-        while (true) { // 0<2 1 < 2
-            int newCharIndex = currentCharIndex;
-            char c = mText[newCharIndex++]; // cci=1, cci=2
-            boolean isHigh = Character.isHighSurrogate(c);
-            int codePoint = isHigh ? Character.toCodePoint(c, mText[newCharIndex++]) : c;
-            int wcwidth = WcWidth.width(codePoint); // 1, 2
+    /** Scan {@link #mText} to bring {@link #mColumnStarts} and {@link #mWideColumns} up to date up to a column. */
+    private void indexColumns(int column) {
+        if (mColumnStarts == null) {
+            mColumnStarts = new short[mColumns];
+            mWideColumns = new long[(mColumns + 63) / 64];
+        }
+        final char[] text = mText;
+        final int spaceUsed = mSpaceUsed;
+        int currentColumn = mIndexedColumns;
+        int currentCharIndex = (currentColumn == 0) ? 0 : mIndexedCharIndex;
+        while (currentColumn <= column && currentCharIndex < spaceUsed) {
+            char c = text[currentCharIndex];
+            int newCharIndex = currentCharIndex + 1;
+            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, text[newCharIndex++]) : c;
+            int wcwidth = WcWidth.width(codePoint);
             if (wcwidth > 0) {
-                currentColumn += wcwidth;
-                if (currentColumn == column) {
-                    while (newCharIndex < mSpaceUsed) {
-                        // Skip combining chars.
-                        if (Character.isHighSurrogate(mText[newCharIndex])) {
-                            if (WcWidth.width(Character.toCodePoint(mText[newCharIndex], mText[newCharIndex + 1])) <= 0) {
-                                newCharIndex += 2;
-                            } else {
-                                break;
-                            }
-                        } else if (WcWidth.width(mText[newCharIndex]) <= 0) {
-                            newCharIndex++;
+                // Combining chars are part of the column before them.
+                while (newCharIndex < spaceUsed) {
+                    if (Character.isHighSurrogate(text[newCharIndex])) {
+                        if (WcWidth.width(Character.toCodePoint(text[newCharIndex], text[newCharIndex + 1])) <= 0) {
+                            newCharIndex += 2;
                         } else {
                             break;
                         }
+                    } else if (WcWidth.width(text[newCharIndex]) <= 0) {
+                        newCharIndex++;
+                    } else {
+                        break;
+                    }
+                }
+                // The second half of a wide char starts where the wide char starts.
+                for (int i = 0; i < wcwidth && currentColumn < mColumns; i++, currentColumn++) {
+                    mColumnStarts[currentColumn] = (short) currentCharIndex;
+                    if (i == 0 && wcwidth == 2) {
+                        mWideColumns[currentColumn >> 6] |= 1L << currentColumn;
+                    } else {
+                        mWideColumns[currentColumn >> 6] &= ~(1L << currentColumn);
                     }
-                    return newCharIndex;
-                } else if (currentColumn > column) {
-                    // Wide column going past end.
-                    return currentCharIndex;
                 }
             }
             currentCharIndex = newCharIndex;
         }
+        mIndexedColumns = currentColumn;
+        mIndexedCharIndex = currentCharIndex;
     }
 
-    private boolean wideDisplayCharacterStartingAt(int column) {
-        for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
-            char c = mText[currentCharIndex++];
-            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
-            int wcwidth = WcWidth.width(codePoint);
-            if (wcwidth > 0) {
-                if (currentColumn == column && wcwidth == 2) return true;
-                currentColumn += wcwidth;
-                if (currentColumn > column) return false;
-            }
-        }
-        return false;
+    /** Mark the columns from a column on as out of date in {@link #mColumnStarts}, as their text is about to change. */
+    private void invalidateColumnsFrom(int column) {
+        if (column >= mIndexedColumns) return;
+        // Scanning must resume at the start of a code point and not at the second half of a wide char.
+        if (column > 0 && (mWideColumns[(column - 1) >> 6] & (1L << (column - 1))) != 0) column--;
+        mIndexedColumns = column;
+        mIndexedCharIndex = mColumnStarts[column];
     }
 
     public void clear(long style) {
+        if (isCompact()) {
+            mText = new char[(int) (SPARE_CAPACITY_FACTOR * mColumns)];
+            mStyleRunEnds = null;
+            mStyleRuns = null;
+        }
+        if (mStyleIndices == null) {
+            // Go back to indices if possible, such as after a row using the fallback has been scrolled out.
+            mStyleIndices = new char[mColumns];
+            mStyle = null;
+        }
         Arrays.fill(mText, ' ');
-        Arrays.fill(mStyle, style);
+        setStyle(0, mColumns, style);
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
+        mIndexedColumns = 0;
+    }
+
+    /**
+     * Make this row a copy of another row with the same number of columns, reusing the arrays of this row. The style
+     * indices are copied as they are if both rows use the same style table.
+     */
+    void copyFrom(TerminalRow row) {
+        if (mText.length < row.mSpaceUsed) mText = new char[row.mText.length];
+        System.arraycopy(row.mText, 0, mText, 0, row.mSpaceUsed);
+        if (row.mStyleIndices != null && row.mStyleTable == mStyleTable) {
+            if (mStyleIndices == null) {
+                mStyleIndices = new char[mColumns];
+                mStyle = null;
+            }
+            System.arraycopy(row.mStyleIndices, 0, mStyleIndices, 0, mColumns);
+        } else {
+            for (int column = 0; column < mColumns; column++)
+                setStyle(column, row.getStyle(column));
+        }
+        mSpaceUsed = row.mSpaceUsed;
+        mLineWrap = row.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = row.mHasNonOneWidthOrSurrogateChars;
+        mIndexedColumns = 0;
+        mVersion++;
+    }
+
+    /** If the row is compact, in which case it must be expanded with {@link #expand()} before being read or written. */
+    boolean isCompact() {
+        return mStyleIndices == null && mStyle == null;
+    }
+
+    /**
+     * Shrink the row to take as little memory as possible while it is in the transcript: the trailing spaces are
+     * trimmed from {@link #mText}, which is then exactly as long as needed, and the styles are run-length encoded, or
+     * dropped if they are all {@link TextStyle#NORMAL}. Only {@link #getSpaceUsed()} and {@link #mLineWrap} are
+     * valid until the row is expanded again.
+     */
+    void compact() {
+        if (isCompact()) return;
+
+        int textLength = mSpaceUsed;
+        while (textLength > 0 && mText[textLength - 1] == ' ') textLength--;
+        mText = (textLength == 0) ? EMPTY_TEXT : Arrays.copyOf(mText, textLength);
+
+        int runs = 1;
+        for (int column = 1; column < mColumns; column++)
+            if (getStyle(column) != getStyle(column - 1)) runs++;
+        if (runs == 1 && getStyle(0) == TextStyle.NORMAL) {
+            mStyleRunEnds = null;
+            mStyleRuns = null;
+        } else {
+            mStyleRunEnds = new int[runs];
+            mStyleRuns = new long[runs];
+            for (int column = 1, run = 0; column <= mColumns; column++) {
+                if (column == mColumns || getStyle(column) != getStyle(column - 1)) {
+                    mStyleRunEnds[run] = column;
+                    mStyleRuns[run++] = getStyle(column - 1);
+                }
+            }
+        }
+        mStyleIndices = null;
+        mStyle = null;
+        mColumnStarts = null;
+        mWideColumns = null;
+        mIndexedColumns = 0;
+    }
+
+    /** Create a compact copy of this row, leaving this row as it is. See {@link #compact()}. */
+    TerminalRow compactCopy() {
+        return compactCopy(null);
+    }
+
+    /**
+     * Like {@link #compactCopy()}, but reusing a compact row with as many columns which is no longer used, if not null,
+     * instead of allocating a new one.
+     */
+    TerminalRow compactCopy(TerminalRow unusedRow) {
+        final TerminalRow row;
+        if (unusedRow == null) {
+            row = new TerminalRow(this);
+        } else {
+            row = unusedRow;
+            row.share(this);
+            row.mVersion++;
+        }
+        row.compact();
+        return row;
+    }
+
+    /** Undo {@link #compact()}, restoring the full text and styles. Does nothing if the row is not compact. */
+    void expand() {
+        if (!isCompact()) return;
+
+        final char[] text = new char[Math.max((int) (SPARE_CAPACITY_FACTOR * mColumns), mSpaceUsed)];
+        System.arraycopy(mText, 0, text, 0, mText.length);
+        Arrays.fill(text, mText.length, text.length, ' ');
+
+        final int[] runEnds = mStyleRunEnds;
+        final long[] runs = mStyleRuns;
+        mText = text;
+        mStyleIndices = new char[mColumns];
+        mStyleRunEnds = null;
+        mStyleRuns = null;
+        if (runEnds == null) {
+            setStyle(0, mColumns, TextStyle.NORMAL);
+        } else {
+            for (int run = 0, start = 0; run < runEnds.length; start = runEnds[run++])
+                setStyle(start, runEnds[run], runs[run]);
+        }
+    }
+
+    /** The number of bytes {@link #writeTo(ByteBuffer)} writes for this row, which must be compact. */
+    int getArchivedSize() {
+        return 9 + 2 * mText.length + ((mStyleRunEnds == null) ? 0 : 10 * mStyleRunEnds.length);
+    }
+
+    /** Write a compact row to a buffer, to be read back with {@link #readFrom(ByteBuffer)}. */
+    void writeTo(ByteBuffer out) {
+        if (!isCompact()) throw new IllegalStateException("Row is not compact");
+        out.putShort((short) mColumns);
+        out.putShort(mSpaceUsed);
+        out.put((byte) ((mLineWrap ? 1 : 0) | (mHasNonOneWidthOrSurrogateChars ? 2 : 0)));
+        out.putShort((short) mText.length);
+        out.putShort((short) ((mStyleRunEnds == null) ? 0 : mStyleRunEnds.length));
+        for (char c : mText)
+            out.putChar(c);
+        if (mStyleRunEnds != null) {
+            for (int run = 0; run < mStyleRunEnds.length; run++) {
+                out.putShort((short) mStyleRunEnds[run]);
+                out.putLong(mStyleRuns[run]);
+            }
+        }
+    }
+
+    /** Read a row written with {@link #writeTo(ByteBuffer)}. The row is returned expanded. */
+    static TerminalRow readFrom(ByteBuffer in, TextStyleTable styleTable) {
+        final int columns = in.getShort();
+        final TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL, styleTable);
+        row.mSpaceUsed = in.getShort();
+        final int flags = in.get();
+        row.mLineWrap = (flags & 1) != 0;
+        row.mHasNonOneWidthOrSurrogateChars = (flags & 2) != 0;
+        final int textLength = in.getShort();
+        final int runs = in.getShort();
+        if (row.mSpaceUsed > row.mText.length) {
+            row.mText = new char[row.mSpaceUsed];
+            Arrays.fill(row.mText, textLength, row.mSpaceUsed, ' ');
+        }
+        for (int i = 0; i < textLength; i++)
+            row.mText[i] = in.getChar();
+        for (int run = 0, start = 0; run < runs; run++) {
+            int end = in.getShort();
+            row.setStyle(start, end, in.getLong());
+            start = end;
+        }
+        return row;
+    }
+
+    /**
+     * Create a copy of this row with another number of columns, truncating it or padding it with spaces. Unlike when
+     * reflowing on resize the text is not wrapped, which is used for rows that can not be rewritten.
+     */
+    TerminalRow withColumns(int columns) {
+        final TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL, mStyleTable);
+        row.mLineWrap = mLineWrap;
+        int column = 0;
+        for (int i = 0; i < mSpaceUsed; i++) {
+            char c = mText[i];
+            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[++i]) : c;
+            int width = WcWidth.width(codePoint);
+            if (width > 0) {
+                if (column + width > columns) break;
+                row.setChar(column, codePoint, getStyle(column));
+                column += width;
+            } else if (column > 0) {
+                row.setChar(column - 1, codePoint, getStyle(column - 1));
+            }
+        }
+        return row;
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
     public void setChar(int columnToSet, int codePoint, long style) {
-        if (columnToSet  < 0 || columnToSet >= mStyle.length)
+        if (columnToSet  < 0 || columnToSet >= mColumns)
             throw new IllegalArgumentException("TerminalRow.setChar(): columnToSet=" + columnToSet + ", codePoint=" + codePoint + ", style=" + style);
 
-        mStyle[columnToSet] = style;
+        setStyle(columnToSet, style);
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
 
@@ -212,6 +486,7 @@ public final class TerminalRow {
             newCharactersUsedForColumn += oldCharactersUsedForColumn;
         }
 
+        invalidateColumnsFrom(columnToSet);
         int oldNextColumnIndex = oldStartOfColumnIndex + oldCharactersUsedForColumn;
         int newNextColumnIndex = oldStartOfColumnIndex + newCharactersUsedForColumn;
 
@@ -270,6 +545,39 @@ public final class TerminalRow {
         }
     }
 
+    /**
+     * Write a run of printable ASCII characters starting at the specified column. As every character has display
+     * width 1, rows without wide, combining or surrogate chars are written directly into {@link #mText}.
+     */
+    public void setAsciiChars(int columnToSet, byte[] chars, int start, int end, long style) {
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = start; i < end; i++)
+                setChar(columnToSet++, chars[i], style);
+            return;
+        }
+
+        final char[] text = mText;
+        final int endColumn = columnToSet + end - start;
+        for (int i = start, column = columnToSet; i < end; i++, column++)
+            text[column] = (char) chars[i];
+        setStyle(columnToSet, endColumn, style);
+    }
+
+    /** Like {@link #setAsciiChars(int, byte[], int, int, long)}, but with absolute indices in a buffer. */
+    public void setAsciiChars(int columnToSet, ByteBuffer chars, int start, int end, long style) {
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = start; i < end; i++)
+                setChar(columnToSet++, chars.get(i), style);
+            return;
+        }
+
+        final char[] text = mText;
+        final int endColumn = columnToSet + end - start;
+        for (int i = start, column = columnToSet; i < end; i++, column++)
+            text[column] = (char) chars.get(i);
+        setStyle(columnToSet, endColumn, style);
+    }
+
     boolean isBlank() {
         for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
             if (mText[charIndex] != ' ') return false;
@@ -277,7 +585,47 @@ public final class TerminalRow {
     }
 
     public final long getStyle(int column) {
-        return mStyle[column];
+        final char[] styleIndices = mStyleIndices;
+        return (styleIndices != null) ? mStyleTable.getStyle(styleIndices[column]) : mStyle[column];
+    }
+
+    public final TextStyleTable getStyleTable() {
+        return mStyleTable;
+    }
+
+    /** The index of the style of a column in {@link #mStyleTable}, or -1 if the row does not use style indices. */
+    public final int getStyleIndex(int column) {
+        final char[] styleIndices = mStyleIndices;
+        return (styleIndices != null) ? styleIndices[column] : -1;
+    }
+
+    void setStyle(int column, long style) {
+        setStyle(column, column + 1, style);
+    }
+
+    /**
+     * Set the style of the columns from fromColumn (inclusive) to toColumn (exclusive). Every write to the row sets
+     * the style of what it writes, so this is also where {@link #mVersion} is incremented.
+     */
+    void setStyle(int fromColumn, int toColumn, long style) {
+        mVersion++;
+        if (mStyleIndices != null) {
+            final int index = mStyleTable.intern(style);
+            if (index >= 0) {
+                if (toColumn - fromColumn == 1) {
+                    mStyleIndices[fromColumn] = (char) index;
+                } else {
+                    Arrays.fill(mStyleIndices, fromColumn, toColumn, (char) index);
+                }
+                return;
+            }
+            // The table is full, store the styles themselves from now on.
+            mStyle = new long[mColumns];
+            for (int column = 0; column < mColumns; column++)
+                mStyle[column] = mStyleTable.getStyle(mStyleIndices[column]);
+            mStyleIndices = null;
+        }
+        Arrays.fill(mStyle, fromColumn, toColumn, style);
     }
 
 }
@@ -0,0 +1,73 @@
+package com.termux.terminal;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Rows which are no longer used by a {@link TerminalBuffer}, such as those of the old buffer after a resize or of a
+ * cleared transcript, kept with their arrays to be used again instead of allocating new rows. Rows are kept by their
+ * number of columns, and at most {@link #MAX_POOLED_ROWS} rows are kept in total.
+ * <p>
+ * Shared by all sessions, whose buffers may be changed from different threads, so all methods are synchronized.
+ */
+public final class TerminalRowPool {
+
+    static final int MAX_POOLED_ROWS = 1024;
+
+    private static final HashMap<Integer, ArrayDeque<TerminalRow>> sRowsByColumns = new HashMap<>();
+    private static int sSize;
+
+    private TerminalRowPool() {
+    }
+
+    /** Get a blank row with the specified style, which is taken from the pool if there is one with as many columns. */
+    static synchronized TerminalRow obtain(int columns, long style, TextStyleTable styleTable) {
+        final ArrayDeque<TerminalRow> rows = sRowsByColumns.get(columns);
+        final TerminalRow row = (rows == null) ? null : rows.pollLast();
+        if (row == null) return new TerminalRow(columns, style, styleTable);
+        sSize--;
+        row.mStyleTable = styleTable;
+        row.clear(style);
+        row.mLineWrap = false;
+        return row;
+    }
+
+    /**
+     * Put a row which is no longer used into the pool, unless it is full. Compact rows, see {@link TerminalRow#compact()},
+     * are not kept, as they have no arrays to use again.
+     */
+    static synchronized void recycle(TerminalRow row) {
+        if (row == null || row.isCompact() || sSize >= MAX_POOLED_ROWS) return;
+        ArrayDeque<TerminalRow> rows = sRowsByColumns.get(row.getColumns());
+        if (rows == null) sRowsByColumns.put(row.getColumns(), rows = new ArrayDeque<>());
+        rows.addLast(row);
+        sSize++;
+    }
+
+    /** The number of rows in the pool. */
+    static synchronized int size() {
+        return sSize;
+    }
+
+    /**
+     * Release pooled rows as the system asks the application to, see {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * Half of the rows are released while the application is running and memory is getting low, and all of them
+     * once it is lower or the application is no longer visible.
+     */
+    public static synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sRowsByColumns.clear();
+            sSize = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            for (ArrayDeque<TerminalRow> rows : sRowsByColumns.values()) {
+                for (int i = rows.size() / 2; i > 0; i--) {
+                    rows.pollFirst();
+                    sSize--;
+                }
+            }
+        }
+    }
+
+}
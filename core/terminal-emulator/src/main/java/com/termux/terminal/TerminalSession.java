@@ -2,27 +2,30 @@ package com.termux.terminal;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.view.Choreographer;
 
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int, int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * All terminal emulation and callback methods will be performed on the main thread, unless background parsing has been
+ * enabled with {@link #setBackgroundParsing(boolean)}.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -32,21 +35,71 @@ public final class TerminalSession extends TerminalOutput {
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SYNCHRONIZED_OUTPUT_TIMEOUT = 5;
+    private static final int MSG_REFLOW_TRANSCRIPT = 6;
+    private static final int MSG_RELEASE_ALTERNATE_BUFFER = 7;
+
+    /** The default capacity in bytes of {@link #mProcessToTerminalIOQueue} and {@link #mTerminalToProcessIOQueue}. */
+    public static final int DEFAULT_IO_QUEUE_CAPACITY = 4096;
+
+    /**
+     * The most input waiting for the process to read it, beyond {@link #mTerminalToProcessIOQueue}, after which further
+     * input is rejected, as the process is then most likely not reading at all.
+     */
+    public static final int MAX_PENDING_INPUT_BYTES = 16 << 20;
+    /** The pending input above which the client is told to hold back further input, see {@link #write(byte[], int, int)}. */
+    public static final int INPUT_BACKPRESSURE_BYTES = 64 << 10;
+    /** The most disk space taken by the rows archived by default, see {@link #setTranscriptArchiveDirectory(File)}. */
+    public static final long DEFAULT_TRANSCRIPT_ARCHIVE_MAX_BYTES = 64 << 20;
+
+    /**
+     * The default time in milliseconds the main thread may spend on processing output from the process each frame,
+     * leaving the rest of a 60 Hz frame for input handling and drawing.
+     */
+    public static final int DEFAULT_OUTPUT_FRAME_BUDGET_MILLIS = 8;
+
+    /**
+     * Output is parsed in place from {@link #mProcessToTerminalIOQueue} at most this many bytes at a time, so that the
+     * frame budget is checked, and the emulator lock released when parsing in the background, often enough.
+     */
+    private static final int MAX_APPEND_LENGTH = 4096;
 
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
 
     /**
-     * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * A queue written to from the {@link TerminalIOReactor} thread when the process outputs, and read by main thread
+     * (or the parser thread when parsing in the background) to process by terminal emulator.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final ByteQueue mProcessToTerminalIOQueue;
     /**
-     * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
-     * writing to the {@link #mTerminalFileDescriptor}.
+     * If a {@link #MSG_NEW_INPUT} message or processing of {@link #mProcessToTerminalIOQueue} is pending on the main
+     * thread, so that the I/O reactor only posts a message when the main thread is not already going to drain it.
      */
-    final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+    final AtomicBoolean mInputPending = new AtomicBoolean();
+    /**
+     * A queue written to from the main thread due to user interaction, and read by the {@link TerminalIOReactor}
+     * thread which forwards by writing to the {@link #mTerminalFileDescriptor}.
+     */
+    final ByteQueue mTerminalToProcessIOQueue;
+    /**
+     * Input which did not fit in {@link #mTerminalToProcessIOQueue} waiting to be moved into it by the
+     * {@link TerminalIOReactor} as the process reads, so that writing never blocks the main thread. Each is either a
+     * {@link ByteBuffer} with a copy of the bytes of a write, or a {@link PasteEncoder} which encodes the next chunk of
+     * a paste as the last one has been moved, so that a large paste is not copied. Guarded by the lock of the queue,
+     * along with the fields below.
+     */
+    private final ArrayDeque<Object> mPendingInput = new ArrayDeque<>();
+    /** The number of bytes of {@link #mPendingInput}, including the chunks of pastes not encoded yet. */
+    private int mPendingInputBytes;
+    /** If {@link TerminalSessionClient#onInputBackpressure(TerminalSession, boolean)} was last called with true. */
+    private boolean mInputBackpressure;
+    /**
+     * If a write has been rejected as it would exceed {@link #MAX_PENDING_INPUT_BYTES}, after which all input is
+     * rejected until the pending input before it has been moved to the queue.
+     */
+    private boolean mInputRejected;
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -64,12 +117,32 @@ public final class TerminalSession extends TerminalOutput {
      * {@link JNI#createSubprocess(String, String, String[], String[], int[], int, int, int, int)}.
      */
     private int mTerminalFileDescriptor;
+    /** The state of the session in the {@link TerminalIOReactor} doing the I/O with {@link #mTerminalFileDescriptor}. */
+    private TerminalIOReactor.Channel mIOChannel;
+    /** The window size last set on the pty, so that it is only set again when it changes. */
+    private int mPtyColumns, mPtyRows, mPtyCellWidthPixels, mPtyCellHeightPixels;
 
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
     final Handler mMainThreadHandler = new MainThreadHandler();
 
+    /** If output is processed from a {@link Choreographer} frame callback instead of directly from a message. */
+    private boolean mFrameAlignedOutput = true;
+    private long mOutputFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OUTPUT_FRAME_BUDGET_MILLIS);
+    /** If output from the process is parsed on a thread of the session instead of the main thread. */
+    private boolean mBackgroundParsing;
+    /**
+     * The exit code of the process when parsing in the background, handed to the parser thread which posts the
+     * {@link #MSG_PROCESS_EXITED} message once it has parsed all output. Published by {@link ByteQueue#finish()}.
+     */
+    private int mExitCodeAfterParsing;
+    /** The directory where rows dropped from the transcript are kept, or null if they are lost. */
+    private File mTranscriptArchiveDirectory;
+    private long mTranscriptArchiveMaxBytes;
+    /** If {@link #release()} has been called, after which the emulator is released once the process has exited. */
+    private boolean mReleased;
+
     private final String mShellPath;
     private final String mCwd;
     private final String[] mArgs;
@@ -80,6 +153,18 @@ public final class TerminalSession extends TerminalOutput {
     private static final String LOG_TAG = "TerminalSession";
 
     public TerminalSession(String shellPath, String cwd, String[] args, String[] env, Integer transcriptRows, TerminalSessionClient client) {
+        this(shellPath, cwd, args, env, transcriptRows, DEFAULT_IO_QUEUE_CAPACITY, client);
+    }
+
+    /**
+     * @param ioQueueCapacity The capacity in bytes of each of the queues between the process and the terminal. A
+     *                        larger queue lets the process keep writing while the main thread is busy, at the cost
+     *                        of memory for each session.
+     */
+    public TerminalSession(String shellPath, String cwd, String[] args, String[] env, Integer transcriptRows, int ioQueueCapacity,
+                           TerminalSessionClient client) {
+        this.mProcessToTerminalIOQueue = ByteQueue.allocateDirect(ioQueueCapacity);
+        this.mTerminalToProcessIOQueue = new ByteQueue(ioQueueCapacity);
         this.mShellPath = shellPath;
         this.mCwd = cwd;
         this.mArgs = args;
@@ -104,8 +189,23 @@ public final class TerminalSession extends TerminalOutput {
         if (mEmulator == null) {
             initializeEmulator(columns, rows, cellWidthPixels, cellHeightPixels);
         } else {
-            JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns, cellWidthPixels, cellHeightPixels);
-            mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+            if (columns != mPtyColumns || rows != mPtyRows || cellWidthPixels != mPtyCellWidthPixels || cellHeightPixels != mPtyCellHeightPixels) {
+                // Every change of size sends SIGWINCH to the foreground process, which often redraws its whole screen.
+                JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns, cellWidthPixels, cellHeightPixels);
+                mPtyColumns = columns;
+                mPtyRows = rows;
+                mPtyCellWidthPixels = cellWidthPixels;
+                mPtyCellHeightPixels = cellHeightPixels;
+            }
+            final boolean reflowing;
+            synchronized (mEmulator) {
+                mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+                reflowing = mEmulator.isReflowingTranscript();
+            }
+            // Only the screen has been reflowed, the older transcript rows are reflowed a part at a time in between
+            // handling input and drawing:
+            if (reflowing && !mMainThreadHandler.hasMessages(MSG_REFLOW_TRANSCRIPT))
+                mMainThreadHandler.sendEmptyMessage(MSG_REFLOW_TRANSCRIPT);
         }
     }
 
@@ -122,61 +222,204 @@ public final class TerminalSession extends TerminalOutput {
      */
     public void initializeEmulator(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         mEmulator = new TerminalEmulator(this, columns, rows, cellWidthPixels, cellHeightPixels, mTranscriptRows, mClient);
+        mEmulator.setIncrementalReflow(true);
+        if (mTranscriptArchiveDirectory != null)
+            mEmulator.mMainBuffer.setArchive(new TranscriptArchive(mTranscriptArchiveDirectory, TranscriptArchive.SEGMENT_SIZE,
+                (int) Math.max(1, Math.min(Integer.MAX_VALUE, mTranscriptArchiveMaxBytes / TranscriptArchive.SEGMENT_SIZE))));
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns, cellWidthPixels, cellHeightPixels);
         mShellPid = processId[0];
         mClient.setTerminalShellPid(this, mShellPid);
+        mPtyColumns = columns;
+        mPtyRows = rows;
+        mPtyCellWidthPixels = cellWidthPixels;
+        mPtyCellHeightPixels = cellHeightPixels;
 
-        final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor, mClient);
+        mIOChannel = TerminalIOReactor.getInstance().register(this, mTerminalFileDescriptor, mShellPid);
 
-        new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
+        if (mBackgroundParsing) {
+            new Thread("TermSessionParser[pid=" + mShellPid + "]") {
+                @Override
+                public void run() {
                     while (true) {
-                        int read = termIn.read(buffer);
-                        if (read == -1) return;
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                        ByteBuffer output = mProcessToTerminalIOQueue.peek(MAX_APPEND_LENGTH, true);
+                        if (output == null) {
+                            // The process has exited and all its output has been parsed.
+                            mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, mExitCodeAfterParsing));
+                            return;
+                        }
+                        int length = output.remaining();
+                        synchronized (mEmulator) {
+                            mEmulator.append(output);
+                        }
+                        mProcessToTerminalIOQueue.consume(length);
+                        mIOChannel.resumeReading();
+                        notifyInputPending();
                     }
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
                 }
-            }
-        }.start();
+            }.start();
+        }
 
-        new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                final byte[] buffer = new byte[4096];
-                try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    while (true) {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) return;
-                        termOut.write(buffer, 0, bytesToWrite);
+        if (!mIOChannel.isWatchingProcess()) {
+            // No pidfd support in the kernel or the Android version.
+            new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
+                @Override
+                public void run() {
+                    mIOChannel.onProcessExited(JNI.waitFor(mShellPid));
+                }
+            }.start();
+        }
+    }
+
+    /** Called by the {@link TerminalIOReactor} thread after reading output from the process into the queue. */
+    void onProcessOutput() {
+        if (!mBackgroundParsing) notifyInputPending();
+    }
+
+    /**
+     * Called by the {@link TerminalIOReactor} when the process has exited and all of its output has been read into
+     * {@link #mProcessToTerminalIOQueue}, which is then finished. The exit is handled after what is left in the queue
+     * has been parsed, so that none of the output is lost or ends up after the exit message.
+     */
+    void onProcessExited(int exitCode) {
+        if (mBackgroundParsing) {
+            // The parser thread posts the exit once it has parsed the rest.
+            mExitCodeAfterParsing = exitCode;
+            mProcessToTerminalIOQueue.finish();
+        } else {
+            // The main thread parses the rest when handling the exit.
+            mProcessToTerminalIOQueue.finish();
+            mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitCode));
+        }
+    }
+
+    /** Post a {@link #MSG_NEW_INPUT} message unless the main thread already has one pending. */
+    private void notifyInputPending() {
+        if (mInputPending.compareAndSet(false, true))
+            mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+    }
+
+    /**
+     * Write data to the shell process, without waiting for it to be read. What does not fit in the queue to the process
+     * is kept until it does, and {@link TerminalSessionClient#onInputBackpressure(TerminalSession, boolean)} is called
+     * while more than {@link #INPUT_BACKPRESSURE_BYTES} is kept.
+     * <p>
+     * A write which would make more than {@link #MAX_PENDING_INPUT_BYTES} pending is rejected as a whole, and so is all
+     * input after it until the input pending before it has been read, so that the process never gets input with a
+     * part missing in the middle.
+     */
+    @Override
+    public void write(byte[] data, int offset, int count) {
+        if (mShellPid > 0) {
+            boolean backpressureStarted = false;
+            boolean rejected = false;
+            // The queue allows a single writer, but the emulator may respond from the parser thread when parsing
+            // in the background while the main thread writes user input.
+            synchronized (mTerminalToProcessIOQueue) {
+                // As the only producer we know that at least the free space is accepted by offer().
+                final int fits = mPendingInput.isEmpty() ? Math.min(count, mTerminalToProcessIOQueue.getFreeSpace()) : 0;
+                if (mInputRejected || mPendingInputBytes + count - fits > MAX_PENDING_INPUT_BYTES) {
+                    mInputRejected = !mPendingInput.isEmpty();
+                    rejected = true;
+                } else {
+                    final int written = mPendingInput.isEmpty() ? mTerminalToProcessIOQueue.offer(data, offset, count) : 0;
+                    if (written < count) {
+                        mPendingInput.addLast(ByteBuffer.wrap(Arrays.copyOfRange(data, offset + written, offset + count)));
+                        mPendingInputBytes += count - written;
+                        if (!mInputBackpressure && mPendingInputBytes > INPUT_BACKPRESSURE_BYTES)
+                            backpressureStarted = mInputBackpressure = true;
                     }
-                } catch (IOException e) {
-                    // Ignore.
                 }
             }
-        }.start();
-
-        new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+            if (rejected) {
+                Logger.logWarn(mClient, LOG_TAG, "Rejecting " + count + " bytes of input as the process is not reading its input");
+                return;
             }
-        }.start();
+            mIOChannel.requestWrite();
+            if (backpressureStarted) runOnMainThread(() -> mClient.onInputBackpressure(this, true));
+        }
+    }
 
+    /**
+     * Only accepts writes leaving {@link #INPUT_BACKPRESSURE_BYTES} of room below {@link #MAX_PENDING_INPUT_BYTES}, for
+     * responses of the emulator which the parser thread may write meanwhile when parsing in the background.
+     */
+    @Override
+    public boolean canWrite(int count) {
+        synchronized (mTerminalToProcessIOQueue) {
+            return !mInputRejected && mPendingInputBytes + count <= MAX_PENDING_INPUT_BYTES - INPUT_BACKPRESSURE_BYTES;
+        }
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Keep the paste as pending input, which is only encoded a chunk at a time as there is room for it in
+     * {@link #mTerminalToProcessIOQueue}, and counts towards the limits of {@link #write(byte[], int, int)} by its
+     * whole length.
+     */
     @Override
-    public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+    boolean writePaste(PasteEncoder paste) {
+        if (mShellPid <= 0) return true;
+        boolean backpressureStarted = false;
+        boolean rejected = false;
+        synchronized (mTerminalToProcessIOQueue) {
+            if (!canWrite((int) Math.min(Integer.MAX_VALUE, paste.getLength()))) {
+                rejected = true;
+            } else {
+                mPendingInput.addLast(paste);
+                mPendingInputBytes += (int) paste.getLength();
+                offerPendingInput();
+                if (!mInputBackpressure && mPendingInputBytes > INPUT_BACKPRESSURE_BYTES)
+                    backpressureStarted = mInputBackpressure = true;
+            }
+        }
+        if (rejected) {
+            Logger.logWarn(mClient, LOG_TAG, "Rejecting a paste of " + paste.getLength() + " bytes as the process is not reading its input");
+            return false;
+        }
+        mIOChannel.requestWrite();
+        if (backpressureStarted) runOnMainThread(() -> mClient.onInputBackpressure(this, true));
+        return true;
+    }
+
+    /**
+     * Move as much pending input as fits into {@link #mTerminalToProcessIOQueue}, see {@link #write(byte[], int, int)}.
+     * Called by the {@link TerminalIOReactor} before it reads from the queue.
+     */
+    void movePendingInput() {
+        boolean backpressureEnded = false;
+        synchronized (mTerminalToProcessIOQueue) {
+            offerPendingInput();
+            if (mPendingInputBytes == 0) mInputRejected = false;
+            if (mInputBackpressure && mPendingInputBytes <= INPUT_BACKPRESSURE_BYTES / 2) {
+                mInputBackpressure = false;
+                backpressureEnded = true;
+            }
+        }
+        if (backpressureEnded) runOnMainThread(() -> mClient.onInputBackpressure(this, false));
+    }
+
+    /** Offer as much of {@link #mPendingInput} as fits to the queue. Called with the queue locked. */
+    private void offerPendingInput() {
+        Object input;
+        while ((input = mPendingInput.peekFirst()) != null) {
+            final ByteBuffer bytes = (input instanceof PasteEncoder) ? ((PasteEncoder) input).getBytes() : (ByteBuffer) input;
+            if (bytes == null || !bytes.hasRemaining()) {
+                mPendingInput.removeFirst();
+                continue;
+            }
+            final int written = mTerminalToProcessIOQueue.offer(bytes.array(), bytes.position(), bytes.remaining());
+            if (written == 0) break;
+            bytes.position(bytes.position() + written);
+            mPendingInputBytes -= written;
+        }
+    }
+
+    /** The number of bytes of input waiting for room in the queue to the process. */
+    public int getPendingInputBytes() {
+        synchronized (mTerminalToProcessIOQueue) {
+            return mPendingInputBytes;
+        }
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -216,6 +459,70 @@ public final class TerminalSession extends TerminalOutput {
         write(mUtf8InputBuffer, 0, bufferPosition);
     }
 
+    /**
+     * Set if output from the process should be processed once per display frame from a {@link Choreographer} frame
+     * callback, which is the default, or as soon as the main thread gets to it.
+     * <p>
+     * In both modes the screen is updated at most once per batch of processed output.
+     * <p>
+     * Must be called on the main thread.
+     */
+    public void setFrameAlignedOutput(boolean frameAligned) {
+        mFrameAlignedOutput = frameAligned;
+    }
+
+    /**
+     * Set the time in milliseconds the main thread may spend on processing output from the process before yielding
+     * to other work such as drawing, see {@link #DEFAULT_OUTPUT_FRAME_BUDGET_MILLIS}. Remaining output is processed
+     * in the next frame.
+     * <p>
+     * Must be called on the main thread.
+     */
+    public void setOutputFrameBudget(int budgetMillis) {
+        if (budgetMillis <= 0) throw new IllegalArgumentException("budgetMillis <= 0");
+        mOutputFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    /**
+     * Set if output from the process should be parsed by the emulator on a dedicated thread of the session instead of
+     * on the main thread, so that heavy output does not compete with input handling and drawing. Must be called before the
+     * emulator is initialized by the first {@link #updateSize(int, int, int, int)}.
+     * <p>
+     * When enabled, all access to the emulator must be done in a block synchronized on it. Views should render
+     * from a {@link TerminalSnapshot} updated while holding the lock instead of from the emulator directly. The
+     * {@link TerminalSessionClient} callbacks are still made on the main thread, except for the logging ones,
+     * {@link TerminalSessionClient#getTerminalCursorStyle()} and
+     * {@link TerminalSessionClient#onTerminalCursorStateChange(boolean)}.
+     */
+    public void setBackgroundParsing(boolean backgroundParsing) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mBackgroundParsing = backgroundParsing;
+    }
+
+    public boolean isBackgroundParsing() {
+        return mBackgroundParsing;
+    }
+
+    /**
+     * Keep the rows which scroll out of the transcript in files in the specified directory, typically in the cache
+     * directory of the app, instead of dropping them, so that the scrollback goes far beyond the number of rows kept
+     * in memory as specified to the constructor. At most {@link #DEFAULT_TRANSCRIPT_ARCHIVE_MAX_BYTES} are kept.
+     * Must be called before the emulator is initialized by the first {@link #updateSize(int, int, int, int)}.
+     */
+    public void setTranscriptArchiveDirectory(File directory) {
+        setTranscriptArchiveDirectory(directory, DEFAULT_TRANSCRIPT_ARCHIVE_MAX_BYTES);
+    }
+
+    /**
+     * Like {@link #setTranscriptArchiveDirectory(File)}, keeping at most about maxBytes of archived rows, after which
+     * the oldest rows are dropped a few MiB at a time. At least one segment of 4 MiB is kept.
+     */
+    public void setTranscriptArchiveDirectory(File directory, long maxBytes) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mTranscriptArchiveDirectory = directory;
+        mTranscriptArchiveMaxBytes = maxBytes;
+    }
+
     public TerminalEmulator getEmulator() {
         return mEmulator;
     }
@@ -227,7 +534,9 @@ public final class TerminalSession extends TerminalOutput {
 
     /** Reset state for terminal emulator state. */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulator) {
+            mEmulator.reset();
+        }
         notifyScreenUpdate();
     }
 
@@ -242,6 +551,31 @@ public final class TerminalSession extends TerminalOutput {
         }
     }
 
+    /**
+     * Finish this session once the client no longer shows it, such as when removing it. The process is killed if
+     * still running, and once it has exited the resources kept for showing the session are released: the rows
+     * archived from its transcript are dropped and the rows of its buffers go to the {@link TerminalRowPool}. Unlike when the process exits by itself, after which the session can still
+     * be shown and scrolled, the session can no longer be shown after this. Must be called on the main thread.
+     */
+    public void release() {
+        if (mReleased || mEmulator == null) return;
+        mReleased = true;
+        if (isRunning()) {
+            finishIfRunning();
+        } else {
+            releaseEmulator();
+        }
+    }
+
+    /** Release what is kept for showing the emulator, see {@link #release()}. */
+    private void releaseEmulator() {
+        mMainThreadHandler.removeMessages(MSG_REFLOW_TRANSCRIPT);
+        mMainThreadHandler.removeMessages(MSG_RELEASE_ALTERNATE_BUFFER);
+        synchronized (mEmulator) {
+            mEmulator.release();
+        }
+    }
+
     /** Cleanup resources when the process exits. */
     void cleanupResources(int exitStatus) {
         synchronized (this) {
@@ -249,15 +583,22 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        // Stop the I/O of the reactor, and close the pty. The parser thread has already ended when parsing in the
+        // background, as the exit is only handled after it has parsed all output.
+        synchronized (mTerminalToProcessIOQueue) {
+            mPendingInput.clear();
+            mPendingInputBytes = 0;
+            mInputRejected = false;
+        }
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
+        mIOChannel.close();
         JNI.close(mTerminalFileDescriptor);
     }
 
     @Override
     public void titleChanged(String oldTitle, String newTitle) {
-        mClient.onTitleChanged(this);
+        runOnMainThread(() -> mClient.onTitleChanged(this));
     }
 
     public synchronized boolean isRunning() {
@@ -271,22 +612,31 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void onCopyTextToClipboard(String text) {
-        mClient.onCopyTextToClipboard(this, text);
+        runOnMainThread(() -> mClient.onCopyTextToClipboard(this, text));
     }
 
     @Override
     public void onPasteTextFromClipboard() {
-        mClient.onPasteTextFromClipboard(this);
+        runOnMainThread(() -> mClient.onPasteTextFromClipboard(this));
     }
 
     @Override
     public void onBell() {
-        mClient.onBell(this);
+        runOnMainThread(() -> mClient.onBell(this));
     }
 
     @Override
     public void onColorsChanged() {
-        mClient.onColorsChanged(this);
+        runOnMainThread(() -> mClient.onColorsChanged(this));
+    }
+
+    /** Run a callback of the emulator directly if on the main thread, or post it there if parsing in the background. */
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            runnable.run();
+        } else {
+            mMainThreadHandler.post(runnable);
+        }
     }
 
     public int getPid() {
@@ -314,39 +664,46 @@ public final class TerminalSession extends TerminalOutput {
         return null;
     }
 
-    private static FileDescriptor wrapFileDescriptor(int fileDescriptor, TerminalSessionClient client) {
-        FileDescriptor result = new FileDescriptor();
-        try {
-            Field descriptorField;
-            try {
-                descriptorField = FileDescriptor.class.getDeclaredField("descriptor");
-            } catch (NoSuchFieldException e) {
-                // For desktop java:
-                descriptorField = FileDescriptor.class.getDeclaredField("fd");
-            }
-            descriptorField.setAccessible(true);
-            descriptorField.set(result, fileDescriptor);
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException e) {
-            Logger.logStackTraceWithMessage(client, LOG_TAG, "Error accessing FileDescriptor#descriptor private field", e);
-            System.exit(1);
-        }
-        return result;
-    }
-
     @SuppressLint("HandlerLeak")
-    class MainThreadHandler extends Handler {
+    class MainThreadHandler extends Handler implements Choreographer.FrameCallback {
 
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
+        private boolean mFrameCallbackPosted;
+        /** If a screen update has been held back as the emulator is in synchronized output mode. */
+        private boolean mScreenUpdateHeld;
 
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
+            if (msg.what == MSG_NEW_INPUT) {
+                if (mFrameAlignedOutput) {
+                    postFrameCallback();
+                } else {
+                    processInput(mOutputFrameBudgetNanos);
+                }
+            } else if (msg.what == MSG_SYNCHRONIZED_OUTPUT_TIMEOUT) {
+                // The program has not ended synchronized output in time, show what it has output so far.
+                if (mScreenUpdateHeld) {
+                    mScreenUpdateHeld = false;
+                    notifyScreenUpdate();
+                }
+            } else if (msg.what == MSG_REFLOW_TRANSCRIPT) {
+                final boolean reflowing;
+                synchronized (mEmulator) {
+                    reflowing = mEmulator.reflowTranscript(mOutputFrameBudgetNanos);
+                }
                 notifyScreenUpdate();
-            }
+                if (reflowing) sendEmptyMessage(MSG_REFLOW_TRANSCRIPT);
+            } else if (msg.what == MSG_RELEASE_ALTERNATE_BUFFER) {
+                releaseIdleAlternateBuffer();
+            } else if (msg.what == MSG_PROCESS_EXITED) {
+                if (mFrameCallbackPosted) {
+                    Choreographer.getInstance().removeFrameCallback(this);
+                    mFrameCallbackPosted = false;
+                }
+                mScreenUpdateHeld = false;
+                removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+                // Show all output of the process before the exit message:
+                processInput(Long.MAX_VALUE);
 
-            if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
                 cleanupResources(exitCode);
 
@@ -361,11 +718,112 @@ public final class TerminalSession extends TerminalOutput {
                 exitDescription += " - press Enter]";
 
                 byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
+                synchronized (mEmulator) {
+                    mEmulator.append(bytesToWrite, bytesToWrite.length);
+                }
                 notifyScreenUpdate();
 
                 mClient.onSessionFinished(TerminalSession.this);
+                // The client released the session while the process was running:
+                if (mReleased) releaseEmulator();
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPosted = false;
+            processInput(mOutputFrameBudgetNanos);
+        }
+
+        private void postFrameCallback() {
+            if (!mFrameCallbackPosted) {
+                mFrameCallbackPosted = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        /**
+         * Drain {@link #mProcessToTerminalIOQueue} into the emulator until it is empty or the budget has been used, in
+         * which case processing continues in the next frame or message, and notify about a screen update once. When
+         * parsing in the background only the screen update is left to do.
+         */
+        private void processInput(long budgetNanos) {
+            if (mBackgroundParsing) {
+                // The output has already been parsed, clear the flag before the client reads the emulator so that
+                // the parser thread posts a new message for output parsed after this.
+                mInputPending.set(false);
+                notifyScreenUpdateUnlessSynchronized();
+                return;
+            }
+
+            final long startNanos = System.nanoTime();
+            boolean appended = false;
+            while (true) {
+                ByteBuffer output = mProcessToTerminalIOQueue.peek(MAX_APPEND_LENGTH, false);
+                if (output == null) break;
+                if (!output.hasRemaining()) {
+                    // Clear the flag before checking again, so that the reactor thread either sees it cleared and posts
+                    // a new message, or has written output which we read here.
+                    mInputPending.set(false);
+                    output = mProcessToTerminalIOQueue.peek(MAX_APPEND_LENGTH, false);
+                    if (output == null || !output.hasRemaining()) break;
+                    mInputPending.set(true);
+                }
+                int length = output.remaining();
+                mEmulator.append(output);
+                mProcessToTerminalIOQueue.consume(length);
+                mIOChannel.resumeReading();
+                appended = true;
+
+                if (System.nanoTime() - startNanos >= budgetNanos) {
+                    // Yield to drawing and input handling, mInputPending stays set as we continue later.
+                    if (mFrameAlignedOutput) {
+                        postFrameCallback();
+                    } else {
+                        sendEmptyMessage(MSG_NEW_INPUT);
+                    }
+                    break;
+                }
+            }
+            if (appended) notifyScreenUpdateUnlessSynchronized();
+        }
+
+        /**
+         * Notify about a screen update, unless a program is in the middle of updating the screen with synchronized
+         * output, see {@link TerminalEmulator#isSynchronizedOutput()}. The update is then held back until output
+         * ending synchronized output has been processed, or until the timeout of the mode.
+         */
+        private void notifyScreenUpdateUnlessSynchronized() {
+            final boolean synchronizedOutput;
+            synchronized (mEmulator) {
+                synchronizedOutput = mEmulator.isSynchronizedOutput();
+            }
+            if (synchronizedOutput) {
+                if (!mScreenUpdateHeld) {
+                    mScreenUpdateHeld = true;
+                    sendEmptyMessageDelayed(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT, TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS);
+                }
+                return;
+            }
+            if (mScreenUpdateHeld) {
+                mScreenUpdateHeld = false;
+                removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+            }
+            notifyScreenUpdate();
+            if (!hasMessages(MSG_RELEASE_ALTERNATE_BUFFER)) releaseIdleAlternateBuffer();
+        }
+
+        /**
+         * Release the alternate buffer of the emulator if it has not been used for a while, see
+         * {@link TerminalEmulator#releaseIdleAlternateBuffer()}, or else check again once it may be released, so that
+         * it is released also when no more output follows after a full screen program has exited.
+         */
+        private void releaseIdleAlternateBuffer() {
+            final long delayMillis;
+            synchronized (mEmulator) {
+                delayMillis = mEmulator.releaseIdleAlternateBuffer();
             }
+            if (delayMillis >= 0) sendEmptyMessageDelayed(MSG_RELEASE_ALTERNATE_BUFFER, delayMillis);
         }
 
     }
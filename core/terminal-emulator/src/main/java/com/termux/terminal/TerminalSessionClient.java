@@ -26,6 +26,12 @@ public interface TerminalSessionClient {
 
     void onTerminalCursorStateChange(boolean state);
 
+    /**
+     * Called with true when input written to the session, such as a large paste, is piling up as the process does not
+     * read it fast enough, and with false once most of it has been read, so that the client can hold back more input.
+     */
+    void onInputBackpressure(@NonNull TerminalSession session, boolean backpressure);
+
     void setTerminalShellPid(@NonNull TerminalSession session, int pid);
 
 
@@ -0,0 +1,131 @@
+package com.termux.terminal;
+
+/**
+ * A copy of the rows of a {@link TerminalEmulator} shown in a view, along with the cursor and color state needed to
+ * render them, which can be read without holding the lock of the emulator.
+ * <p>
+ * Used when a {@link TerminalSession} parses output on a background thread, see
+ * {@link TerminalSession#setBackgroundParsing(boolean)}. The snapshot is updated with the emulator locked, and only
+ * copies the rows that have been damaged since the last update, see {@link TerminalBuffer#isRowDamaged(int)}, so
+ * the owner must clear the damage of the screen after each update.
+ * <p>
+ * Also used to keep drawing the last complete screen while a program is in the middle of updating it with
+ * synchronized output, see {@link #updateUnlessSynchronized(TerminalEmulator, int)}.
+ */
+public final class TerminalSnapshot {
+
+    private int mColumns;
+    private int mRows;
+    private int mTopRow;
+    private TerminalBuffer mScreen;
+    private TerminalRow[] mLines = new TerminalRow[0];
+
+    private int mCursorRow;
+    private int mCursorCol;
+    private boolean mCursorVisible;
+    private int mCursorStyle;
+    private boolean mReverseVideo;
+    private final int[] mPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+
+    /**
+     * Update the snapshot to show the emulator from the specified top row. Must be called with the emulator locked,
+     * that is, in a block synchronized on it.
+     *
+     * @param topRow The external row shown at the top of the view, from -activeTranscriptRows to 0.
+     */
+    public void update(TerminalEmulator emulator, int topRow) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int columns = emulator.mColumns;
+        final int rows = emulator.mRows;
+
+        boolean copyAllRows = (topRow != mTopRow || screen != mScreen);
+        if (columns != mColumns || rows != mRows || mLines[0].mStyleTable != screen.mStyleTable) {
+            // Rows with the style table of the screen copy its rows by style index.
+            mLines = new TerminalRow[rows];
+            for (int i = 0; i < rows; i++)
+                mLines[i] = new TerminalRow(columns, TextStyle.NORMAL, screen.mStyleTable);
+            mColumns = columns;
+            mRows = rows;
+            copyAllRows = true;
+        }
+        // Damage is tracked for screen rows, so when showing the transcript any change may have scrolled the view.
+        if (topRow < 0 && screen.hasDamage()) copyAllRows = true;
+
+        for (int i = 0; i < rows; i++) {
+            final int externalRow = topRow + i;
+            if (copyAllRows || screen.isRowDamaged(externalRow))
+                mLines[i].copyFrom(screen.allocateFullLineIfNecessary(screen.externalToInternalRow(externalRow)));
+        }
+        mTopRow = topRow;
+        mScreen = screen;
+
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mCursorVisible = emulator.shouldCursorBeVisible();
+        mCursorStyle = emulator.getCursorStyle();
+        mReverseVideo = emulator.isReverseVideo();
+        System.arraycopy(emulator.mColors.mCurrentColors, 0, mPalette, 0, mPalette.length);
+    }
+
+    /**
+     * Like {@link #update(TerminalEmulator, int)}, unless a program is in the middle of updating the screen with
+     * synchronized output, see {@link TerminalEmulator#isSynchronizedOutput()}, in which case the snapshot keeps the
+     * last complete screen and the damage of the screen is left for the update after the program is done. A snapshot
+     * which has never been updated is updated regardless.
+     *
+     * @return if the snapshot was updated.
+     */
+    public boolean updateUnlessSynchronized(TerminalEmulator emulator, int topRow) {
+        if (mScreen != null && emulator.isSynchronizedOutput()) return false;
+        update(emulator, topRow);
+        return true;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /** The external row shown at the top of the view at the last {@link #update(TerminalEmulator, int)}. */
+    public int getTopRow() {
+        return mTopRow;
+    }
+
+    /** Get the copy of the external row topRow + rowIndex, where rowIndex is from 0 to {@link #getRows()}. */
+    public TerminalRow getLine(int rowIndex) {
+        return mLines[rowIndex];
+    }
+
+    /** The table of the grapheme clusters which code points in the text of the rows may refer to. */
+    public GraphemeClusterTable getGraphemeClusters() {
+        return mScreen.mGraphemeClusters;
+    }
+
+    public int getCursorRow() {
+        return mCursorRow;
+    }
+
+    public int getCursorCol() {
+        return mCursorCol;
+    }
+
+    public boolean isCursorVisible() {
+        return mCursorVisible;
+    }
+
+    public int getCursorStyle() {
+        return mCursorStyle;
+    }
+
+    public boolean isReverseVideo() {
+        return mReverseVideo;
+    }
+
+    public int[] getPalette() {
+        return mPalette;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Interns the encoded styles, see {@link TextStyle}, used by the rows of a {@link TerminalBuffer}, so that each cell
+ * of a row only needs a 16 bit index into the table instead of the 64 bit style itself.
+ * <p>
+ * Styles are never removed since rows in the transcript may still refer to them, so at most {@link #MAX_STYLES}
+ * styles can be interned, after which {@link #intern(long)} fails and rows store their styles directly instead. Styles
+ * are interned by the thread parsing output, while the styles of indices already interned may be read concurrently
+ * with {@link #getStyle(int)}, such as when rendering a {@link TerminalSnapshot}.
+ */
+public final class TextStyleTable {
+
+    static final int MAX_STYLES = 1 << 16;
+
+    /** The interned styles by index, replaced when growing. */
+    private volatile long[] mStyles = new long[16];
+    /** Written after {@link #mStyles}, so that a reader which has seen a size also sees the styles up to it. */
+    private volatile int mSize;
+    /** An open addressing hash table of index + 1, or 0 for empty slots, which is kept at most half full. */
+    private int[] mSlots = new int[32];
+
+    /** The last interned style, as cells are mostly written in runs of the same style. */
+    private long mLastStyle;
+    private int mLastIndex = -1;
+
+    public TextStyleTable() {
+        intern(TextStyle.NORMAL);
+    }
+
+    /** The number of interned styles, which have indices from 0 to this number. */
+    public int size() {
+        return mSize;
+    }
+
+    public long getStyle(int index) {
+        return mStyles[index];
+    }
+
+    /** Get the index of a style, interning it if needed, or -1 if it is not interned and the table is full. */
+    int intern(long style) {
+        if (style == mLastStyle && mLastIndex >= 0) return mLastIndex;
+
+        long[] styles = mStyles;
+        final int mask = mSlots.length - 1;
+        int slot = hash(style) & mask;
+        for (int index; (index = mSlots[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+            if (styles[index] == style) {
+                mLastStyle = style;
+                return mLastIndex = index;
+            }
+        }
+
+        final int index = mSize;
+        if (index == MAX_STYLES) return -1;
+        if (index == styles.length) styles = Arrays.copyOf(styles, 2 * styles.length);
+        styles[index] = style;
+        mStyles = styles;
+        mSize = index + 1;
+        mSlots[slot] = index + 1;
+        if (2 * (index + 1) > mSlots.length) rehash(2 * mSlots.length);
+
+        mLastStyle = style;
+        return mLastIndex = index;
+    }
+
+    private void rehash(int slotCount) {
+        final long[] styles = mStyles;
+        final int[] slots = new int[slotCount];
+        final int mask = slotCount - 1;
+        for (int index = 0; index < mSize; index++) {
+            int slot = hash(styles[index]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+        mSlots = slots;
+    }
+
+    private static int hash(long style) {
+        int hash = (int) (style ^ (style >>> 32)) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+}
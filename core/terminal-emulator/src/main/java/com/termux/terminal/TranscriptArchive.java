@@ -0,0 +1,171 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the rows which scroll out of the transcript of a {@link TerminalBuffer} on disk, so that the history is not
+ * limited by the number of rows kept in memory.
+ * <p>
+ * Rows are appended in their compact form, see {@link TerminalRow#compact()}, to segment files of
+ * {@link #SEGMENT_SIZE} bytes which are memory-mapped, so that the kernel pages them in and out instead of them taking
+ * heap space. Each segment holds the rows from its start and the offsets of the rows from its end, so only the index
+ * of the first row of each segment and a small cache of rows read back are kept on the heap.
+ * <p>
+ * A segment file is deleted as soon as it has been mapped, so that nothing is left behind if the process dies. Its
+ * space is freed when the mapping is garbage collected after the archive is cleared or no longer used. If a segment
+ * can not be created, for instance when the disk is full, further rows are dropped as they would be without an archive.
+ * <p>
+ * At most a maximum number of segments are kept, after which the oldest segment is dropped with its rows to make room
+ * for a new one, so that neither the disk space nor the address space taken by the mappings grows without bound.
+ */
+final class TranscriptArchive {
+
+    static final int SEGMENT_SIZE = 4 << 20;
+    /** The most segments kept by default, taking 64 MiB. */
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int CACHED_ROWS = 256;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<>();
+    /** The index of the first row of each segment. */
+    private int[] mSegmentFirstRows = new int[16];
+    private int mRowCount;
+    /** Where the next row is written in the last segment. */
+    private int mWritePosition;
+    private boolean mFailed;
+
+    /** Rows read back, by index, with {@link #mCachedColumns} columns. */
+    private final LinkedHashMap<Integer, TerminalRow> mCachedRows = new LinkedHashMap<Integer, TerminalRow>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TerminalRow> eldest) {
+            return size() > CACHED_ROWS;
+        }
+    };
+    private int mCachedColumns;
+
+    TranscriptArchive(File directory) {
+        this(directory, SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    TranscriptArchive(File directory, int segmentSize, int maxSegments) {
+        if (maxSegments < 1) throw new IllegalArgumentException("maxSegments < 1");
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+    }
+
+    /** The number of rows in the archive, with index 0 being the oldest. */
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    /** Append a row, which is made compact if it is not. */
+    void append(TerminalRow row) {
+        if (mFailed) return;
+        row.compact();
+
+        final int size = row.getArchivedSize();
+        MappedByteBuffer segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || mWritePosition + size > getOffsetTablePosition(mSegments.size() - 1) - 4) {
+            segment = createSegment();
+            if (segment == null) return;
+        }
+
+        final int segmentIndex = mSegments.size() - 1;
+        final int offsetPosition = getOffsetTablePosition(segmentIndex) - 4;
+        segment.position(mWritePosition);
+        row.writeTo(segment);
+        segment.putInt(offsetPosition, mWritePosition);
+        mWritePosition += size;
+        mRowCount++;
+    }
+
+    /**
+     * Get a row, expanded and with the specified number of columns. Rows archived with another number of columns are
+     * truncated or padded. The returned row must not be modified.
+     */
+    TerminalRow getRow(int index, int columns, TextStyleTable styleTable) {
+        if (index < 0 || index >= mRowCount)
+            throw new IllegalArgumentException("index=" + index + ", mRowCount=" + mRowCount);
+        if (columns != mCachedColumns) {
+            mCachedRows.clear();
+            mCachedColumns = columns;
+        }
+
+        TerminalRow row = mCachedRows.get(index);
+        if (row == null) {
+            int segmentIndex = Arrays.binarySearch(mSegmentFirstRows, 0, mSegments.size(), index);
+            // Not an exact match gives -(insertion point) - 1, where the segment is the one before the insertion point.
+            if (segmentIndex < 0) segmentIndex = -segmentIndex - 2;
+            MappedByteBuffer segment = mSegments.get(segmentIndex);
+            int offsetPosition = mSegmentSize - 4 * (index - mSegmentFirstRows[segmentIndex] + 1);
+            segment.position(segment.getInt(offsetPosition));
+            row = TerminalRow.readFrom(segment, styleTable);
+            if (row.getColumns() != columns) row = row.withColumns(columns);
+            mCachedRows.put(index, row);
+        }
+        return row;
+    }
+
+    /** Remove all rows. */
+    void clear() {
+        mSegments.clear();
+        mCachedRows.clear();
+        mRowCount = 0;
+        mWritePosition = 0;
+        mFailed = false;
+    }
+
+    /** The position of the offset table of a segment, which grows towards the start from the end of the segment. */
+    private int getOffsetTablePosition(int segmentIndex) {
+        return mSegmentSize - 4 * (mRowCount - mSegmentFirstRows[segmentIndex]);
+    }
+
+    /** Drop the oldest segment and its rows, so that the rows after it start from index 0. */
+    private void dropOldestSegment() {
+        final int droppedRows = (mSegments.size() > 1) ? mSegmentFirstRows[1] : mRowCount;
+        // The mapping is released when garbage collected, the file has already been deleted.
+        mSegments.remove(0);
+        for (int i = 0; i < mSegments.size(); i++)
+            mSegmentFirstRows[i] = mSegmentFirstRows[i + 1] - droppedRows;
+        mRowCount -= droppedRows;
+        mCachedRows.clear();
+    }
+
+    private MappedByteBuffer createSegment() {
+        File file = null;
+        try {
+            mDirectory.mkdirs();
+            file = File.createTempFile("transcript-", ".seg", mDirectory);
+            MappedByteBuffer segment;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                segment = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            }
+
+            if (mSegments.size() == mMaxSegments) dropOldestSegment();
+            if (mSegments.size() == mSegmentFirstRows.length)
+                mSegmentFirstRows = Arrays.copyOf(mSegmentFirstRows, 2 * mSegmentFirstRows.length);
+            mSegmentFirstRows[mSegments.size()] = mRowCount;
+            mSegments.add(segment);
+            mWritePosition = 0;
+            return segment;
+        } catch (IOException e) {
+            mFailed = true;
+            return null;
+        } finally {
+            // The mapping stays valid after the file has been deleted.
+            if (file != null) file.delete();
+        }
+    }
+
+}
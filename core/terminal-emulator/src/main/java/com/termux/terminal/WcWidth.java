@@ -1,10 +1,18 @@
 package com.termux.terminal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Implementation of wcwidth(3) for Unicode 15.
  *
  * Implementation from https://github.com/jquast/wcwidth but we return 0 for unprintable characters.
  *
+ * The range tables below are the source of the widths, which the updateWcWidthTables task of the build regenerates
+ * from the tables of jquast/wcwidth. When the class is loaded they are packed into lookup tables with 2 bits per code
+ * point, a flat one for the Basic Multilingual Plane and a two-stage one with shared blocks for the other planes, so
+ * that {@link #width(int)} is a couple of array reads.
+ *
  * IMPORTANT:
  * Must be kept in sync with the following:
  * https://github.com/termux/wcwidth
@@ -490,6 +498,81 @@ public final class WcWidth {
     };
 
 
+    /** Code points are packed 2 bits each, 32 per long, in blocks of 256 code points. */
+    private static final int BLOCK_SHIFT = 8;
+    private static final int LONGS_PER_BLOCK = (1 << BLOCK_SHIFT) / 32;
+    private static final long ALL_WIDTH_ONE = 0x5555555555555555L;
+
+    /** The widths of the Basic Multilingual Plane. */
+    private static final long[] BMP_WIDTHS = new long[0x10000 / 32];
+    /** The block in {@link #SUPPLEMENTARY_WIDTHS} of each block of code points from U+10000. */
+    private static final char[] SUPPLEMENTARY_BLOCK_INDICES = new char[(0x110000 - 0x10000) >> BLOCK_SHIFT];
+    /** The distinct blocks of widths of the supplementary planes, most of which are all of width 1 or 2. */
+    private static final long[] SUPPLEMENTARY_WIDTHS;
+
+    static {
+        final long[][] blocks = new long[0x110000 >> BLOCK_SHIFT][];
+        // Later ranges take precedence, as in widthFromRanges().
+        for (int[] range : WIDE_EASTASIAN)
+            setWidths(blocks, range[0], range[1], 2);
+        for (int[] range : ZERO_WIDTH)
+            setWidths(blocks, range[0], range[1], 0);
+        setWidths(blocks, 0, 31, 0);
+        setWidths(blocks, 0x7F, 0x9F, 0);
+        setWidths(blocks, 0x034F, 0x034F, 0);
+        setWidths(blocks, 0x200B, 0x200F, 0);
+        setWidths(blocks, 0x2028, 0x202E, 0);
+        setWidths(blocks, 0x2060, 0x2063, 0);
+        setWidths(blocks, GraphemeClusterTable.FIRST_WIDE, GraphemeClusterTable.END - 1, 2);
+
+        final int bmpBlocks = 0x10000 >> BLOCK_SHIFT;
+        Arrays.fill(BMP_WIDTHS, ALL_WIDTH_ONE);
+        for (int block = 0; block < bmpBlocks; block++)
+            if (blocks[block] != null) System.arraycopy(blocks[block], 0, BMP_WIDTHS, block * LONGS_PER_BLOCK, LONGS_PER_BLOCK);
+
+        // Blocks without any range are all of width 1 and share the first block. There are only a few dozen distinct
+        // blocks, so a linear search for an equal block is enough.
+        final ArrayList<long[]> distinctBlocks = new ArrayList<>();
+        final long[] allWidthOne = new long[LONGS_PER_BLOCK];
+        Arrays.fill(allWidthOne, ALL_WIDTH_ONE);
+        distinctBlocks.add(allWidthOne);
+        for (int block = bmpBlocks, index = 0; block < blocks.length; block++) {
+            if (blocks[block] == null) continue;
+            // Consecutive blocks are often equal, such as in the CJK ideograph planes.
+            if (!Arrays.equals(distinctBlocks.get(index), blocks[block])) {
+                index = 0;
+                while (index < distinctBlocks.size() && !Arrays.equals(distinctBlocks.get(index), blocks[block])) index++;
+                if (index == distinctBlocks.size()) distinctBlocks.add(blocks[block]);
+            }
+            SUPPLEMENTARY_BLOCK_INDICES[block - bmpBlocks] = (char) index;
+        }
+        SUPPLEMENTARY_WIDTHS = new long[distinctBlocks.size() * LONGS_PER_BLOCK];
+        for (int index = 0; index < distinctBlocks.size(); index++)
+            System.arraycopy(distinctBlocks.get(index), 0, SUPPLEMENTARY_WIDTHS, index * LONGS_PER_BLOCK, LONGS_PER_BLOCK);
+    }
+
+    /** Set the width of the code points from first to last (inclusive), allocating blocks as needed. */
+    private static void setWidths(long[][] blocks, int first, int last, int width) {
+        final long allWidth = ALL_WIDTH_ONE * width;
+        for (int ucs = first; ucs <= last; ) {
+            long[] block = blocks[ucs >> BLOCK_SHIFT];
+            if (block == null) {
+                block = blocks[ucs >> BLOCK_SHIFT] = new long[LONGS_PER_BLOCK];
+                Arrays.fill(block, ALL_WIDTH_ONE);
+            }
+            final int index = (ucs >> 5) & (LONGS_PER_BLOCK - 1);
+            if ((ucs & 31) == 0 && last - ucs >= 31) {
+                // The whole long.
+                block[index] = allWidth;
+                ucs += 32;
+            } else {
+                final int shift = (ucs & 31) << 1;
+                block[index] = (block[index] & ~(3L << shift)) | ((long) width << shift);
+                ucs++;
+            }
+        }
+    }
+
     private static boolean intable(int[][] table, int c) {
         // First quick check f|| Latin1 etc. characters.
         if (c < table[0][0]) return false;
@@ -512,6 +595,19 @@ public final class WcWidth {
 
     /** Return the terminal display width of a code point: 0, 1 || 2. */
     public static int width(int ucs) {
+        if (ucs < 0x10000) {
+            // C0/C1 control characters
+            // Termux change: Return 0 instead of -1.
+            if (ucs < 0) return 0;
+            return (int) (BMP_WIDTHS[ucs >> 5] >>> ((ucs & 31) << 1)) & 3;
+        }
+        if (ucs > Character.MAX_CODE_POINT) return 1;
+        final int block = SUPPLEMENTARY_BLOCK_INDICES[(ucs - 0x10000) >> BLOCK_SHIFT];
+        return (int) (SUPPLEMENTARY_WIDTHS[block * LONGS_PER_BLOCK + ((ucs >> 5) & (LONGS_PER_BLOCK - 1))] >>> ((ucs & 31) << 1)) & 3;
+    }
+
+    /** The width of a code point looked up in the range tables, which {@link #width(int)} must agree with. */
+    static int widthFromRanges(int ucs) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
@@ -529,6 +625,9 @@ public final class WcWidth {
         // combining characters with zero width
         if (intable(ZERO_WIDTH, ucs)) return 0;
 
+        // Code points referring to wide grapheme clusters.
+        if (GraphemeClusterTable.FIRST_WIDE <= ucs && ucs < GraphemeClusterTable.END) return 2;
+
         return intable(WIDE_EASTASIAN, ucs) ? 2 : 1;
     }
 
@@ -1,11 +1,14 @@
 #include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
 #include <signal.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
 #include <sys/wait.h>
 #include <termios.h>
 #include <unistd.h>
@@ -14,6 +17,10 @@
 #ifdef __APPLE__
 # define LACKS_PTSNAME_R
 #endif
+#ifndef __NR_pidfd_open
+// The same on all architectures, but missing from the headers of older NDKs.
+# define __NR_pidfd_open 434
+#endif
 
 static int throw_runtime_exception(JNIEnv* env, char const* message)
 {
@@ -33,7 +40,8 @@ static int create_subprocess(JNIEnv* env,
         jint cell_width,
         jint cell_height)
 {
-    int ptm = open("/dev/ptmx", O_RDWR | O_CLOEXEC);
+    // Non-blocking as the master is polled by the I/O reactor, this does not affect the slave side used by the process.
+    int ptm = open("/dev/ptmx", O_RDWR | O_CLOEXEC | O_NONBLOCK);
     if (ptm < 0) return throw_runtime_exception(env, "Cannot open /dev/ptmx");
 
 #ifdef LACKS_PTSNAME_R
@@ -216,3 +224,77 @@ JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(
 {
     close(fileDescriptor);
 }
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createEpoll(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    int epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+    if (epoll_fd < 0) return throw_runtime_exception(env, "epoll_create1() failed");
+    return epoll_fd;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_epollControl(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint epoll_fd, jint operation, jint fd, jint events)
+{
+    struct epoll_event event = { .events = (uint32_t) events, .data.fd = fd };
+    return epoll_ctl(epoll_fd, operation, fd, &event) == 0 ? 0 : -errno;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_epollWait(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epoll_fd, jintArray eventsArray, jint timeout_millis)
+{
+    struct epoll_event events[64];
+    jsize max_events = (*env)->GetArrayLength(env, eventsArray) / 2;
+    if (max_events > 64) max_events = 64;
+
+    int count = epoll_wait(epoll_fd, events, max_events, timeout_millis);
+    if (count < 0) {
+        if (errno == EINTR) return 0;
+        return throw_runtime_exception(env, "epoll_wait() failed");
+    }
+
+    // Returned as pairs of file descriptor and ready events.
+    jint result[128];
+    for (int i = 0; i < count; i++) {
+        result[2 * i] = events[i].data.fd;
+        result[2 * i + 1] = (jint) events[i].events;
+    }
+    (*env)->SetIntArrayRegion(env, eventsArray, 0, 2 * count, result);
+    return count;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_openPidFileDescriptor(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    int pid_fd = (int) syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    if (pid_fd < 0) return -1;
+    fcntl(pid_fd, F_SETFD, FD_CLOEXEC);
+    return pid_fd;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_read(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject direct_buffer, jint offset, jint length)
+{
+    jbyte* bytes = (*env)->GetDirectBufferAddress(env, direct_buffer);
+    if (!bytes) return throw_runtime_exception(env, "GetDirectBufferAddress() failed");
+
+    ssize_t bytes_read;
+    do {
+        bytes_read = read(fd, bytes + offset, (size_t) length);
+    } while (bytes_read < 0 && errno == EINTR);
+
+    if (bytes_read < 0) return (errno == EAGAIN || errno == EWOULDBLOCK) ? 0 : -1;
+    // A pty master reports EIO instead of end of file when the slave side has been closed.
+    if (bytes_read == 0) return -1;
+    return (jint) bytes_read;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_write(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jbyteArray buffer, jint offset, jint length)
+{
+    jbyte bytes[4096];
+    if (length > (jint) sizeof(bytes)) length = sizeof(bytes);
+    (*env)->GetByteArrayRegion(env, buffer, offset, length, bytes);
+
+    ssize_t bytes_written;
+    do {
+        bytes_written = write(fd, bytes, (size_t) length);
+    } while (bytes_written < 0 && errno == EINTR);
+
+    if (bytes_written < 0) return (errno == EAGAIN || errno == EWOULDBLOCK) ? 0 : -1;
+    return (jint) bytes_written;
+}
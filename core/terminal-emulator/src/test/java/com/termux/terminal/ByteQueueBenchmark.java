@@ -0,0 +1,54 @@
+package com.termux.terminal;
+
+import java.util.Locale;
+
+/**
+ * Contention benchmark for {@link ByteQueue}, with one thread writing and another thread reading as fast as possible,
+ * like the threads of a {@link TerminalSession} under heavy output, printing the transfer rate for a few combinations
+ * of queue capacity and write and read sizes.
+ */
+public class ByteQueueBenchmark {
+
+	private static final long BYTES_TO_TRANSFER = 256L << 20;
+	private static final int ITERATIONS = 5;
+
+	static double measureMegabytesPerSecond(int capacity, int writeSize, int readSize) throws InterruptedException {
+		double best = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			final ByteQueue queue = new ByteQueue(capacity);
+			Thread writer = new Thread(() -> {
+				byte[] chunk = new byte[writeSize];
+				for (long written = 0; written < BYTES_TO_TRANSFER; written += writeSize)
+					queue.write(chunk, 0, writeSize);
+			});
+
+			byte[] buffer = new byte[readSize];
+			long start = System.nanoTime();
+			writer.start();
+			long read = 0;
+			while (read < BYTES_TO_TRANSFER)
+				read += queue.read(buffer, true);
+			long elapsedNanos = System.nanoTime() - start;
+			writer.join();
+			queue.close();
+
+			best = Math.max(best, (BYTES_TO_TRANSFER / (1024. * 1024.)) / (elapsedNanos / 1_000_000_000.));
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int[][] configurations = {
+			// capacity, write size, read size
+			{4096, 4096, 4096},
+			{4096, 64, 4096},
+			{65536, 4096, 4096},
+			{65536, 16384, 16384},
+		};
+		for (int[] c : configurations) {
+			System.out.println(String.format(Locale.US, "capacity=%d write=%d read=%d: %.1f MB/s", c[0], c[1], c[2],
+				measureMegabytesPerSecond(c[0], c[1], c[2])));
+		}
+	}
+
+}
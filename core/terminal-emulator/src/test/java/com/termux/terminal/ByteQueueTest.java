@@ -2,6 +2,8 @@ package com.termux.terminal;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+
 public class ByteQueueTest extends TestCase {
 
 	private static void assertArrayEquals(byte[] expected, byte[] actual) {
@@ -51,4 +53,124 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testOfferWritesWhatFits() {
+		ByteQueue q = new ByteQueue(4);
+		assertEquals(3, q.offer(new byte[]{1, 2, 3}, 0, 3));
+		assertEquals(1, q.offer(new byte[]{4, 5, 6}, 0, 3));
+		assertEquals(0, q.offer(new byte[]{5, 6}, 0, 2));
+
+		byte[] arr = new byte[2];
+		assertEquals(2, q.read(arr, false));
+		assertArrayEquals(new byte[]{1, 2}, arr);
+		// Wraps around:
+		assertEquals(2, q.offer(new byte[]{0, 5, 6}, 1, 2));
+		byte[] rest = new byte[4];
+		assertEquals(4, q.read(rest, false));
+		assertArrayEquals(new byte[]{3, 4, 5, 6}, rest);
+
+		q.close();
+		assertEquals(0, q.offer(new byte[]{1}, 0, 1));
+	}
+
+	public void testCloseUnblocksWriter() throws InterruptedException {
+		final ByteQueue queue = new ByteQueue(4);
+		final boolean[] writeResult = {true};
+		Thread writer = new Thread(() -> writeResult[0] = queue.write(new byte[8], 0, 8));
+		writer.start();
+		// The writer fills the queue and then blocks until it is closed:
+		Thread.sleep(50);
+		queue.close();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertFalse(writeResult[0]);
+		assertEquals(-1, queue.read(new byte[4], true));
+	}
+
+	public void testFinishLetsReaderDrain() throws InterruptedException {
+		final ByteQueue queue = new ByteQueue(8);
+		final int[] readResults = new int[2];
+		Thread reader = new Thread(() -> {
+			byte[] buffer = new byte[8];
+			readResults[0] = queue.read(buffer, true);
+			readResults[1] = queue.read(buffer, true);
+		});
+		assertTrue(queue.write(new byte[]{1, 2, 3}, 0, 3));
+		queue.finish();
+		reader.start();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(3, readResults[0]);
+		assertEquals(-1, readResults[1]);
+
+		// A reader waiting on the empty queue is woken up:
+		final ByteQueue emptyQueue = ByteQueue.allocateDirect(8);
+		final ByteBuffer[] peeked = {ByteBuffer.allocate(0)};
+		Thread waiter = new Thread(() -> peeked[0] = emptyQueue.peek(8, true));
+		waiter.start();
+		Thread.sleep(50);
+		emptyQueue.finish();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertNull(peeked[0]);
+	}
+
+	public void testConcurrentTransfer() throws InterruptedException {
+		final ByteQueue queue = new ByteQueue(7);
+		final int bytesToTransfer = 1 << 20;
+		Thread writer = new Thread(() -> {
+			byte[] chunk = new byte[13];
+			int next = 0;
+			while (next < bytesToTransfer) {
+				int length = Math.min(chunk.length, bytesToTransfer - next);
+				for (int i = 0; i < length; i++)
+					chunk[i] = (byte) (next + i);
+				queue.write(chunk, 0, length);
+				next += length;
+			}
+		});
+		writer.start();
+
+		byte[] buffer = new byte[5];
+		int expected = 0;
+		while (expected < bytesToTransfer) {
+			int read = queue.read(buffer, true);
+			assertTrue(read > 0);
+			for (int i = 0; i < read; i++)
+				assertEquals((byte) (expected + i), buffer[i]);
+			expected += read;
+		}
+		writer.join(5000);
+		assertEquals(0, queue.read(buffer, false));
+	}
+
+	public void testDirectPeekAndConsume() {
+		ByteQueue q = ByteQueue.allocateDirect(10);
+		assertEquals(0, q.peek(10, false).remaining());
+
+		assertTrue(q.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, 0, 8));
+		ByteBuffer view = q.peek(3, false);
+		assertEquals(3, view.remaining());
+		assertEquals(1, view.get(view.position()));
+		q.consume(3);
+
+		// Only the contiguous bytes up to the end of the storage are included after wrapping around.
+		assertTrue(q.write(new byte[]{9, 10, 11, 12}, 0, 4));
+		view = q.peek(10, true);
+		assertEquals(7, view.remaining());
+		byte[] arr = new byte[7];
+		view.get(arr);
+		assertArrayEquals(new byte[]{4, 5, 6, 7, 8, 9, 10}, arr);
+		q.consume(7);
+		assertEquals(8, q.getFreeSpace());
+
+		view = q.peek(10, true);
+		assertEquals(2, view.remaining());
+		assertEquals(11, view.get());
+		assertEquals(12, view.get());
+		q.consume(2);
+
+		q.close();
+		assertNull(q.peek(10, true));
+	}
+
 }
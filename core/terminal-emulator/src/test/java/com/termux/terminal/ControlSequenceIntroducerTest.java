@@ -128,4 +128,12 @@ public class ControlSequenceIntroducerTest extends TerminalTestCase {
         assertEquals(TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE, mTerminal.mEffect);
     }
 
+    /** C0 controls are executed in the middle of a sequence, while ESC starts a new one. */
+    public void testControlCharactersInsideSequence() {
+        withTerminalSized(5, 2).enterString("abc\033[1\bDx").assertLinesAre("axc  ", "     ");
+        withTerminalSized(5, 2).enterString("\033[3\r\nCx").assertLinesAre("     ", "   x ");
+        withTerminalSized(5, 2).enterString("\033[4\033[2Cx").assertLinesAre("  x  ", "     ");
+        withTerminalSized(5, 2).enterString("\033[?1\t;2\033[Gx").assertLinesAre("x    ", "     ");
+    }
+
 }
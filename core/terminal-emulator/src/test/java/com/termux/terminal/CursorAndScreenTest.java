@@ -263,4 +263,28 @@ public class CursorAndScreenTest extends TerminalTestCase {
 		Assert.assertEquals(TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE, TextStyle.decodeEffect(s));
 	}
 
+	public void testAlternateBufferCreatedWhenUsedAndReleasedWhenIdle() {
+		withTerminalSized(4, 2);
+		assertNull(mTerminal.mAltBuffer);
+		resize(5, 3);
+		assertNull(mTerminal.mAltBuffer);
+
+		enterString("a\033[?1049hbc").assertLinesAre(" bc  ", "     ", "     ");
+		assertNotNull(mTerminal.mAltBuffer);
+		enterString("\033[?1049ld").assertLinesAre("ad   ", "     ", "     ");
+		long delayMillis = mTerminal.releaseIdleAlternateBuffer();
+		assertTrue(delayMillis > 0 && delayMillis <= mTerminal.mAltBufferReleaseDelayMillis);
+		assertNotNull("Kept until the release delay has passed", mTerminal.mAltBuffer);
+
+		mTerminal.mAltBufferReleaseDelayMillis = 0;
+		assertEquals(-1, mTerminal.releaseIdleAlternateBuffer());
+		assertNull(mTerminal.mAltBuffer);
+		enterString("e");
+		enterString("\033[?1049hf").assertLinesAre("   f ", "     ", "     ");
+		assertTrue(mTerminal.isAlternateBufferActive());
+		assertEquals("Not released while in use", -1, mTerminal.releaseIdleAlternateBuffer());
+		assertNotNull(mTerminal.mAltBuffer);
+		enterString("\033[?1049l").assertLinesAre("ade  ", "     ", "     ");
+	}
+
 }
@@ -64,6 +64,32 @@ public class DecSetTest extends TerminalTestCase {
 		assertEquals("Terminal reset() should disable bracketed paste mode", "a", mOutput.getOutputAndClear());
 	}
 
+	/** DECSET 2026, synchronized output, holds back screen updates while a program redraws the screen. */
+	public void testSynchronizedOutput() {
+		withTerminalSized(3, 3);
+		assertFalse(mTerminal.isSynchronizedOutput());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;2$y");
+
+		enterString("\033[?2026h");
+		assertTrue(mTerminal.isSynchronizedOutput());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;1$y");
+		enterString("abc\033[?2026l").assertLinesAre("abc", "   ", "   ");
+		assertFalse(mTerminal.isSynchronizedOutput());
+
+		enterString("\033[?2026h");
+		mTerminal.reset();
+		assertFalse("Terminal reset() should end synchronized output", mTerminal.isSynchronizedOutput());
+	}
+
+	public void testSynchronizedOutputTimeout() throws InterruptedException {
+		withTerminalSized(3, 3).enterString("\033[?2026h");
+		Thread.sleep(TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS + 50);
+		assertFalse(mTerminal.isSynchronizedOutput());
+		// Setting the mode again starts the timeout over.
+		enterString("\033[?2026h");
+		assertTrue(mTerminal.isSynchronizedOutput());
+	}
+
 	/** DECSET 7, DECAWM, controls wraparound mode. */
 	public void testWrapAroundMode() {
 		// Default with wraparound:
@@ -1,5 +1,8 @@
 package com.termux.terminal;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 public class HistoryTest extends TerminalTestCase {
 
@@ -30,4 +33,81 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testHistoryRowsCompact() {
+		withTerminalSized(3, 2).enterString("\033[44mab\r\n\033[0mcde\r\nfg");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(1, screen.getActiveTranscriptRows());
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+		assertFalse(screen.mLines[screen.externalToInternalRow(0)].isCompact());
+		assertEquals(4, TextStyle.decodeBackColor(getStyleAt(-1, 0)));
+		assertEquals(TextStyle.COLOR_INDEX_BACKGROUND, TextStyle.decodeBackColor(getStyleAt(-1, 2)));
+
+		// Rows scrolled back onto the screen are expanded, and compacted again when scrolled out.
+		resize(3, 3).assertLinesAre("ab ", "cde", "fg ");
+		assertEquals(0, screen.getActiveTranscriptRows());
+		resize(3, 2).assertLinesAre("cde", "fg ");
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+		assertHistoryStartsWith("ab ");
+	}
+
+	public void testTranscriptArchive() throws IOException {
+		File directory = Files.createTempDirectory("transcript-test").toFile();
+		// Two screen rows and two rows of transcript in memory, the rest goes to the archive.
+		TerminalBuffer buffer = new TerminalBuffer(3, 4, 2);
+		buffer.setArchive(new TranscriptArchive(directory));
+		long style = TextStyle.encode(1, 2, 0);
+		for (int i = 0; i < 10; i++) {
+			buffer.setChar(0, 1, '0' + i, style);
+			if (i % 2 == 0) buffer.setChar(1, 1, '\u4e2d', style);
+			if (i == 3) buffer.setLineWrap(1);
+			buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		}
+		// The first row scrolled into the transcript is the initially blank one.
+		assertEquals(10, buffer.getActiveTranscriptRows());
+		assertEquals(12, buffer.getActiveRows());
+		// Segment files are deleted as soon as they have been mapped.
+		assertEquals(0, directory.list().length);
+
+		assertEquals("", buffer.getSelectedText(0, -10, 2, -10));
+		assertEquals("0\u4e2d", buffer.getSelectedText(0, -9, 2, -9));
+		assertEquals("0\u4e2d\n1\n2\u4e2d\n3  4\u4e2d\n5", buffer.getSelectedText(0, -9, 2, -4));
+		assertEquals(style, buffer.getStyleAt(-9, 1));
+		assertEquals(TextStyle.NORMAL, buffer.getStyleAt(-8, 1));
+		assertTrue(buffer.getLineWrap(-6));
+		assertFalse(buffer.getLineWrap(-5));
+		assertEquals("8\u4e2d", buffer.getSelectedText(0, -1, 2, -1));
+
+		// Archived rows are truncated or padded instead of reflowed when the number of columns changes.
+		buffer.resize(2, 2, 4, new int[]{0, 0}, TextStyle.NORMAL, false);
+		int firstRow = -buffer.getActiveTranscriptRows() + 1;
+		assertEquals("0", buffer.getSelectedText(0, firstRow, 1, firstRow));
+
+		buffer.clearTranscript();
+		assertEquals(0, buffer.getActiveTranscriptRows());
+		assertTrue(directory.delete());
+	}
+
+	public void testTranscriptArchiveDropsOldestSegment() throws IOException {
+		File directory = Files.createTempDirectory("transcript-test").toFile();
+		TerminalBuffer buffer = new TerminalBuffer(3, 4, 2);
+		// Room for a handful of rows per segment, and at most two segments.
+		buffer.setArchive(new TranscriptArchive(directory, 64, 2));
+		for (int i = 0; i < 40; i++) {
+			buffer.setChar(0, 1, 'a' + (i % 26), TextStyle.NORMAL);
+			buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		}
+		int transcriptRows = buffer.getActiveTranscriptRows();
+		assertTrue(transcriptRows < 40);
+		assertTrue(transcriptRows > 2);
+		// The newest rows are kept, and the oldest kept row is readable. The first row scrolled out is the blank one.
+		assertEquals("m", buffer.getSelectedText(0, -1, 1, -1));
+		int oldestRow = 40 - transcriptRows;
+		String expectedOldest = (oldestRow == 0) ? "" : String.valueOf((char) ('a' + ((oldestRow - 1) % 26)));
+		assertEquals(expectedOldest, buffer.getSelectedText(0, -transcriptRows, 1, -transcriptRows));
+
+		buffer.releaseArchive();
+		assertEquals(2, buffer.getActiveTranscriptRows());
+		assertTrue(directory.delete());
+	}
+
 }
@@ -0,0 +1,86 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmark for {@link TerminalEmulator#append(byte[], int)}, printing the parsing throughput of build log like
+ * ASCII output, output heavy with SGR color changes and output moving the cursor around.
+ */
+public class ParserBenchmark {
+
+	private static final int STREAM_SIZE = 4 << 20;
+	/** Feed the emulator in chunks of the same size as TerminalSession reads from the process. */
+	private static final int CHUNK_SIZE = 4096;
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 20;
+
+	/** Build logs and similar, mostly printable ASCII and line feeds. */
+	static byte[] createAsciiStream(Random random) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < STREAM_SIZE) {
+			sb.append("[INFO] Compiling module com.example.foo.bar").append(random.nextInt(100000))
+				.append(" ... done in ").append(random.nextInt(1000)).append("ms\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Colored output, such as from ls or a syntax highlighter, with indexed and truecolor SGR sequences. */
+	static byte[] createSgrStream(Random random) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < STREAM_SIZE) {
+			sb.append("\033[0;1;38;5;").append(random.nextInt(256)).append('m').append("word")
+				.append("\033[48;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256)).append(';')
+				.append(random.nextInt(256)).append('m').append(' ');
+			if (random.nextInt(10) == 0) sb.append("\033[m\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Full screen redraws like htop, vim and tmux do, with cursor positioning, erasing and mode changes. */
+	static byte[] createCursorStream(Random random) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < STREAM_SIZE) {
+			sb.append("\033[?25l\033[?2004h");
+			for (int row = 1; row <= 24; row++) {
+				sb.append("\033[").append(row).append(";1H\033[K\033[").append(30 + random.nextInt(8)).append('m')
+					.append(random.nextInt(100)).append("\033[").append(row).append(';').append(20 + random.nextInt(40))
+					.append("H\033[7m ").append(random.nextInt(1000)).append(" \033[27m");
+			}
+			sb.append("\033[1;24r\033[24;1H\033[?25h\033[?2004l");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static double measureMegabytesPerSecond(byte[] stream) {
+		TerminalEmulator emulator = new TerminalEmulator(new TerminalTestCase.MockTerminalOutput(), 80, 24,
+			TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS, 2000, null);
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			appendInChunks(emulator, stream);
+		long bestNanos = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			appendInChunks(emulator, stream);
+			bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+		}
+		return (stream.length / (1024. * 1024.)) / (bestNanos / 1_000_000_000.);
+	}
+
+	private static void appendInChunks(TerminalEmulator emulator, byte[] stream) {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, stream.length - offset);
+			System.arraycopy(stream, offset, chunk, 0, length);
+			emulator.append(chunk, length);
+		}
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		System.out.println(String.format(Locale.US, "ascii:  %.1f MB/s", measureMegabytesPerSecond(createAsciiStream(random))));
+		System.out.println(String.format(Locale.US, "sgr:    %.1f MB/s", measureMegabytesPerSecond(createSgrStream(random))));
+		System.out.println(String.format(Locale.US, "cursor: %.1f MB/s", measureMegabytesPerSecond(createCursorStream(random))));
+	}
+
+}
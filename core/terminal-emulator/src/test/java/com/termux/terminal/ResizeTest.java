@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.util.Random;
+
 public class ResizeTest extends TerminalTestCase {
 
 	public void testResizeWhenHasHistory() {
@@ -209,4 +211,76 @@ public class ResizeTest extends TerminalTestCase {
 		resize(5, rows).assertLinesAre("ＱＲ ", "     ", "     ", "     ");
 	}
 
+	/** Reflowing the transcript after resizing, a few lines at a time, ends up the same as reflowing all of it at once. */
+	public void testIncrementalReflowSameAsFullReflow() {
+		String[] pieces = {"a", "bc", "def ", "\u4e2d", "e\u0301", "\033[31m", "\033[42m", "\033[0m", "\r\n", "\r\n\r\n"};
+		Random random = new Random(1);
+		int[][] sizes = {{40, 12}, {17, 9}, {61, 5}, {9, 12}};
+		for (int run = 0; run < 20; run++) {
+			StringBuilder output = new StringBuilder();
+			for (int i = random.nextInt(2000); i > 0; i--)
+				output.append(pieces[random.nextInt(pieces.length)]);
+			output.append("\033[0m");
+			int transcriptRows = 100 + random.nextInt(300);
+			int[] size = sizes[random.nextInt(sizes.length)];
+
+			TerminalEmulator full = new TerminalEmulator(new MockTerminalOutput(), 30, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, transcriptRows, null);
+			TerminalEmulator incremental = new TerminalEmulator(new MockTerminalOutput(), 30, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, transcriptRows, null);
+			incremental.setIncrementalReflow(true);
+			byte[] bytes = output.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			full.append(bytes, bytes.length);
+			incremental.append(bytes, bytes.length);
+
+			full.resize(size[0], size[1], INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			incremental.resize(size[0], size[1], INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			// The screen is reflowed right away:
+			assertEquals(full.getCursorRow(), incremental.getCursorRow());
+			assertEquals(full.getCursorCol(), incremental.getCursorCol());
+			assertSameRows(full.getScreen(), incremental.getScreen(), 0);
+
+			int reflows = 0;
+			while (incremental.reflowTranscript(0))
+				reflows++;
+			assertFalse(incremental.isReflowingTranscript());
+			assertEquals(full.getScreen().getActiveTranscriptRows(), incremental.getScreen().getActiveTranscriptRows());
+			assertSameRows(full.getScreen(), incremental.getScreen(), -full.getScreen().getActiveTranscriptRows());
+			if (reflows > 0) assertEquals(full.getScreen().getTranscriptText(), incremental.getScreen().getTranscriptText());
+		}
+	}
+
+	public void testIncrementalReflowOfTranscriptFilledByOutput() {
+		TerminalEmulator full = new TerminalEmulator(new MockTerminalOutput(), 20, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 100, null);
+		TerminalEmulator incremental = new TerminalEmulator(new MockTerminalOutput(), 20, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 100, null);
+		incremental.setIncrementalReflow(true);
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < 60; i++)
+			output.append("line ").append(i).append(" of some length\r\n");
+		for (TerminalEmulator emulator : new TerminalEmulator[]{full, incremental}) {
+			byte[] bytes = output.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			emulator.append(bytes, bytes.length);
+			emulator.resize(10, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		}
+		assertTrue(incremental.isReflowingTranscript());
+		incremental.reflowTranscript(0);
+
+		// Output filling the transcript drops the older rows which have not been reflowed:
+		for (TerminalEmulator emulator : new TerminalEmulator[]{full, incremental}) {
+			byte[] bytes = "more\r\nand more\r\n".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			for (int i = 0; i < 60; i++)
+				emulator.append(bytes, bytes.length);
+		}
+		assertFalse(incremental.isReflowingTranscript());
+		assertEquals(full.getScreen().getActiveTranscriptRows(), incremental.getScreen().getActiveTranscriptRows());
+		assertSameRows(full.getScreen(), incremental.getScreen(), -full.getScreen().getActiveTranscriptRows());
+	}
+
+	private static void assertSameRows(TerminalBuffer expected, TerminalBuffer actual, int firstRow) {
+		for (int row = firstRow; row < expected.mScreenRows; row++) {
+			assertEquals("Row " + row, expected.getSelectedText(0, row, expected.mColumns, row, false), actual.getSelectedText(0, row, actual.mColumns, row, false));
+			assertEquals("Row " + row, expected.getLineWrap(row), actual.getLineWrap(row));
+			for (int column = 0; column < expected.mColumns; column++)
+				assertEquals("Row " + row + ", column " + column, expected.getStyleAt(row, column), actual.getStyleAt(row, column));
+		}
+	}
+
 }
@@ -62,4 +62,102 @@ public class ScreenBufferTest extends TerminalTestCase {
 		assertEquals("", mTerminal.getScreen().getWordAtLocation(1, 2));
 		assertEquals("", mTerminal.getScreen().getWordAtLocation(2, 2));
 	}
+
+	public void testDamage() {
+		TerminalBuffer screen = new TerminalBuffer(5, 100, 70);
+		assertTrue(screen.hasDamage());
+		screen.clearDamage();
+		assertFalse(screen.hasDamage());
+		assertEquals(-1, screen.getFirstDamagedRow());
+		assertEquals(-1, screen.getLastDamagedRow());
+
+		screen.setChar(0, 65, 'a', 0);
+		assertTrue(screen.isRowDamaged(65));
+		assertFalse(screen.isRowDamaged(64));
+		assertEquals(65, screen.getFirstDamagedRow());
+		assertEquals(65, screen.getLastDamagedRow());
+
+		screen.blockCopy(0, 0, 2, 2, 0, 3);
+		assertEquals(3, screen.getFirstDamagedRow());
+		assertFalse(screen.isRowDamaged(0));
+		assertTrue(screen.isRowDamaged(4));
+		assertFalse(screen.isRowDamaged(5));
+		screen.clearDamage();
+
+		screen.scrollDownOneLine(2, 6, 0);
+		assertEquals(2, screen.getFirstDamagedRow());
+		assertEquals(5, screen.getLastDamagedRow());
+	}
+
+	public void testSnapshot() {
+		withTerminalSized(3, 3).enterString("a\r\nb\r\nc\r\nd");
+		TerminalSnapshot snapshot = new TerminalSnapshot();
+		snapshot.update(mTerminal, 0);
+		mTerminal.getScreen().clearDamage();
+		assertEquals(3, snapshot.getRows());
+		assertEquals("b  ", new String(snapshot.getLine(0).mText, 0, 3));
+		assertEquals("d  ", new String(snapshot.getLine(2).mText, 0, 3));
+		assertEquals(2, snapshot.getCursorRow());
+		assertEquals(1, snapshot.getCursorCol());
+
+		// Only damaged rows are copied, so a change bypassing the damage tracking is not seen:
+		mTerminal.getScreen().allocateFullLineIfNecessary(mTerminal.getScreen().externalToInternalRow(0)).setChar(0, 'X', 0);
+		enterString("\033[2;1HY");
+		snapshot.update(mTerminal, 0);
+		assertEquals("b  ", new String(snapshot.getLine(0).mText, 0, 3));
+		assertEquals("Y  ", new String(snapshot.getLine(1).mText, 0, 3));
+		assertEquals(1, snapshot.getCursorRow());
+
+		// While changing the top row copies everything:
+		snapshot.update(mTerminal, -1);
+		assertEquals("a  ", new String(snapshot.getLine(0).mText, 0, 3));
+		assertEquals("X  ", new String(snapshot.getLine(1).mText, 0, 3));
+		assertEquals("Y  ", new String(snapshot.getLine(2).mText, 0, 3));
+	}
+
+	public void testSnapshotKeepsLastCompleteScreenDuringSynchronizedOutput() {
+		withTerminalSized(3, 2).enterString("ab");
+		TerminalSnapshot snapshot = new TerminalSnapshot();
+		assertTrue(snapshot.updateUnlessSynchronized(mTerminal, 0));
+		mTerminal.getScreen().clearDamage();
+
+		enterString("\033[?2026h\033[2J\033[Hxy");
+		assertFalse(snapshot.updateUnlessSynchronized(mTerminal, 0));
+		assertEquals("ab ", new String(snapshot.getLine(0).mText, 0, 3));
+		assertEquals(0, snapshot.getCursorRow());
+		assertEquals(2, snapshot.getCursorCol());
+
+		// The damage is kept until the update after the program is done:
+		enterString("\033[2;1Hz\033[?2026l");
+		assertTrue(snapshot.updateUnlessSynchronized(mTerminal, 0));
+		assertEquals("xy ", new String(snapshot.getLine(0).mText, 0, 3));
+		assertEquals("z  ", new String(snapshot.getLine(1).mText, 0, 3));
+	}
+
+	public void testDamageFromEmulator() {
+		withTerminalSized(5, 4);
+		mTerminal.getScreen().clearDamage();
+		enterString("\033[3;1Hab");
+		assertEquals(2, mTerminal.getScreen().getFirstDamagedRow());
+		assertEquals(2, mTerminal.getScreen().getLastDamagedRow());
+
+		// Scrolling moves the content of all rows.
+		mTerminal.getScreen().clearDamage();
+		enterString("\n\n");
+		assertEquals(0, mTerminal.getScreen().getFirstDamagedRow());
+		assertEquals(3, mTerminal.getScreen().getLastDamagedRow());
+
+		// Cursor movement and mode changes alone are not damage.
+		mTerminal.getScreen().clearDamage();
+		enterString("\033[1;1H\033[?25l\033[?2004h");
+		assertFalse(mTerminal.getScreen().hasDamage());
+
+		// Reverse video and switching to the alternate buffer affect everything.
+		enterString("\033[?5h");
+		assertEquals(3, mTerminal.getScreen().getLastDamagedRow());
+		enterString("\033[?1049h");
+		assertEquals(0, mTerminal.getScreen().getFirstDamagedRow());
+		assertEquals(3, mTerminal.getScreen().getLastDamagedRow());
+	}
+
 }
@@ -1,5 +1,8 @@
 package com.termux.terminal;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
 /**
  * ${CSI}${top};${bottom}r" - set Scrolling Region [top;bottom] (default = full size of window) (DECSTBM).
  * <p/>
@@ -117,6 +120,23 @@ public class ScrollRegionTest extends TerminalTestCase {
 		assertLinesAre("1 ", "2 ", "3 ", "QQ", "YY");
 	}
 
+	public void testInsertDeleteAndScrollLinesWithinScrollRegion() {
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5");
+		enterString("\033[2;4r\033[2;1H\033[41m\033[L").assertLinesAre("1 ", "  ", "2 ", "3 ", "5 ");
+		assertBackgroundColorAt(1, 0, 1);
+		enterString("\033[2M").assertLinesAre("1 ", "3 ", "  ", "  ", "5 ");
+		enterString("\033[T").assertLinesAre("1 ", "  ", "3 ", "  ", "5 ");
+		enterString("\033[9T").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		assertBackgroundColorAt(3, 1, 1);
+	}
+
+	/** Lines moved by insert and delete line keep whether they wrap, and the lines revealed do not wrap. */
+	public void testInsertAndDeleteLinesMoveLineWrap() {
+		withTerminalSized(2, 4).enterString("abcde").assertLineWraps(true, true, false, false);
+		enterString("\033[H\033[L").assertLinesAre("  ", "ab", "cd", "e ").assertLineWraps(false, true, true, false);
+		enterString("\033[M").assertLinesAre("ab", "cd", "e ", "  ").assertLineWraps(true, true, false, false);
+	}
+
 	/** See https://github.com/termux/termux-app/issues/1340 */
 	public void testScrollRegionDoesNotLimitCursorMovement() {
 		withTerminalSized(6, 4)
@@ -164,4 +184,38 @@ public class ScrollRegionTest extends TerminalTestCase {
 		}
 	}
 
+	/**
+	 * Jump scrolling for line feeds already waiting in the output, which scrolls several lines at once, gives the same
+	 * result as scrolling a line at a time, which is what happens when the output arrives a byte at a time.
+	 */
+	public void testJumpScrollSameAsScrollingOneLineAtATime() {
+		String[] pieces = {"\n", "\r\n", "\r\n", "abc", "defghijklmno", "\u679C", "\033[41m", "\033[m", "\033[2;4r",
+			"\033[r", "\033[3;1H", "\t", "\b"};
+		Random random = new Random(5);
+		for (int iteration = 0; iteration < 200; iteration++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 60; i++)
+				sb.append(pieces[random.nextInt(pieces.length)]);
+			byte[] output = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+			TerminalEmulator jumping = new TerminalEmulator(mOutput, 5, 5, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 12, null);
+			jumping.append(output, output.length);
+			TerminalEmulator stepping = new TerminalEmulator(mOutput, 5, 5, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 12, null);
+			for (byte b : output)
+				stepping.append(new byte[]{b}, 1);
+
+			assertEquals(stepping.getCursorRow(), jumping.getCursorRow());
+			assertEquals(stepping.getCursorCol(), jumping.getCursorCol());
+			assertEquals(stepping.getScrollCounter(), jumping.getScrollCounter());
+			TerminalBuffer expected = stepping.getScreen(), actual = jumping.getScreen();
+			assertEquals(expected.getActiveTranscriptRows(), actual.getActiveTranscriptRows());
+			for (int row = -expected.getActiveTranscriptRows(); row < 5; row++) {
+				assertEquals(expected.getSelectedText(0, row, 5, row), actual.getSelectedText(0, row, 5, row));
+				assertEquals(expected.getLineWrap(row), actual.getLineWrap(row));
+				for (int column = 0; column < 5; column++)
+					assertEquals(expected.getStyleAt(row, column), actual.getStyleAt(row, column));
+			}
+		}
+	}
+
 }
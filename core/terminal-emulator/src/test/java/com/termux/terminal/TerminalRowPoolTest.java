@@ -0,0 +1,98 @@
+package com.termux.terminal;
+
+import android.content.ComponentCallbacks2;
+
+public class TerminalRowPoolTest extends TerminalTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		TerminalRowPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TerminalRowPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		super.tearDown();
+	}
+
+	public void testObtainReusesRecycledRowCleared() {
+		long style = TextStyle.encode(3, 4, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		TerminalRow row = new TerminalRow(5, TextStyle.NORMAL);
+		row.setChar(1, 0x679C, style);
+		row.mLineWrap = true;
+		TerminalRowPool.recycle(row);
+		assertEquals(1, TerminalRowPool.size());
+
+		TextStyleTable styleTable = new TextStyleTable();
+		long newStyle = TextStyle.encode(5, 6, 0);
+		TerminalRowPool.obtain(6, newStyle, styleTable);
+		assertEquals("Rows are only taken with as many columns", 1, TerminalRowPool.size());
+		TerminalRow obtained = TerminalRowPool.obtain(5, newStyle, styleTable);
+		assertSame(row, obtained);
+		assertEquals(0, TerminalRowPool.size());
+		assertSame(styleTable, obtained.mStyleTable);
+		assertFalse(obtained.mLineWrap);
+		assertTrue(obtained.isBlank());
+		for (int column = 0; column < 5; column++)
+			assertEquals(newStyle, obtained.getStyle(column));
+	}
+
+	public void testCompactRowsAreNotKept() {
+		TerminalRow row = new TerminalRow(5, TextStyle.NORMAL);
+		row.compact();
+		TerminalRowPool.recycle(row);
+		assertEquals(0, TerminalRowPool.size());
+	}
+
+	public void testSizeIsBounded() {
+		for (int i = 0; i < TerminalRowPool.MAX_POOLED_ROWS + 10; i++)
+			TerminalRowPool.recycle(new TerminalRow(5, TextStyle.NORMAL));
+		assertEquals(TerminalRowPool.MAX_POOLED_ROWS, TerminalRowPool.size());
+	}
+
+	public void testTrimMemory() {
+		for (int i = 0; i < 10; i++) {
+			TerminalRowPool.recycle(new TerminalRow(5, TextStyle.NORMAL));
+			TerminalRowPool.recycle(new TerminalRow(7, TextStyle.NORMAL));
+		}
+		TerminalRowPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+		assertEquals(10, TerminalRowPool.size());
+		TerminalRowPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+		assertEquals(0, TerminalRowPool.size());
+	}
+
+	public void testResizeRecyclesOldRows() {
+		withTerminalSized(5, 3).enterString("a\r\nb\r\nc\r\nd");
+		resize(7, 3);
+		assertTrue(TerminalRowPool.size() > 0);
+		resize(5, 3).assertLinesAre("b    ", "c    ", "d    ");
+		assertEquals("a\nb\nc\nd", mTerminal.getScreen().getTranscriptText());
+	}
+
+	public void testScrollingRecyclesEvictedExpandedRow() {
+		TerminalBuffer buffer = new TerminalBuffer(3, 4, 2);
+		for (int i = 0; i < 4; i++) {
+			buffer.setChar(0, 1, 'a' + i, TextStyle.NORMAL);
+			buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		}
+		assertEquals(2, buffer.getActiveTranscriptRows());
+		// Show the oldest transcript row, which expands it:
+		assertFalse(buffer.allocateFullLineIfNecessary(buffer.externalToInternalRow(-2)).isCompact());
+		assertEquals(0, TerminalRowPool.size());
+		buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		assertEquals(1, TerminalRowPool.size());
+		buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		assertEquals("Compact evicted rows are reused for the new transcript row", 1, TerminalRowPool.size());
+		assertEquals("d", buffer.getSelectedText(0, -2, 1, -2));
+	}
+
+	public void testReleaseRecyclesRows() {
+		withTerminalSized(5, 3).enterString("a\r\nb\r\nc\r\nd");
+		mTerminal.release();
+		assertEquals("Only the screen rows are not compact", 3, TerminalRowPool.size());
+		mTerminal.release();
+		assertEquals(3, TerminalRowPool.size());
+	}
+
+}
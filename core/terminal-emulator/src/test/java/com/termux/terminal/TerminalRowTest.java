@@ -429,4 +429,141 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	public void testCompact() {
+		long style = TextStyle.encode(2, 3, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		row.setChar(0, 'a', style);
+		row.setChar(1, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, style);
+		row.setChar(3, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, TextStyle.NORMAL);
+		row.setChar(4, DIARESIS_CODEPOINT, TextStyle.NORMAL);
+		row.mLineWrap = true;
+		int spaceUsed = row.getSpaceUsed();
+
+		TerminalRow copy = row.compactCopy();
+		assertTrue(copy.isCompact());
+		assertFalse(row.isCompact());
+		// Trailing spaces are trimmed: 'a', the wide char, ' ', the surrogate pair and the combining char.
+		assertEquals(6, copy.mText.length);
+		assertEquals(spaceUsed, copy.getSpaceUsed());
+		assertTrue(copy.mLineWrap);
+
+		copy.expand();
+		assertFalse(copy.isCompact());
+		assertEquals(spaceUsed, copy.getSpaceUsed());
+		assertEquals(new String(row.mText, 0, spaceUsed), new String(copy.mText, 0, spaceUsed));
+		for (int column = 0; column < COLUMNS; column++)
+			assertEquals(row.getStyle(column), copy.getStyle(column));
+		assertTrue(copy.mHasNonOneWidthOrSurrogateChars);
+
+		// A blank row with only the default style needs no text or styles.
+		row.clear(TextStyle.NORMAL);
+		row.compact();
+		assertEquals(0, row.mText.length);
+		row.expand();
+		assertTrue(row.isBlank());
+		assertEquals(TextStyle.NORMAL, row.getStyle(COLUMNS - 1));
+		row.setChar(COLUMNS - 1, 'x', style);
+		assertEquals(COLUMNS, row.getSpaceUsed());
+	}
+
+	public void testStyleInterning() {
+		TextStyleTable table = new TextStyleTable();
+		TerminalRow first = new TerminalRow(COLUMNS, TextStyle.NORMAL, table);
+		TerminalRow second = new TerminalRow(COLUMNS, TextStyle.NORMAL, table);
+		long style = TextStyle.encode(2, 3, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		first.setChar(0, 'a', style);
+		second.setChar(5, 'b', style);
+		assertEquals(2, table.size());
+		assertEquals(first.getStyleIndex(0), second.getStyleIndex(5));
+		assertEquals(style, second.getStyle(5));
+
+		// Copying between tables interns the styles in the table of the destination.
+		row.copyFrom(first);
+		assertEquals(style, row.getStyle(0));
+		assertEquals(TextStyle.NORMAL, row.getStyle(1));
+		assertNotSame(table, row.getStyleTable());
+	}
+
+	public void testStyleTableFull() {
+		TextStyleTable table = new TextStyleTable();
+		for (int i = table.size(); i < TextStyleTable.MAX_STYLES; i++)
+			assertEquals(i, table.intern(TextStyle.encode(i & 0xFF, i >>> 8, 0)));
+		assertEquals(-1, table.intern(TextStyle.encode(0xFF, 0xFF, TextStyle.CHARACTER_ATTRIBUTE_BOLD)));
+
+		// A row falls back to storing its styles when the table is full.
+		TerminalRow full = new TerminalRow(COLUMNS, TextStyle.NORMAL, table);
+		long style = TextStyle.encode(0xFF, 0xFF, TextStyle.CHARACTER_ATTRIBUTE_ITALIC);
+		long interned = TextStyle.encode(3, 4, 0);
+		full.setChar(0, 'a', interned);
+		full.setChar(1, 'b', style);
+		assertEquals(-1, full.getStyleIndex(0));
+		assertEquals(interned, full.getStyle(0));
+		assertEquals(style, full.getStyle(1));
+		assertEquals(TextStyle.NORMAL, full.getStyle(2));
+
+		full.clear(TextStyle.NORMAL);
+		assertEquals(0, full.getStyleIndex(0));
+	}
+
+	public void testColumnIndexMatchesScan() {
+		int[] codePoints = {'a', ' ', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, DIARESIS_CODEPOINT};
+		Random random = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			int column = random.nextInt(COLUMNS - 1);
+			row.setChar(column, codePoints[random.nextInt(codePoints.length)], TextStyle.NORMAL);
+			// Check a few columns, so that the index is also read after being partly invalidated.
+			for (int j = 0; j < 4; j++) {
+				int checkedColumn = random.nextInt(COLUMNS + 1);
+				assertEquals(scanStartOfColumn(checkedColumn), row.findStartOfColumn(checkedColumn));
+			}
+		}
+		for (int column = 0; column <= COLUMNS; column++)
+			assertEquals(scanStartOfColumn(column), row.findStartOfColumn(column));
+	}
+
+	public void testVersionChangesOnWrites() {
+		int version = row.getVersion();
+		row.findStartOfColumn(10);
+		row.getStyle(10);
+		assertEquals(version, row.getVersion());
+
+		row.setChar(0, 'a', TextStyle.NORMAL);
+		assertTrue(version != row.getVersion());
+		version = row.getVersion();
+		row.setAsciiChars(1, new byte[]{'b', 'c'}, 0, 2, TextStyle.NORMAL);
+		assertTrue(version != row.getVersion());
+		version = row.getVersion();
+		row.clear(TextStyle.NORMAL);
+		assertTrue(version != row.getVersion());
+
+		// A copy is a change even when it copies style indices as they are.
+		TerminalRow copy = new TerminalRow(COLUMNS, TextStyle.NORMAL, row.getStyleTable());
+		version = copy.getVersion();
+		copy.copyFrom(row);
+		assertTrue(version != copy.getVersion());
+	}
+
+	/** Find the start of a column by scanning the row, as a reference for {@link TerminalRow#findStartOfColumn(int)}. */
+	private int scanStartOfColumn(int column) {
+		if (column == COLUMNS) return row.getSpaceUsed();
+		char[] text = row.mText;
+		int currentColumn = 0;
+		int charIndex = 0;
+		while (true) {
+			int codePoint = Character.codePointAt(text, charIndex);
+			int nextCharIndex = charIndex + Character.charCount(codePoint);
+			int width = WcWidth.width(codePoint);
+			if (width > 0) {
+				currentColumn += width;
+				if (currentColumn > column) return charIndex;
+				if (currentColumn == column) {
+					while (nextCharIndex < row.getSpaceUsed() && WcWidth.width(Character.codePointAt(text, nextCharIndex)) <= 0)
+						nextCharIndex += Character.charCount(Character.codePointAt(text, nextCharIndex));
+					return nextCharIndex;
+				}
+			}
+			charIndex = nextCharIndex;
+		}
+	}
+
 }
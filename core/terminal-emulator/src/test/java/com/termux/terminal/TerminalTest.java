@@ -1,6 +1,10 @@
 package com.termux.terminal;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
 
 public class TerminalTest extends TerminalTestCase {
 
@@ -136,6 +140,51 @@ public class TerminalTest extends TerminalTestCase {
 		assertEquals("hi", mOutput.getOutputAndClear());
 	}
 
+	public void testPasteRejectedAsWhole() {
+		withTerminalSized(5, 5);
+		enterString("\033[?2004h");
+		// The exact length is checked, with the markers and after filtering:
+		mOutput.writeLimit = 16;
+		assertTrue(mTerminal.paste("h\u00E5\033"));
+		assertEquals("\033[200~" + "h\u00E5" + "\033[201~", mOutput.getOutputAndClear());
+		assertFalse(mTerminal.paste("hi\u679C"));
+		assertEquals("", mOutput.getOutputAndClear());
+	}
+
+	/** Pasted text is filtered and encoded in chunks, to the same result as when filtering and encoding all of it. */
+	public void testPasteSameAsFilteringWholeText() {
+		withTerminalSized(5, 5);
+		String[] pieces = {"a", "\u00E5", "\u679C", "\uD83D\uDE00", "\uD83D", "\uDE00", "\r", "\n", "\r\n", "\033", "\u0085", "\u009F"};
+		Random random = new Random(1);
+		for (int run = 0; run < 20; run++) {
+			// Bracketed pastes have markers which may end up in another chunk than the text next to them:
+			boolean bracketed = (run % 2) == 1;
+			enterString(bracketed ? "\033[?2004h" : "\033[?2004l");
+			StringBuilder text = new StringBuilder();
+			for (int i = random.nextInt(5000); i > 0; i--)
+				text.append(pieces[random.nextInt(pieces.length)]);
+			String expected = text.toString().replaceAll("(\u001B|[\u0080-\u009F])", "").replaceAll("\r?\n", "\r");
+			if (bracketed) expected = "\033[200~" + expected + "\033[201~";
+			mTerminal.paste(text.toString());
+			assertTrue("Paste of " + text, Arrays.equals(expected.getBytes(StandardCharsets.UTF_8), mOutput.baos.toByteArray()));
+			mOutput.baos.reset();
+		}
+	}
+
+	/** The end marker of a bracketed paste goes in the next chunk when it does not fit after the end of the text. */
+	public void testBracketedPasteAroundChunkSize() {
+		withTerminalSized(5, 5);
+		enterString("\033[?2004h");
+		for (int length = PasteEncoder.CHUNK_BYTES - 20; length < PasteEncoder.CHUNK_BYTES + 5; length++) {
+			char[] chars = new char[length];
+			Arrays.fill(chars, 'a');
+			chars[length - 1] = '\uD83D';
+			String text = new String(chars);
+			assertTrue(mTerminal.paste(text));
+			assertEquals("\033[200~" + text.substring(0, length - 1) + "?\033[201~", mOutput.getOutputAndClear());
+		}
+	}
+
 	public void testSelectGraphics() {
 		selectGraphicsTestRun(';');
 		selectGraphicsTestRun(':');
@@ -347,4 +396,42 @@ public class TerminalTest extends TerminalTestCase {
 		withTerminalSized(11, 2).enterString("01234567890\033[44m\r\tXX").assertLinesAre("01234567XX0", "           ");
 	}
 
+	public void testAsciiRun() {
+		// A single run wrapping over several lines and scrolling the screen.
+		withTerminalSized(3, 2).enterString("abcdefgh").assertLinesAre("def", "gh ").assertCursorAt(1, 2);
+		assertHistoryStartsWith("abc");
+		assertLineWraps(true, false);
+		enterString("i").assertLinesAre("def", "ghi").assertCursorAt(1, 2);
+		enterString("j").assertLinesAre("ghi", "j  ").assertCursorAt(1, 1);
+
+		// Without autowrap the last column is overwritten by the rest of the run.
+		withTerminalSized(3, 2).enterString("\033[?7labcdefgh").assertLinesAre("abh", "   ").assertCursorAt(0, 2);
+
+		// Wrapping respects left and right margins.
+		withTerminalSized(6, 3).enterString("\033[?69h\033[2;4s\033[1;2Habcdefg").assertLinesAre(" abc  ", " def  ", " g    ");
+
+		// Writing over wide and combining characters.
+		withTerminalSized(5, 2).enterString("\u4e2d\u56fd\r\u0041\u0301\033[1;2Habc").assertLinesAre("A\u0301abc ", "     ");
+		withTerminalSized(5, 2).enterString(" \u4e2d\u56fd\rab").assertLinesAre("ab \u56fd", "     ");
+
+		// The last character of a run is what gets repeated by REP.
+		withTerminalSized(5, 2).enterString("ab\033[3b").assertLinesAre("abbbb", "     ");
+	}
+
+	public void testAppendDirectBuffer() {
+		byte[] bytes = "xxabc\033[1;4Hde\r\n\u00e5\u4e2df".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+
+		// Parsed from the position, with a multi-byte character split between two appends.
+		withTerminalSized(6, 2);
+		buffer.position(2).limit(bytes.length - 3);
+		mTerminal.append(buffer);
+		assertEquals(bytes.length - 3, buffer.position());
+		buffer.limit(bytes.length);
+		mTerminal.append(buffer);
+		assertEquals(bytes.length, buffer.position());
+		assertLinesAre("abcde ", "\u00e5\u4e2df  ").assertCursorAt(1, 4);
+	}
+
 }
@@ -0,0 +1,48 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the heap used by the transcript of a {@link TerminalEmulator} per 10,000 rows, for plain and colored output
+ * on a wide screen, as the difference in used heap after a full garbage collection.
+ */
+public class TranscriptMemoryBenchmark {
+
+	private static final int COLUMNS = 200;
+	private static final int ROWS = 50;
+	private static final int TRANSCRIPT_ROWS = 10_000;
+
+	static long measureTranscriptBytes(boolean colored) {
+		Random random = new Random(1);
+		long before = usedHeap();
+		TerminalEmulator emulator = new TerminalEmulator(new TerminalTestCase.MockTerminalOutput(), COLUMNS, ROWS,
+			TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS, TRANSCRIPT_ROWS, null);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < TRANSCRIPT_ROWS + ROWS; i++) {
+			sb.setLength(0);
+			if (colored) sb.append("\033[1;3").append(random.nextInt(8)).append('m');
+			sb.append("-rw-r--r-- 1 u0_a123 u0_a123 ").append(random.nextInt(100000)).append(" Jan  1 12:00 ");
+			if (colored) sb.append("\033[0m");
+			sb.append("file").append(i).append(".txt\r\n");
+			byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+			emulator.append(bytes, bytes.length);
+		}
+		long used = usedHeap() - before;
+		if (emulator.getScreen().getActiveTranscriptRows() < TRANSCRIPT_ROWS - ROWS) throw new AssertionError();
+		return used;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		System.out.println(String.format(Locale.US, "plain:   %.1f MB per 10k rows", measureTranscriptBytes(false) / (1024. * 1024.)));
+		System.out.println(String.format(Locale.US, "colored: %.1f MB per 10k rows", measureTranscriptBytes(true) / (1024. * 1024.)));
+	}
+
+}
@@ -133,4 +133,37 @@ public class UnicodeInputTest extends TerminalTestCase {
 		enterString("a枝").assertLinesAre("枝a", "   ", "   ");
 	}
 
+	public void testGraphemeClusters() {
+		String family = "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67";
+		String flag = "\uD83C\uDDEB\uD83C\uDDEE";
+		String wavingHand = "\uD83D\uDC4B\uD83C\uDFFD";
+
+		// Without grapheme cluster mode each emoji takes its own cells, as programs using wcwidth(3) expect.
+		withTerminalSized(10, 2).enterString(family).assertCursorAt(0, 6);
+		assertEquals(family, mTerminal.getScreen().getSelectedText(0, 0, 10, 0));
+
+		assertEnteringStringGivesResponse("\033[?2027$p", "\033[?2027;2$y");
+		withTerminalSized(10, 2).enterString("\033[?2027h");
+		assertEnteringStringGivesResponse("\033[?2027$p", "\033[?2027;1$y");
+		enterString(family).assertCursorAt(0, 2);
+		enterString(flag).assertCursorAt(0, 4);
+		enterString(wavingHand).assertCursorAt(0, 6);
+		enterString("a").assertCursorAt(0, 7);
+		assertEquals(family + flag + wavingHand + "a", mTerminal.getScreen().getSelectedText(0, 0, 10, 0));
+		assertInvariants();
+
+		// A cluster is ended by anything but printable characters.
+		withTerminalSized(10, 2).enterString("\033[?2027h\uD83C\uDDEB\033[m\uD83C\uDDEE").assertCursorAt(0, 2);
+		// A cluster which does not fit in the last column is not extended.
+		withTerminalSized(3, 2).enterString("\033[?2027hab\uD83C\uDDEB\uD83C\uDDEE").assertCursorAt(1, 1);
+		assertEquals("ab" + flag, mTerminal.getScreen().getSelectedText(0, 0, 3, 1, true, true));
+	}
+
+	public void testPrivateUseCodePointsOfClusters() {
+		// Code points in the area used for clusters keep their width of 1 and are read back as written.
+		String privateUse = new String(Character.toChars(0x108000));
+		withTerminalSized(5, 2).enterString(privateUse + "a").assertCursorAt(0, 2);
+		assertEquals(privateUse + "a", mTerminal.getScreen().getSelectedText(0, 0, 5, 0));
+	}
+
 }
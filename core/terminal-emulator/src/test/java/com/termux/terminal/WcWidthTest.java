@@ -78,4 +78,10 @@ public class WcWidthTest extends TestCase {
 		assertWidthIs(2, 0x1F643); // UPSIDE-DOWN FACE (Unicode 8).
 	}
 
+	public void testLookupTablesMatchRanges() {
+		for (int c = -1; c <= Character.MAX_CODE_POINT + 1; c++)
+			if (WcWidth.width(c) != WcWidth.widthFromRanges(c))
+				fail("Width of 0x" + Integer.toHexString(c) + ": " + WcWidth.width(c) + " != " + WcWidth.widthFromRanges(c));
+	}
+
 }
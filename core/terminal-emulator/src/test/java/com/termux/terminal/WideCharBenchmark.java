@@ -0,0 +1,59 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmark for filling wide rows with CJK text, where each row has chars of display width 2 and so can not use
+ * the fast path of {@link TerminalRow#setChar(int, int, long)}, printing the lines written per second for pure CJK
+ * lines and for lines mixed with ASCII words and combining marks.
+ */
+public class WideCharBenchmark {
+
+	private static final int COLUMNS = 200;
+	private static final int ROWS = 50;
+	private static final int LINES = 20_000;
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 10;
+
+	/** Full lines of CJK ideographs, optionally mixed with ASCII words and combining marks. */
+	static byte[] createStream(Random random, boolean mixed) {
+		StringBuilder sb = new StringBuilder();
+		for (int line = 0; line < LINES; line++) {
+			int column = 0;
+			while (column < COLUMNS - 1) {
+				if (mixed && random.nextInt(4) == 0 && column < COLUMNS - 4) {
+					sb.append("ab\u0301c");
+					column += 3;
+				} else {
+					sb.appendCodePoint(0x4E00 + random.nextInt(0x5000));
+					column += 2;
+				}
+			}
+			sb.append("\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static double measureLinesPerSecond(byte[] stream) {
+		TerminalEmulator emulator = new TerminalEmulator(new TerminalTestCase.MockTerminalOutput(), COLUMNS, ROWS,
+			TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS, 2000, null);
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			emulator.append(stream, stream.length);
+		long bestNanos = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			emulator.append(stream, stream.length);
+			bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+		}
+		return LINES / (bestNanos / 1_000_000_000.);
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		System.out.println(String.format(Locale.US, "cjk:   %.0f lines/s", measureLinesPerSecond(createStream(random, false))));
+		System.out.println(String.format(Locale.US, "mixed: %.0f lines/s", measureLinesPerSecond(createStream(random, true))));
+	}
+
+}
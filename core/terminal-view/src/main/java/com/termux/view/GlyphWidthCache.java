@@ -0,0 +1,99 @@
+package com.termux.view;
+
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * The widths of code points as measured by a {@link Paint}, so that the renderer does not measure the same glyph on
+ * every frame. An open addressing hash table from code point to width, which is cleared if it gets too large, as
+ * output rarely uses more than a few thousand distinct code points.
+ */
+final class GlyphWidthCache {
+
+    private static final int MAX_SIZE = 1 << 13;
+    private static final int EMPTY = -1;
+
+    private final Paint mPaint;
+    private final char[] mChars = new char[2];
+    /** The code points, or {@link #EMPTY}, and their widths. Kept at most half full. */
+    private int[] mCodePoints = newCodePoints(256);
+    private float[] mWidths = new float[256];
+    private int mSize;
+    private long mHits, mMisses;
+
+    GlyphWidthCache(Paint paint) {
+        mPaint = paint;
+    }
+
+    /** Measure the code points from first to last (inclusive), such as those of box drawing fonts. */
+    void seed(int first, int last) {
+        for (int codePoint = first; codePoint <= last; codePoint++) {
+            int slot = findSlot(codePoint);
+            if (mCodePoints[slot] == EMPTY) put(slot, codePoint, measure(codePoint));
+        }
+    }
+
+    float getWidth(int codePoint) {
+        final int slot = findSlot(codePoint);
+        if (mCodePoints[slot] == codePoint) {
+            mHits++;
+            return mWidths[slot];
+        }
+        mMisses++;
+        final float width = measure(codePoint);
+        put(slot, codePoint, width);
+        return width;
+    }
+
+    /** The fraction of the lookups which did not need to measure, from 0 to 1, or 0 if there has been no lookups. */
+    float getHitRate() {
+        final long lookups = mHits + mMisses;
+        return (lookups == 0) ? 0 : (float) mHits / lookups;
+    }
+
+    private float measure(int codePoint) {
+        return mPaint.measureText(mChars, 0, Character.toChars(codePoint, mChars, 0));
+    }
+
+    private int findSlot(int codePoint) {
+        final int mask = mCodePoints.length - 1;
+        int slot = (codePoint * 0x9E3779B9) >>> 16 & mask;
+        while (mCodePoints[slot] != EMPTY && mCodePoints[slot] != codePoint) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void put(int slot, int codePoint, float width) {
+        mCodePoints[slot] = codePoint;
+        mWidths[slot] = width;
+        if (2 * ++mSize > mCodePoints.length) {
+            if (mCodePoints.length == 2 * MAX_SIZE) {
+                Arrays.fill(mCodePoints, EMPTY);
+                mSize = 0;
+            } else {
+                rehash(2 * mCodePoints.length);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldCodePoints = mCodePoints;
+        final float[] oldWidths = mWidths;
+        mCodePoints = newCodePoints(capacity);
+        mWidths = new float[capacity];
+        for (int i = 0; i < oldCodePoints.length; i++) {
+            if (oldCodePoints[i] != EMPTY) {
+                final int slot = findSlot(oldCodePoints[i]);
+                mCodePoints[slot] = oldCodePoints[i];
+                mWidths[slot] = oldWidths[i];
+            }
+        }
+    }
+
+    private static int[] newCodePoints(int capacity) {
+        final int[] codePoints = new int[capacity];
+        Arrays.fill(codePoints, EMPTY);
+        return codePoints;
+    }
+
+}
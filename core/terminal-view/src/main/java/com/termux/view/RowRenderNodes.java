@@ -0,0 +1,115 @@
+package com.termux.view;
+
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.termux.terminal.TerminalRow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * The rows drawn by a {@link TerminalRenderer} recorded into a {@link RenderNode} each, so that a frame only draws the
+ * rows which have changed since the previous frame and replays the others.
+ * <p>
+ * A node is kept for each {@link TerminalRow} shown in the previous frame, along with the {@link TerminalRow#getVersion()}
+ * of the row and the cursor and selection columns it was drawn with. Nodes are looked up by row and not by where the
+ * row is shown, so that a row moved by scrolling only has its node moved. The colors and cursor shape apply to all rows,
+ * so all nodes are drawn again when they change.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+final class RowRenderNodes {
+
+    private static final class RowNode {
+        final RenderNode node = new RenderNode("TerminalRow");
+        int version, cursorX, selx1, selx2, generation;
+
+        RowNode() {
+            // Glyphs may extend out of the row, as they do when drawn without a node.
+            node.setClipToBounds(false);
+        }
+    }
+
+    /** The nodes of the rows shown in the previous frame, and of those shown so far in this frame. */
+    private IdentityHashMap<TerminalRow, RowNode> mNodes = new IdentityHashMap<>(), mFrameNodes = new IdentityHashMap<>();
+    private final ArrayList<RowNode> mUnusedNodes = new ArrayList<>();
+
+    /** Incremented when what applies to all rows changes, which makes nodes recorded before out of date. */
+    private int mGeneration;
+    private int[] mPalette = new int[0];
+    private int mCursorShape;
+    private boolean mReverseVideo;
+    private int mWidth;
+
+    /** The node of the row being drawn, and if it is being recorded. */
+    private RowNode mRowNode;
+    private boolean mRecording;
+
+    /** Start a frame, making all nodes out of date if the colors, cursor shape or width of the rows have changed. */
+    void startFrame(int[] palette, int cursorShape, boolean reverseVideo, int width) {
+        if (!Arrays.equals(palette, mPalette) || cursorShape != mCursorShape || reverseVideo != mReverseVideo || width != mWidth) {
+            mPalette = palette.clone();
+            mCursorShape = cursorShape;
+            mReverseVideo = reverseVideo;
+            mWidth = width;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Start drawing a row at the specified pixels, returning a canvas to draw the row into with its top at 0 if its
+     * node needs to be recorded, or null if the node drawn before can be replayed. Must be followed by
+     * {@link #finishRow(Canvas)}.
+     */
+    RecordingCanvas startRow(TerminalRow row, int top, int bottom, int cursorX, int selx1, int selx2) {
+        RowNode rowNode = mNodes.remove(row);
+        if (rowNode == null) {
+            rowNode = mUnusedNodes.isEmpty() ? new RowNode() : mUnusedNodes.remove(mUnusedNodes.size() - 1);
+            rowNode.generation = mGeneration - 1;
+        }
+        mFrameNodes.put(row, rowNode);
+        mRowNode = rowNode;
+
+        final RenderNode node = rowNode.node;
+        node.setPosition(0, top, mWidth, bottom);
+
+        if (rowNode.generation == mGeneration && rowNode.version == row.getVersion() && rowNode.cursorX == cursorX
+            && rowNode.selx1 == selx1 && rowNode.selx2 == selx2) return null;
+        rowNode.generation = mGeneration;
+        rowNode.version = row.getVersion();
+        rowNode.cursorX = cursorX;
+        rowNode.selx1 = selx1;
+        rowNode.selx2 = selx2;
+        mRecording = true;
+        return node.beginRecording(mWidth, bottom - top);
+    }
+
+    /** Finish recording the row started by {@link #startRow}, if needed, and draw its node into a canvas. */
+    void finishRow(Canvas canvas) {
+        final RenderNode node = mRowNode.node;
+        if (mRecording) {
+            node.endRecording();
+            mRecording = false;
+        }
+        canvas.drawRenderNode(node);
+        mRowNode = null;
+    }
+
+    /** Finish a frame, keeping the nodes of rows which were not shown for rows shown in later frames. */
+    void finishFrame() {
+        for (RowNode rowNode : mNodes.values()) {
+            rowNode.node.discardDisplayList();
+            mUnusedNodes.add(rowNode);
+        }
+        mNodes.clear();
+        final IdentityHashMap<TerminalRow, RowNode> nodes = mNodes;
+        mNodes = mFrameNodes;
+        mFrameNodes = nodes;
+    }
+
+}
@@ -3,14 +3,21 @@ package com.termux.view;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.os.Build;
 
+import com.termux.terminal.GraphemeClusterTable;
 import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TerminalSnapshot;
 import com.termux.terminal.TextStyle;
+import com.termux.terminal.TextStyleTable;
 import com.termux.terminal.WcWidth;
 
+import java.util.Arrays;
+
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * <p/>
@@ -32,6 +39,28 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    /** The measured widths of other code points, which depend on the typeface and text size like this renderer. */
+    private final GlyphWidthCache mGlyphWidths = new GlyphWidthCache(mTextPaint);
+
+    /**
+     * The colors and effect of the first {@link #mDecodedStyleCount} styles of {@link #mDecodedStyleTable} by style
+     * index, decoded once instead of for every run drawn. The colors are not yet looked up in the palette.
+     */
+    private TextStyleTable mDecodedStyleTable;
+    private int mDecodedStyleCount;
+    private int[] mDecodedForeColors = new int[0], mDecodedBackColors = new int[0], mDecodedEffects = new int[0];
+
+    /**
+     * The measured widths of the grapheme clusters of {@link #mMeasuredClusterTable} by their index among those of the
+     * same width, or 0 if not measured yet, so that clusters are not measured again on every frame.
+     */
+    private GraphemeClusterTable mMeasuredClusterTable;
+    private float[] mMeasuredNarrowClusterWidths = new float[0], mMeasuredWideClusterWidths = new float[0];
+
+    /** The rows recorded when rendering into a hardware accelerated canvas, created when first needed. */
+    private RowRenderNodes mRowNodes;
+    /** The clip bounds of the canvas rendered into, outside of which rows are not drawn. */
+    private final Rect mClipBounds = new Rect();
 
     public TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
@@ -51,6 +80,15 @@ public final class TerminalRenderer {
             sb.setCharAt(0, (char) i);
             asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
         }
+        // Box drawing and block elements, as used by borders of text user interfaces, and Powerline symbols.
+        mGlyphWidths.seed(0x2500, 0x259F);
+        mGlyphWidths.seed(0xE0A0, 0xE0A3);
+        mGlyphWidths.seed(0xE0B0, 0xE0D4);
+    }
+
+    /** The fraction of glyph width lookups of code points outside of ASCII which did not need to measure the glyph. */
+    public float getGlyphWidthCacheHitRate() {
+        return mGlyphWidths.getHitRate();
     }
 
     /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
@@ -69,99 +107,205 @@ public final class TerminalRenderer {
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
+        final RowRenderNodes rowNodes = startFrame(canvas, palette, cursorShape, reverseVideo, columns);
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
+            if (!isRowInClip(row - topRow)) continue;
 
             final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
             int selx1 = -1, selx2 = -1;
             if (row >= selectionY1 && row <= selectionY2) {
                 if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
             }
 
             TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            boolean lastRunInsideSelection = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-                    currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
-                        // Skip first column as there is nothing to draw, just record the current style.
-                    } else {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        boolean invertCursorTextColor = false;
-                        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                            invertCursorTextColor = true;
-                        }
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+            drawRow(rowNodes, canvas, row - topRow, lineObject, screen.getGraphemeClusters(), heightOffset, columns, cursorX, selx1, selx2, palette, cursorShape, reverseVideo);
+        }
+        if (rowNodes != null) rowNodes.finishFrame();
+    }
+
+    /**
+     * Render a {@link TerminalSnapshot} of the terminal to a canvas, and an optional rectangular selection. Unlike
+     * {@link #render(TerminalEmulator, Canvas, int, int, int, int, int)} this does not access the emulator, so it
+     * can be done without locking it while the emulator parses output on another thread.
+     */
+    public final void render(TerminalSnapshot snapshot, Canvas canvas,
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final boolean reverseVideo = snapshot.isReverseVideo();
+        final int topRow = snapshot.getTopRow();
+        final int rows = snapshot.getRows();
+        final int columns = snapshot.getColumns();
+        final int cursorCol = snapshot.getCursorCol();
+        final int cursorRow = snapshot.getCursorRow();
+        final boolean cursorVisible = snapshot.isCursorVisible();
+        final int[] palette = snapshot.getPalette();
+        final int cursorShape = snapshot.getCursorStyle();
+
+        if (reverseVideo)
+            canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+
+        final RowRenderNodes rowNodes = startFrame(canvas, palette, cursorShape, reverseVideo, columns);
+        float heightOffset = mFontLineSpacingAndAscent;
+        for (int i = 0; i < rows; i++) {
+            final int row = topRow + i;
+            heightOffset += mFontLineSpacing;
+            if (!isRowInClip(i)) continue;
+
+            final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
+            int selx1 = -1, selx2 = -1;
+            if (row >= selectionY1 && row <= selectionY2) {
+                if (row == selectionY1) selx1 = selectionX1;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
+            }
+
+            drawRow(rowNodes, canvas, i, snapshot.getLine(i), snapshot.getGraphemeClusters(), heightOffset, columns, cursorX, selx1, selx2, palette, cursorShape, reverseVideo);
+        }
+        if (rowNodes != null) rowNodes.finishFrame();
+    }
+
+    /**
+     * Start rendering a frame, returning the render nodes to draw the rows with if the canvas is hardware accelerated,
+     * so that only the rows which have changed since the last frame are drawn again, or null to draw them directly.
+     */
+    private RowRenderNodes startFrame(Canvas canvas, int[] palette, int cursorShape, boolean reverseVideo, int columns) {
+        // Only part of the view is drawn when invalidating a few rows or the cursor, at least without hardware acceleration.
+        if (!canvas.getClipBounds(mClipBounds)) mClipBounds.setEmpty();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || !canvas.isHardwareAccelerated()) return null;
+        if (mRowNodes == null) mRowNodes = new RowRenderNodes();
+        mRowNodes.startFrame(palette, cursorShape, reverseVideo, (int) Math.ceil(columns * mFontWidth));
+        return mRowNodes;
+    }
+
+    /** If the row at the specified index from the top of the view is at least partly within the clip of the canvas. */
+    private boolean isRowInClip(int rowIndex) {
+        return getRowBottom(rowIndex) > mClipBounds.top && getRowTop(rowIndex) < mClipBounds.bottom;
+    }
+
+    /** Draw the row at the specified index from the top of the view, replaying what was drawn before if possible. */
+    private void drawRow(RowRenderNodes rowNodes, Canvas canvas, int rowIndex, TerminalRow lineObject, GraphemeClusterTable graphemeClusters,
+                         float heightOffset, int columns, int cursorX, int selx1, int selx2, int[] palette, int cursorShape, boolean reverseVideo) {
+        if (rowNodes == null) {
+            renderRow(canvas, lineObject, graphemeClusters, heightOffset, columns, cursorX, selx1, selx2, palette, cursorShape, reverseVideo);
+            return;
+        }
+        final int top = getRowTop(rowIndex);
+        final Canvas rowCanvas = rowNodes.startRow(lineObject, top, getRowBottom(rowIndex), cursorX, selx1, selx2);
+        if (rowCanvas != null)
+            renderRow(rowCanvas, lineObject, graphemeClusters, heightOffset - top, columns, cursorX, selx1, selx2, palette, cursorShape, reverseVideo);
+        rowNodes.finishRow(canvas);
+    }
+
+    private void renderRow(Canvas canvas, TerminalRow lineObject, GraphemeClusterTable graphemeClusters, float heightOffset,
+                           int columns, int cursorX, int selx1, int selx2, int[] palette, int cursorShape, boolean reverseVideo) {
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+        final TextStyleTable styleTable = lineObject.getStyleTable();
+
+        // Runs are split on style indices, with the style itself only used if the row does not have indices.
+        int lastRunStyleIndex = -1;
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        boolean lastRunInsideSelection = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        // The chars of the grapheme cluster drawn by the last run, which is then the only cell of the run.
+        char[] lastRunClusterChars = null;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int codePointWcWidth = WcWidth.width(codePoint);
+            final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+            final boolean insideSelection = column >= selx1 && column <= selx2;
+            final int styleIndex = lineObject.getStyleIndex(column);
+            final long style = (styleIndex < 0) ? lineObject.getStyle(column) : 0;
+
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final char[] clusterChars = GraphemeClusterTable.isCluster(codePoint) ? graphemeClusters.getChars(codePoint) : null;
+            final float measuredCodePointWidth;
+            if (clusterChars != null) {
+                measuredCodePointWidth = measureCluster(graphemeClusters, codePoint, clusterChars);
+            } else {
+                measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mGlyphWidths.getWidth(codePoint);
+            }
+            // A cluster is drawn as a run of its own, as its chars are not those of the row.
+            final boolean fontWidthMismatch = clusterChars != null || Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
+
+            if (styleIndex != lastRunStyleIndex || style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column == 0) {
+                    // Skip first column as there is nothing to draw, just record the current style.
+                } else {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final char[] runText = (lastRunClusterChars == null) ? line : lastRunClusterChars;
+                    final int runStartIndex = (lastRunClusterChars == null) ? lastRunStartIndex : 0;
+                    final int charsSinceLastRun = (lastRunClusterChars == null) ? currentCharIndex - lastRunStartIndex : lastRunClusterChars.length;
+                    int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    boolean invertCursorTextColor = false;
+                    if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+                        invertCursorTextColor = true;
                     }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunInsideSelection = insideSelection;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+                    drawTextRun(canvas, runText, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        runStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, cursorShape, styleTable, lastRunStyleIndex, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
                 }
+                measuredWidthForRun = 0.f;
+                lastRunStyleIndex = styleIndex;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunInsideSelection = insideSelection;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
+                lastRunClusterChars = clusterChars;
             }
-
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            boolean invertCursorTextColor = false;
-            if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                invertCursorTextColor = true;
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
             }
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
         }
+
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final char[] runText = (lastRunClusterChars == null) ? line : lastRunClusterChars;
+        final int runStartIndex = (lastRunClusterChars == null) ? lastRunStartIndex : 0;
+        final int charsSinceLastRun = (lastRunClusterChars == null) ? currentCharIndex - lastRunStartIndex : lastRunClusterChars.length;
+        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        boolean invertCursorTextColor = false;
+        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+            invertCursorTextColor = true;
+        }
+        drawTextRun(canvas, runText, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, runStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, cursorShape, styleTable, lastRunStyleIndex, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
                              int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
-                             long textStyle, boolean reverseVideo) {
-        int foreColor = TextStyle.decodeForeColor(textStyle);
-        final int effect = TextStyle.decodeEffect(textStyle);
-        int backColor = TextStyle.decodeBackColor(textStyle);
+                             TextStyleTable styleTable, int styleIndex, long textStyle, boolean reverseVideo) {
+        int foreColor, backColor;
+        final int effect;
+        if (styleIndex >= 0) {
+            if (styleTable != mDecodedStyleTable || styleIndex >= mDecodedStyleCount) decodeStyles(styleTable);
+            foreColor = mDecodedForeColors[styleIndex];
+            backColor = mDecodedBackColors[styleIndex];
+            effect = mDecodedEffects[styleIndex];
+        } else {
+            foreColor = TextStyle.decodeForeColor(textStyle);
+            backColor = TextStyle.decodeBackColor(textStyle);
+            effect = TextStyle.decodeEffect(textStyle);
+        }
         final boolean bold = (effect & (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_BLINK)) != 0;
         final boolean underline = (effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0;
         final boolean italic = (effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0;
@@ -239,6 +383,56 @@ public final class TerminalRenderer {
         if (savedMatrix) canvas.restore();
     }
 
+    /** The width of a grapheme cluster as measured by the paint, measuring it only the first time. */
+    private float measureCluster(GraphemeClusterTable graphemeClusters, int codePoint, char[] chars) {
+        if (graphemeClusters != mMeasuredClusterTable) {
+            mMeasuredClusterTable = graphemeClusters;
+            mMeasuredNarrowClusterWidths = new float[0];
+            mMeasuredWideClusterWidths = new float[0];
+        }
+        final boolean wide = codePoint >= GraphemeClusterTable.FIRST_WIDE;
+        final int index = codePoint - (wide ? GraphemeClusterTable.FIRST_WIDE : GraphemeClusterTable.FIRST_NARROW);
+        float[] widths = wide ? mMeasuredWideClusterWidths : mMeasuredNarrowClusterWidths;
+        if (index >= widths.length) {
+            widths = Arrays.copyOf(widths, Math.max(index + 1, 2 * widths.length));
+            if (wide) mMeasuredWideClusterWidths = widths; else mMeasuredNarrowClusterWidths = widths;
+        }
+        if (widths[index] == 0) widths[index] = mTextPaint.measureText(chars, 0, chars.length);
+        return widths[index];
+    }
+
+    /** Decode the styles of a table which have not been decoded yet, starting over if the table has changed. */
+    private void decodeStyles(TextStyleTable styleTable) {
+        if (styleTable != mDecodedStyleTable) {
+            mDecodedStyleTable = styleTable;
+            mDecodedStyleCount = 0;
+        }
+        final int size = styleTable.size();
+        if (size > mDecodedForeColors.length) {
+            final int capacity = Math.max(size, 2 * mDecodedForeColors.length);
+            mDecodedForeColors = Arrays.copyOf(mDecodedForeColors, capacity);
+            mDecodedBackColors = Arrays.copyOf(mDecodedBackColors, capacity);
+            mDecodedEffects = Arrays.copyOf(mDecodedEffects, capacity);
+        }
+        for (int i = mDecodedStyleCount; i < size; i++) {
+            final long style = styleTable.getStyle(i);
+            mDecodedForeColors[i] = TextStyle.decodeForeColor(style);
+            mDecodedBackColors[i] = TextStyle.decodeBackColor(style);
+            mDecodedEffects[i] = TextStyle.decodeEffect(style);
+        }
+        mDecodedStyleCount = size;
+    }
+
+    /** The top pixel of what {@link #render} draws for the row at the specified index from the top of the view. */
+    public int getRowTop(int rowIndex) {
+        return (rowIndex + 1) * mFontLineSpacing + mFontAscent;
+    }
+
+    /** The pixel below what {@link #render} draws for the row at the specified index from the top of the view. */
+    public int getRowBottom(int rowIndex) {
+        return (rowIndex + 2) * mFontLineSpacing + mFontAscent;
+    }
+
     public float getFontWidth() {
         return mFontWidth;
     }
@@ -38,8 +38,10 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.termux.terminal.KeyHandler;
+import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
+import com.termux.terminal.TerminalSnapshot;
 import com.termux.view.textselection.TextSelectionCursorController;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
@@ -66,8 +68,22 @@ public final class TerminalView extends View {
     public static final int TERMINAL_CURSOR_BLINK_RATE_MIN = 100;
     public static final int TERMINAL_CURSOR_BLINK_RATE_MAX = 2000;
 
+    /**
+     * How long to wait for the size to stop changing, such as while zooming, before resizing the terminal, which
+     * reflows the transcript and makes the foreground process redraw its screen.
+     */
+    private static final int UPDATE_SIZE_DELAY_MILLIS = 150;
+    private final Runnable mUpdateSizeRunnable = this::updateSize;
+
     /** The top row of text to display. Ranges from -activeTranscriptRows to 0. */
     int mTopRow;
+    /** The cursor row at the last {@link #invalidateDamagedRows(boolean)}, which needs a redraw if the cursor moves. */
+    private int mLastInvalidatedCursorRow = -1;
+    /**
+     * What is drawn when the session parses output in the background, see {@link TerminalSession#setBackgroundParsing(boolean)},
+     * and the last complete screen drawn during synchronized output, see {@link TerminalEmulator#isSynchronizedOutput()}.
+     */
+    private final TerminalSnapshot mSnapshot = new TerminalSnapshot();
     int[] mDefaultSelectors = new int[]{-1,-1,-1,-1};
 
     float mScaleFactor = 1.f;
@@ -142,7 +158,7 @@ public final class TerminalView extends View {
             @Override
             public boolean onUp(MotionEvent event) {
                 mScrollRemainder = 0.0f;
-                if (mEmulator != null && mEmulator.isMouseTrackingActive() && !event.isFromSource(InputDevice.SOURCE_MOUSE) && !isSelectingText() && !scrolledWithFinger) {
+                if (mEmulator != null && isMouseTrackingActive() && !event.isFromSource(InputDevice.SOURCE_MOUSE) && !isSelectingText() && !scrolledWithFinger) {
                     // Quick event processing when mouse tracking is active - do not wait for check of double tapping
                     // for zooming.
                     sendMouseEventCode(event, TerminalEmulator.MOUSE_LEFT_BUTTON, true);
@@ -169,7 +185,7 @@ public final class TerminalView extends View {
             @Override
             public boolean onScroll(MotionEvent e, float distanceX, float distanceY) {
                 if (mEmulator == null) return true;
-                if (mEmulator.isMouseTrackingActive() && e.isFromSource(InputDevice.SOURCE_MOUSE)) {
+                if (isMouseTrackingActive() && e.isFromSource(InputDevice.SOURCE_MOUSE)) {
                     // If moving with mouse pointer while pressing button, report that instead of scroll.
                     // This means that we never report moving with button press-events for touch input,
                     // since we cannot just start sending these events without a starting press event,
@@ -193,18 +209,29 @@ public final class TerminalView extends View {
                 return true;
             }
 
+            @Override
+            public void onScaleEnd() {
+                // Apply the size the zoom settled on without waiting for the delay.
+                updateSize();
+            }
+
             @Override
             public boolean onFling(final MotionEvent e2, float velocityX, float velocityY) {
                 if (mEmulator == null) return true;
                 // Do not start scrolling until last fling has been taken care of:
                 if (!mScroller.isFinished()) return true;
 
-                final boolean mouseTrackingAtStartOfFling = mEmulator.isMouseTrackingActive();
+                final boolean mouseTrackingAtStartOfFling;
+                final int activeTranscriptRows;
+                synchronized (mEmulator) {
+                    mouseTrackingAtStartOfFling = mEmulator.isMouseTrackingActive();
+                    activeTranscriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+                }
                 float SCALE = 0.25f;
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -activeTranscriptRows, 0);
                 }
 
                 post(new Runnable() {
@@ -212,7 +239,7 @@ public final class TerminalView extends View {
 
                     @Override
                     public void run() {
-                        if (mouseTrackingAtStartOfFling != mEmulator.isMouseTrackingActive()) {
+                        if (mouseTrackingAtStartOfFling != isMouseTrackingActive()) {
                             mScroller.abortAnimation();
                             return;
                         }
@@ -437,7 +464,10 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows();
+        }
     }
 
     @Override
@@ -447,7 +477,10 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        }
     }
 
     public void onScreenUpdated() {
@@ -456,46 +489,116 @@ public final class TerminalView extends View {
 
     public void onScreenUpdated(boolean skipScrolling) {
         if (mEmulator == null) return;
+        synchronized (mEmulator) {
+            // Keep the damage of a screen in the middle of a synchronized update, the session notifies again once the
+            // program is done, see TerminalEmulator#isSynchronizedOutput():
+            if (mEmulator.isSynchronizedOutput()) return;
+
+            final int oldTopRow = mTopRow;
+            int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+            if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
+
+            if (isSelectingText() || mEmulator.isAutoScrollDisabled()) {
+
+                // Do not scroll when selecting text.
+                int rowShift = mEmulator.getScrollCounter();
+                if (-mTopRow + rowShift > rowsInHistory) {
+                    // .. unless we're hitting the end of history transcript, in which
+                    // case we abort text selection and scroll to end.
+                    if (isSelectingText())
+                        stopTextSelectionMode();
+
+                    if (mEmulator.isAutoScrollDisabled()) {
+                        mTopRow = -rowsInHistory;
+                        skipScrolling = true;
+                    }
+                } else {
+                    skipScrolling = true;
+                    mTopRow -= rowShift;
+                    decrementYTextSelectionCursors(rowShift);
+                }
+            }
 
-        int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
-        if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
+            if (!skipScrolling && mTopRow != 0) {
+                // Scroll down if not already there.
+                if (mTopRow < -3) {
+                    // Awaken scroll bars only if scrolling a noticeable amount
+                    // - we do not want visible scroll bars during normal typing
+                    // of one row at a time.
+                    awakenScrollBars();
+                }
+                mTopRow = 0;
+            }
 
-        if (isSelectingText() || mEmulator.isAutoScrollDisabled()) {
+            mEmulator.clearScrollCounter();
 
-            // Do not scroll when selecting text.
-            int rowShift = mEmulator.getScrollCounter();
-            if (-mTopRow + rowShift > rowsInHistory) {
-                // .. unless we're hitting the end of history transcript, in which
-                // case we abort text selection and scroll to end.
-                if (isSelectingText())
-                    stopTextSelectionMode();
+            // Copy the damaged rows before the damage is cleared below, also when not parsing in the background so
+            // that the snapshot has the last complete screen to draw during synchronized output:
+            mSnapshot.update(mEmulator, mTopRow);
 
-                if (mEmulator.isAutoScrollDisabled()) {
-                    mTopRow = -rowsInHistory;
-                    skipScrolling = true;
-                }
-            } else {
-                skipScrolling = true;
-                mTopRow -= rowShift;
-                decrementYTextSelectionCursors(rowShift);
-            }
+            // Only the damaged rows need to be invalidated, unless showing the transcript or the text selection:
+            invalidateDamagedRows(mTopRow != 0 || mTopRow != oldTopRow || isSelectingText());
+            if (mAccessibilityEnabled) setContentDescription(getText());
         }
+    }
 
-        if (!skipScrolling && mTopRow != 0) {
-            // Scroll down if not already there.
-            if (mTopRow < -3) {
-                // Awaken scroll bars only if scrolling a noticeable amount
-                // - we do not want visible scroll bars during normal typing
-                // of one row at a time.
-                awakenScrollBars();
+    /**
+     * Invalidate the part of the view showing the rows changed since the last call, as recorded by the damage
+     * tracking of the {@link TerminalBuffer}, along with the rows the cursor moved from and to. Assumes that
+     * {@link #mTopRow} is 0 unless fullRedraw is set.
+     * <p>
+     * The dirty rect only limits what is drawn with software rendering, where the renderer skips the rows outside the
+     * clip of the canvas. A hardware accelerated view ignores it and draws all rows again, of which the renderer only
+     * replays the unchanged ones from their render nodes from Android 10, see {@link TerminalRenderer}.
+     *
+     * @param fullRedraw If the whole view should be invalidated regardless of damage.
+     */
+    private void invalidateDamagedRows(boolean fullRedraw) {
+        synchronized (mEmulator) {
+            final TerminalBuffer screen = mEmulator.getScreen();
+            final int cursorRow = mEmulator.getCursorRow();
+            if (fullRedraw || mRenderer == null) {
+                invalidate();
+            } else {
+                int firstRow = Math.min(cursorRow, mLastInvalidatedCursorRow);
+                int lastRow = Math.max(cursorRow, mLastInvalidatedCursorRow);
+                if (firstRow < 0) firstRow = cursorRow;
+                if (screen.hasDamage()) {
+                    firstRow = Math.min(firstRow, screen.getFirstDamagedRow());
+                    lastRow = Math.max(lastRow, screen.getLastDamagedRow());
+                }
+                invalidate(0, mRenderer.getRowTop(firstRow), getWidth(), mRenderer.getRowBottom(lastRow));
             }
-            mTopRow = 0;
+            mLastInvalidatedCursorRow = cursorRow;
+            screen.clearDamage();
         }
+    }
 
-        mEmulator.clearScrollCounter();
-
-        invalidate();
-        if (mAccessibilityEnabled) setContentDescription(getText());
+    /**
+     * Invalidate the part of the view showing the external rows from firstRow to lastRow (inclusive), such as the rows
+     * where a text selection has changed.
+     */
+    public void invalidateRows(int firstRow, int lastRow) {
+        if (mEmulator == null || mRenderer == null) {
+            invalidate();
+            return;
+        }
+        firstRow = Math.max(firstRow - mTopRow, 0);
+        lastRow = Math.min(lastRow - mTopRow, mEmulator.mRows - 1);
+        if (firstRow <= lastRow)
+            invalidate(0, mRenderer.getRowTop(firstRow), getWidth(), mRenderer.getRowBottom(lastRow));
+    }
+
+    /** Invalidate the part of the view showing the cursor, which covers two columns when on a wide char. */
+    private void invalidateCursor() {
+        final int row, column;
+        synchronized (mEmulator) {
+            row = mEmulator.getCursorRow() - mTopRow;
+            column = mEmulator.getCursorCol();
+        }
+        if (row < 0 || row >= mEmulator.mRows) return;
+        final float left = column * mRenderer.mFontWidth;
+        invalidate((int) left, mRenderer.getRowTop(row), (int) Math.ceil(left + 2 * mRenderer.mFontWidth), mRenderer.getRowBottom(row));
     }
 
     /** This must be called by the hosting activity in {@link Activity#onContextMenuClosed(Menu)}
@@ -513,12 +616,13 @@ public final class TerminalView extends View {
      */
     public void setTextSize(int textSize) {
         mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
-        updateSize();
+        scheduleUpdateSize();
+        invalidate();
     }
 
     public void setTypeface(Typeface newTypeface) {
         mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
-        updateSize();
+        scheduleUpdateSize();
         invalidate();
     }
 
@@ -567,7 +671,9 @@ public final class TerminalView extends View {
                 mMouseScrollStartY = y;
             }
         }
-        mEmulator.sendMouseEvent(button, x, y, pressed);
+        synchronized (mEmulator) {
+            mEmulator.sendMouseEvent(button, x, y, pressed);
+        }
     }
 
     /** Perform a scroll, either from dragging the screen or by scrolling a mouse wheel. */
@@ -575,14 +681,21 @@ public final class TerminalView extends View {
         boolean up = rowsDown < 0;
         int amount = Math.abs(rowsDown);
         for (int i = 0; i < amount; i++) {
-            if (mEmulator.isMouseTrackingActive()) {
+            final boolean mouseTrackingActive, alternateBufferActive;
+            final int activeTranscriptRows;
+            synchronized (mEmulator) {
+                mouseTrackingActive = mEmulator.isMouseTrackingActive();
+                alternateBufferActive = mEmulator.isAlternateBufferActive();
+                activeTranscriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+            }
+            if (mouseTrackingActive) {
                 sendMouseEventCode(event, up ? TerminalEmulator.MOUSE_WHEELUP_BUTTON : TerminalEmulator.MOUSE_WHEELDOWN_BUTTON, true);
-            } else if (mEmulator.isAlternateBufferActive()) {
+            } else if (alternateBufferActive) {
                 // Send up and down key events for scrolling, which is what some terminals do to make scroll work in
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                mTopRow = Math.min(0, Math.max(-activeTranscriptRows, mTopRow + (up ? -1 : 1)));
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -622,10 +735,10 @@ public final class TerminalView extends View {
                     ClipData.Item clipItem = clipData.getItemAt(0);
                     if (clipItem != null) {
                         CharSequence text = clipItem.coerceToText(getContext());
-                        if (!TextUtils.isEmpty(text)) mEmulator.paste(text.toString());
+                        if (!TextUtils.isEmpty(text)) paste(text.toString());
                     }
                 }
-            } else if (mEmulator.isMouseTrackingActive()) { // BUTTON_PRIMARY.
+            } else if (isMouseTrackingActive()) { // BUTTON_PRIMARY.
                 switch (event.getAction()) {
                     case MotionEvent.ACTION_DOWN:
                     case MotionEvent.ACTION_UP:
@@ -851,7 +964,7 @@ public final class TerminalView extends View {
 
         // Ensure cursor is shown when a key is pressed down like long hold on (arrow) keys
         if (mEmulator != null)
-            mEmulator.setCursorBlinkState(true);
+            setCursorBlinkState(true);
 
         final boolean controlDown = controlDownFromEvent || mClient.readControlKey();
         final boolean altDown = leftAltDownFromEvent || mClient.readAltKey();
@@ -910,13 +1023,16 @@ public final class TerminalView extends View {
     public boolean handleKeyCode(int keyCode, int keyMod) {
         // Ensure cursor is shown when a key is pressed down like long hold on (arrow) keys
         if (mEmulator != null)
-            mEmulator.setCursorBlinkState(true);
+            setCursorBlinkState(true);
 
         if (handleKeyCodeAction(keyCode, keyMod))
             return true;
 
         TerminalEmulator term = mTermSession.getEmulator();
-        String code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        final String code;
+        synchronized (term) {
+            code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        }
         if (code == null) return false;
         mTermSession.write(code);
         return true;
@@ -975,11 +1091,22 @@ public final class TerminalView extends View {
      */
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        updateSize();
+        scheduleUpdateSize();
+    }
+
+    /**
+     * Update the terminal size with {@link #updateSize()} once the size of the view and text has not changed for
+     * {@link #UPDATE_SIZE_DELAY_MILLIS}, so that a zoom gesture or the soft keyboard sliding in only resizes the
+     * terminal once. The first size is applied directly, as nothing can be shown before it.
+     */
+    private void scheduleUpdateSize() {
+        removeCallbacks(mUpdateSizeRunnable);
+        if (mEmulator == null || !postDelayed(mUpdateSizeRunnable, UPDATE_SIZE_DELAY_MILLIS)) updateSize();
     }
 
     /** Check if the terminal size in rows and columns should be updated. */
     public void updateSize() {
+        removeCallbacks(mUpdateSizeRunnable);
         int viewWidth = getWidth();
         int viewHeight = getHeight();
         if (viewWidth == 0 || viewHeight == 0 || mTermSession == null) return;
@@ -992,6 +1119,9 @@ public final class TerminalView extends View {
             mTermSession.updateSize(newColumns, newRows, (int) mRenderer.getFontWidth(), mRenderer.getFontLineSpacing());
             mEmulator = mTermSession.getEmulator();
             mClient.onEmulatorSet();
+            synchronized (mEmulator) {
+                mSnapshot.update(mEmulator, 0);
+            }
 
             // Update mTerminalCursorBlinkerRunnable inner class mEmulator on session change
             if (mTerminalCursorBlinkerRunnable != null)
@@ -1014,7 +1144,19 @@ public final class TerminalView extends View {
                 mTextSelectionCursorController.getSelectors(sel);
             }
 
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            // Whatever causes a redraw, such as the cursor blinking or scrolling, the last complete screen in the
+            // snapshot is drawn while a program is in the middle of updating the screen with synchronized output.
+            if (mTermSession.isBackgroundParsing()) {
+                // Only hold the lock while copying what changed, not while drawing:
+                synchronized (mEmulator) {
+                    mSnapshot.updateUnlessSynchronized(mEmulator, mTopRow);
+                }
+                mRenderer.render(mSnapshot, canvas, sel[0], sel[1], sel[2], sel[3]);
+            } else if (mEmulator.isSynchronizedOutput()) {
+                mRenderer.render(mSnapshot, canvas, sel[0], sel[1], sel[2], sel[3]);
+            } else {
+                mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            }
 
             // render the text selection handles
             renderTextSelection();
@@ -1025,8 +1167,44 @@ public final class TerminalView extends View {
         return mTermSession;
     }
 
+    /**
+     * Paste text into the terminal, see {@link TerminalEmulator#paste(String)}, and tell the client with
+     * {@link TerminalViewClient#onPasteRejected(TerminalSession)} if the session did not accept it.
+     *
+     * @return false if the paste was rejected.
+     */
+    public boolean paste(String text) {
+        if (mEmulator == null) return false;
+        final boolean pasted;
+        synchronized (mEmulator) {
+            pasted = mEmulator.paste(text);
+        }
+        if (!pasted) mClient.onPasteRejected(mTermSession);
+        return pasted;
+    }
+
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        }
+    }
+
+    /**
+     * If mouse events are reported to the process. Like all access to the emulator from the view, this is done with
+     * the emulator locked, as the parser thread changes it meanwhile when parsing in the background, see
+     * {@link TerminalSession#setBackgroundParsing(boolean)}.
+     */
+    private boolean isMouseTrackingActive() {
+        synchronized (mEmulator) {
+            return mEmulator.isMouseTrackingActive();
+        }
+    }
+
+    /** Set the blink state of the cursor, with the emulator locked as in {@link #isMouseTrackingActive()}. */
+    private void setCursorBlinkState(boolean visible) {
+        synchronized (mEmulator) {
+            mEmulator.setCursorBlinkState(visible);
+        }
     }
 
     public int getCursorX(float x) {
@@ -1267,14 +1445,18 @@ public final class TerminalView extends View {
 
         if (mEmulator == null) return;
 
-        mEmulator.setCursorBlinkingEnabled(false);
+        final boolean cursorEnabled;
+        synchronized (mEmulator) {
+            mEmulator.setCursorBlinkingEnabled(false);
+            cursorEnabled = mEmulator.isCursorEnabled();
+        }
 
         if (start) {
             // If cursor blinker is not enabled or is not valid
             if (mTerminalCursorBlinkerRate < TERMINAL_CURSOR_BLINK_RATE_MIN || mTerminalCursorBlinkerRate > TERMINAL_CURSOR_BLINK_RATE_MAX)
                 return;
             // If cursor blinder is to be started only if cursor is enabled
-            else if (startOnlyIfCursorEnabled && ! mEmulator.isCursorEnabled()) {
+            else if (startOnlyIfCursorEnabled && !cursorEnabled) {
                 if (TERMINAL_VIEW_KEY_LOGGING_ENABLED)
                     mClient.logVerbose(LOG_TAG, "Ignoring call to start cursor blinker since cursor is not enabled");
                 return;
@@ -1286,7 +1468,9 @@ public final class TerminalView extends View {
             if (mTerminalCursorBlinkerHandler == null)
                 mTerminalCursorBlinkerHandler = new Handler(Looper.getMainLooper());
             mTerminalCursorBlinkerRunnable = new TerminalCursorBlinkerRunnable(mEmulator, mTerminalCursorBlinkerRate);
-            mEmulator.setCursorBlinkingEnabled(true);
+            synchronized (mEmulator) {
+                mEmulator.setCursorBlinkingEnabled(true);
+            }
             mTerminalCursorBlinkerRunnable.run();
         }
     }
@@ -1328,8 +1512,10 @@ public final class TerminalView extends View {
                     // to draw the cursor or not
                     mCursorVisible = !mCursorVisible;
                     //mClient.logVerbose(LOG_TAG, "Toggling cursor blink state to " + mCursorVisible);
-                    mEmulator.setCursorBlinkState(mCursorVisible);
-                    invalidate();
+                    synchronized (mEmulator) {
+                        mEmulator.setCursorBlinkState(mCursorVisible);
+                    }
+                    invalidateCursor();
                 }
             } finally {
                 // Recall the Runnable after mBlinkRate milliseconds to toggle the blink state
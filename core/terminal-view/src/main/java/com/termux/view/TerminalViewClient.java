@@ -62,6 +62,12 @@ public interface TerminalViewClient {
 
     boolean onCodePoint(int codePoint, boolean ctrlDown, TerminalSession session);
 
+    /**
+     * Called when text pasted with {@link TerminalView#paste(String)} was rejected as a whole, as the process is not
+     * reading its input, see {@link com.termux.terminal.TerminalEmulator#paste(String)}.
+     */
+    void onPasteRejected(TerminalSession session);
+
 
     void onEmulatorSet();
 
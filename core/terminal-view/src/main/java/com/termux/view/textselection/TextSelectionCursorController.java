@@ -95,14 +95,16 @@ public class TextSelectionCursorController implements CursorController {
         mSelX1 = mSelX2 = columnAndRow[0];
         mSelY1 = mSelY2 = columnAndRow[1];
 
-        TerminalBuffer screen = terminalView.mEmulator.getScreen();
-        if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
-            // Selecting something other than whitespace. Expand to word.
-            while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
-                mSelX1--;
-            }
-            while (mSelX2 < terminalView.mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
-                mSelX2++;
+        synchronized (terminalView.mEmulator) {
+            TerminalBuffer screen = terminalView.mEmulator.getScreen();
+            if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
+                // Selecting something other than whitespace. Expand to word.
+                while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
+                    mSelX1--;
+                }
+                while (mSelX2 < terminalView.mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
+                    mSelX2++;
+                }
             }
         }
     }
@@ -216,8 +218,17 @@ public class TextSelectionCursorController implements CursorController {
 
     @Override
     public void updatePosition(TextSelectionHandleView handle, int x, int y) {
+        // The screen is read with the emulator locked, as the parser thread may change it when parsing in the background.
+        synchronized (terminalView.mEmulator) {
+            updatePositionLocked(handle, x, y);
+        }
+    }
+
+    private void updatePositionLocked(TextSelectionHandleView handle, int x, int y) {
         TerminalBuffer screen = terminalView.mEmulator.getScreen();
         final int scrollRows = screen.getActiveRows() - terminalView.mEmulator.mRows;
+        final int oldTopRow = terminalView.getTopRow();
+        final int oldSelY1 = mSelY1, oldSelY2 = mSelY2;
         if (handle == mStartHandle) {
             mSelX1 = terminalView.getCursorX(x);
             mSelY1 = terminalView.getCursorY(y);
@@ -301,7 +312,14 @@ public class TextSelectionCursorController implements CursorController {
             mSelX2 = getValidCurX(screen, mSelY2, mSelX2);
         }
 
-        terminalView.invalidate();
+        if (terminalView.getTopRow() != oldTopRow) {
+            terminalView.invalidate();
+        } else if (handle == mStartHandle) {
+            // Only the rows from where the moved end of the selection was to where it is now have changed.
+            terminalView.invalidateRows(Math.min(oldSelY1, mSelY1), Math.max(oldSelY1, mSelY1));
+        } else {
+            terminalView.invalidateRows(Math.min(oldSelY2, mSelY2), Math.max(oldSelY2, mSelY2));
+        }
     }
 
     private int getValidCurX(TerminalBuffer screen, int cy, int cx) {
@@ -372,7 +390,9 @@ public class TextSelectionCursorController implements CursorController {
 
     /** Get the currently selected text. */
     public String getSelectedText() {
-        return terminalView.mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (terminalView.mEmulator) {
+            return terminalView.mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /** Get the selected text stored before "MORE" button was pressed on the context menu. */